@@ -0,0 +1,891 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/*
+ * Throughput benchmarks for the DnuService hot paths. Modeled on JMH (warmup and measurement
+ * iterations, per-thread state, a sink against dead-code elimination) but self-contained, since
+ * the project is built with plain javac. Results are written in JMH's JSON result format, so
+ * the usual JMH tooling can compare two runs.
+ *
+ *   java DnuBenchmark [--users=1000,100000,1000000] [--threads=1,4] [--warmup=2]
+ *                     [--iterations=5] [--millis=1000] [--bench=<regex>] [--out=results.json]
+ *                     [--shards=4] [--writers=4]
+ *   java DnuBenchmark --footprint=1000000
+ *   java DnuBenchmark --check=8
+ *
+ * Each dataset has 80% students and 20% tutors. Subject popularity is Zipf-distributed (a few
+ * subjects have most tutors, as in real course catalogs), as are the subjects searched for.
+ *
+ * The sharded.* benchmarks load the same dataset into a DnuShards loopback deployment with
+ * --shards shards and run the matching operations through the router, so their scores show
+ * what routing and scatter-gather cost (or gain) against the single service.
+ *
+ * The underWrites.* benchmarks repeat some reads while --writers background threads keep
+ * booking, confirming and rating as fast as they can; their write rate is printed below the
+ * score. snapshot.* reads go through DnuSnapshot, so they see one point in time throughout.
+ *
+ * --footprint=n runs no benchmark: it loads n bookings into a fresh service and reports the live
+ * heap they take per booking, the collections the load caused, and the pause of a full
+ * collection with all of them live (run it with the heap size and collector of production).
+ *
+ * --check=n runs no benchmark either: it runs the concurrency checks below on n threads and
+ * throws IllegalStateException at the first broken invariant.
+ *
+ * Before the codec benchmarks run, every entity of the dataset (and of a small sample covering
+ * each entity kind) is exported, imported into a fresh service and compared byte for byte.
+ */
+public class DnuBenchmark {
+
+    private static final int SUBJECTS = 60;
+    private static final double ZIPF_EXPONENT = 1.1;
+    private static final LocalDateTime EPOCH = LocalDateTime.of(2025, 1, 1, 0, 0);
+
+    // Shared, pre-built service for one dataset size
+    static final class Dataset {
+        final DnuTutorConnect.DnuService service = new DnuTutorConnect.DnuService();
+        final DnuTutorConnect.Student[] students;
+        final DnuTutorConnect.Tutor[] tutors;
+        final DnuTutorConnect.Subject[] subjects = new DnuTutorConnect.Subject[SUBJECTS];
+        final String[] subjectSpellings = new String[SUBJECTS]; // accent/case variants of the names
+        final String[] emails;
+        final DnuTutorConnect.Booking[] bookings;
+        final double[] subjectCdf = zipfCdf(SUBJECTS, ZIPF_EXPONENT);
+        final AtomicLong nextSlot = new AtomicLong(); // every booking gets its own hour
+        final AtomicLong nextWriteMinute = new AtomicLong(); // background writers: a minute each, 100 years on
+        final DnuCodec.Resolver resolver = DnuCodec.resolver(service);
+
+        Dataset(int users) {
+            SplittableRandom random = new SplittableRandom(42);
+            for (int i = 0; i < SUBJECTS; i++) {
+                subjects[i] = service.createOrGetSubject("Môn học số " + i);
+                subjectSpellings[i] = "  MON HOC so " + i + " ";
+            }
+            int tutorCount = Math.max(1, users / 5);
+            tutors = new DnuTutorConnect.Tutor[tutorCount];
+            students = new DnuTutorConnect.Student[users - tutorCount];
+            emails = new String[users];
+            LocalDate from = EPOCH.toLocalDate();
+            for (int i = 0; i < tutorCount; i++) {
+                emails[i] = "tutor" + i + "@dnu.edu.vn";
+                DnuTutorConnect.Tutor t = service.registerTutor("Tutor " + i, emails[i], null,
+                        100_000 + 10_000 * random.nextInt(41), "");
+                for (int k = 1 + random.nextInt(3); k > 0; k--) t.addSubject(subjects[sample(subjectCdf, random)]);
+                // one long window, so createBooking only ever fails on overlap
+                t.addAvailability(from, new DnuTutorConnect.TimeSlot(EPOCH, EPOCH.plusYears(200)));
+                tutors[i] = t;
+            }
+            for (int i = 0; i < students.length; i++) {
+                emails[tutorCount + i] = "student" + i + "@dnu.edu.vn";
+                students[i] = service.registerStudent("Student " + i, emails[tutorCount + i], null);
+            }
+            for (int i = 0; i < tutorCount; i++) {
+                for (int k = random.nextInt(6); k > 0; k--) {
+                    service.addRating(students[random.nextInt(students.length)], tutors[i], 1 + random.nextInt(5), "");
+                }
+            }
+            bookings = new DnuTutorConnect.Booking[Math.min(10_000, tutorCount)];
+            for (int i = 0; i < bookings.length; i++) {
+                bookings[i] = book(random);
+            }
+        }
+
+        DnuTutorConnect.Booking book(SplittableRandom random) {
+            DnuTutorConnect.Tutor t = tutors[random.nextInt(tutors.length)];
+            DnuTutorConnect.Student s = students[random.nextInt(students.length)];
+            LocalDateTime start = EPOCH.plusHours(nextSlot.getAndIncrement());
+            return service.createBooking(s, t, subjects[0], start, 60);
+        }
+
+        DnuTutorConnect.Subject popularSubject(SplittableRandom random) { return subjects[sample(subjectCdf, random)]; }
+
+        // Same users, subjects and ratings in a sharded deployment; built only for sharded.* benchmarks
+        DnuShards shards;
+        DnuTutorConnect.Student[] shardStudents;
+        DnuTutorConnect.Tutor[] shardTutors;
+        DnuTutorConnect.Subject[] shardSubjects;
+        final AtomicLong nextShardSlot = new AtomicLong();
+
+        void buildShards(int shardCount) {
+            SplittableRandom random = new SplittableRandom(42);
+            shards = DnuShards.loopback(shardCount);
+            shardSubjects = new DnuTutorConnect.Subject[SUBJECTS];
+            for (int i = 0; i < SUBJECTS; i++) shardSubjects[i] = shards.createOrGetSubject(subjects[i].getName());
+            shardTutors = new DnuTutorConnect.Tutor[tutors.length];
+            shardStudents = new DnuTutorConnect.Student[students.length];
+            for (int i = 0; i < tutors.length; i++) {
+                DnuTutorConnect.Tutor t = shards.registerTutor(tutors[i].getName(), tutors[i].getEmail(), null,
+                        tutors[i].getFeePerHour(), "");
+                for (DnuTutorConnect.Subject s : tutors[i].getSubjects()) shards.addTutorSubject(t, shards.createOrGetSubject(s.getName()));
+                shards.addTutorAvailability(t, EPOCH.toLocalDate(), new DnuTutorConnect.TimeSlot(EPOCH, EPOCH.plusYears(200)));
+                shardTutors[i] = t;
+            }
+            for (int i = 0; i < students.length; i++) {
+                shardStudents[i] = shards.registerStudent(students[i].getName(), students[i].getEmail(), null);
+            }
+            for (int i = 0; i < tutors.length; i++) {
+                for (int k = random.nextInt(6); k > 0; k--) {
+                    shards.addRating(shardStudents[random.nextInt(students.length)], shardTutors[i], 1 + random.nextInt(5), "");
+                }
+            }
+        }
+
+        DnuTutorConnect.Booking bookSharded(SplittableRandom random) {
+            DnuTutorConnect.Tutor t = shardTutors[random.nextInt(shardTutors.length)];
+            DnuTutorConnect.Student s = shardStudents[random.nextInt(shardStudents.length)];
+            LocalDateTime start = EPOCH.plusHours(nextShardSlot.getAndIncrement());
+            return shards.createBooking(s, t, shardSubjects[0], start, 60);
+        }
+    }
+
+    // Per-thread state, like a JMH @State(Scope.Thread)
+    static final class ThreadState {
+        final Dataset data;
+        final SplittableRandom random;
+        final DnuCodec.Writer writer = new DnuCodec.Writer();
+        final DnuCodec.Reader reader = new DnuCodec.Reader();
+        ThreadState(Dataset data, long seed) { this.data = data; this.random = new SplittableRandom(seed); }
+    }
+
+    static final Map<String, Function<ThreadState, Object>> BENCHMARKS = new LinkedHashMap<>();
+    static {
+        BENCHMARKS.put("searchTutorsBySubject", st ->
+                st.data.service.searchTutorsBySubject(st.data.popularSubject(st.random), null, null));
+        BENCHMARKS.put("searchTutorsBySubject.filtered", st ->
+                st.data.service.searchTutorsBySubject(st.data.popularSubject(st.random), 250_000.0, 3.5));
+        BENCHMARKS.put("snapshot.searchTutorsBySubject", DnuBenchmark::snapshotSearch);
+        BENCHMARKS.put("listAllBookings.page", DnuBenchmark::bookingsPage);
+        BENCHMARKS.put("underWrites.searchTutorsBySubject", st ->
+                st.data.service.searchTutorsBySubject(st.data.popularSubject(st.random), null, null));
+        BENCHMARKS.put("underWrites.snapshot.searchTutorsBySubject", DnuBenchmark::snapshotSearch);
+        BENCHMARKS.put("underWrites.listAllBookings.page", DnuBenchmark::bookingsPage);
+        BENCHMARKS.put("createOrGetSubject", st ->
+                st.data.service.createOrGetSubject(st.data.subjectSpellings[sample(st.data.subjectCdf, st.random)]));
+        BENCHMARKS.put("findUserByEmail", st ->
+                st.data.service.findUserByEmail(st.data.emails[st.random.nextInt(st.data.emails.length)]));
+        BENCHMARKS.put("createBooking", st -> st.data.book(st.random));
+        BENCHMARKS.put("addRating", st -> st.data.service.addRating(
+                st.data.students[st.random.nextInt(st.data.students.length)],
+                st.data.tutors[st.random.nextInt(st.data.tutors.length)], 1 + st.random.nextInt(5), ""));
+        BENCHMARKS.put("getAverageRating", st ->
+                st.data.tutors[st.random.nextInt(st.data.tutors.length)].getAverageRating());
+        // a fresh booking per op, since paying a booking again only returns its payment;
+        // compare with createBooking for the payment's own cost
+        BENCHMARKS.put("createTransaction", st -> st.data.service.createTransaction(st.data.book(st.random), 150_000, "bench"));
+        BENCHMARKS.put("searchTutors.top10", st -> st.data.service.searchTutors(st.data.popularSubject(st.random),
+                null, null, DnuTutorConnect.TutorOrder.RATING, 10, null));
+        BENCHMARKS.put("topTutors.top10", st -> st.data.service.topTutors(st.data.popularSubject(st.random), 10));
+        BENCHMARKS.put("underWrites.topTutors.top10", st -> st.data.service.topTutors(st.data.popularSubject(st.random), 10));
+        BENCHMARKS.put("stats.cancellationRate.month", st -> {
+            LocalDate from = EPOCH.toLocalDate().plusDays(st.random.nextInt(365));
+            return st.data.service.getStats().getCancellationRate(from, from.plusMonths(1));
+        });
+        BENCHMARKS.put("scan.cancellationRate.month", st -> {
+            // what the report did before DnuStats: a pass over every booking
+            LocalDateTime from = EPOCH.plusDays(st.random.nextInt(365)), to = from.plusMonths(1);
+            long total = 0, cancelled = 0;
+            for (DnuTutorConnect.Booking b : st.data.service.listAllBookings()) {
+                if (b.getScheduleTime().isBefore(from) || !b.getScheduleTime().isBefore(to)) continue;
+                total++;
+                if (b.getStatus() == DnuTutorConnect.BookingStatus.CANCELLED) cancelled++;
+            }
+            return total == 0 ? 0 : (double) cancelled / total;
+        });
+        BENCHMARKS.put("sharded.searchTutorsBySubject", st ->
+                st.data.shards.searchTutorsBySubject(st.data.shardSubjects[sample(st.data.subjectCdf, st.random)], null, null));
+        BENCHMARKS.put("sharded.searchTutors.top10", st -> st.data.shards.searchTutors(
+                st.data.shardSubjects[sample(st.data.subjectCdf, st.random)], null, null, DnuTutorConnect.TutorOrder.RATING, 10, null));
+        BENCHMARKS.put("sharded.findUserByEmail", st ->
+                st.data.shards.findUserByEmail(st.data.emails[st.random.nextInt(st.data.emails.length)]));
+        BENCHMARKS.put("sharded.topTutors.top10", st ->
+                st.data.shards.topTutors(st.data.shardSubjects[sample(st.data.subjectCdf, st.random)], 10));
+        BENCHMARKS.put("sharded.createBooking", st -> st.data.bookSharded(st.random));
+        BENCHMARKS.put("codec.encodeBooking", st ->
+                st.writer.reset().writeBooking(st.data.bookings[st.random.nextInt(st.data.bookings.length)]));
+        BENCHMARKS.put("codec.roundTripBooking", st -> {
+            st.writer.reset().writeBooking(st.data.bookings[st.random.nextInt(st.data.bookings.length)]);
+            return st.reader.reset(st.writer.array(), 0, st.writer.size()).read(st.data.resolver);
+        });
+        BENCHMARKS.put("codec.roundTripTutor", st -> {
+            st.writer.reset().writeUser(st.data.tutors[st.random.nextInt(st.data.tutors.length)]);
+            return st.reader.reset(st.writer.array(), 0, st.writer.size()).read(st.data.resolver);
+        });
+    }
+
+    static volatile int sink; // consumes results so the JIT cannot drop the calls
+
+    static Object snapshotSearch(ThreadState st) {
+        return st.data.service.snapshot().searchTutorsBySubject(st.data.popularSubject(st.random), null, null);
+    }
+
+    // 50 bookings from a random offset, as an admin page would show
+    static Object bookingsPage(ThreadState st) {
+        List<DnuTutorConnect.Booking> all = st.data.service.listAllBookings();
+        int from = st.random.nextInt(Math.max(1, all.size() - 50));
+        return new ArrayList<>(all.subList(from, Math.min(all.size(), from + 50)));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        if (options.containsKey("footprint")) {
+            measureFootprint(Integer.parseInt(options.get("footprint")));
+            return;
+        }
+        if (options.containsKey("check")) {
+            int threads = Integer.parseInt(options.get("check"));
+            checkBookingStress(threads);
+            checkCreateConfirmReopen(threads);
+            checkForeignEntitiesRejected();
+            return;
+        }
+        int[] userCounts = ints(options.getOrDefault("users", "1000,10000,100000"));
+        int[] threadCounts = ints(options.getOrDefault("threads", "1," + Runtime.getRuntime().availableProcessors()));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "2"));
+        int iterations = Integer.parseInt(options.getOrDefault("iterations", "5"));
+        long millis = Long.parseLong(options.getOrDefault("millis", "1000"));
+        Pattern filter = Pattern.compile(options.getOrDefault("bench", ".*"));
+        String out = options.getOrDefault("out", "dnu-benchmark.json");
+        int shardCount = Integer.parseInt(options.getOrDefault("shards", "4"));
+        int writerCount = Integer.parseInt(options.getOrDefault("writers", "4"));
+
+        List<String> results = new ArrayList<>();
+        boolean codec = BENCHMARKS.keySet().stream().anyMatch(name -> name.startsWith("codec.") && filter.matcher(name).find());
+        if (codec) checkCodecRoundTrip("sample", codecSample());
+        boolean sharded = BENCHMARKS.keySet().stream().anyMatch(name -> name.startsWith("sharded.") && filter.matcher(name).find());
+        for (int users : userCounts) {
+            long started = System.nanoTime();
+            Dataset data = new Dataset(users);
+            System.out.printf("# dataset users=%d built in %.1f s%n", users, (System.nanoTime() - started) / 1e9);
+            if (codec) checkCodecRoundTrip("users=" + users, data.service);
+            if (sharded) {
+                started = System.nanoTime();
+                data.buildShards(shardCount);
+                System.out.printf("# %d shards loaded in %.1f s%n", shardCount, (System.nanoTime() - started) / 1e9);
+            }
+            for (Map.Entry<String, Function<ThreadState, Object>> bench : BENCHMARKS.entrySet()) {
+                if (!filter.matcher(bench.getKey()).find()) continue;
+                for (int threads : threadCounts) {
+                    Writers writers = bench.getKey().startsWith("underWrites.") ? new Writers(data, writerCount) : null;
+                    double[] scores = new double[iterations];
+                    try {
+                        for (int i = 0; i < warmup; i++) runIteration(data, bench.getValue(), threads, millis);
+                        for (int i = 0; i < iterations; i++) scores[i] = runIteration(data, bench.getValue(), threads, millis);
+                    } finally {
+                        if (writers != null) writers.stop();
+                    }
+                    double mean = mean(scores), error = error(scores, mean);
+                    System.out.printf("%-42s users=%-8d threads=%-3d %,14.0f +- %,.0f ops/s%n",
+                            bench.getKey(), users, threads, mean, error);
+                    if (writers != null) {
+                        System.out.printf("#   with %d writers: %,.0f writes/s%n", writerCount, writers.writesPerSecond());
+                    }
+                    results.add(toJson(bench.getKey(), users, threads, warmup, iterations, millis, mean, error, scores));
+                }
+            }
+            if (data.shards != null) data.shards.close();
+        }
+        Files.write(Paths.get(out), ("[\n" + String.join(",\n", results) + "\n]\n").getBytes(StandardCharsets.UTF_8));
+        System.out.println("# results written to " + out);
+    }
+
+    // Runs op on `threads` threads for `millis` ms and returns total operations per second
+    static double runIteration(Dataset data, Function<ThreadState, Object> op, int threads, long millis)
+            throws InterruptedException {
+        long[] counts = new long[threads];
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        long seedBase = System.nanoTime();
+        long[] elapsed = new long[threads];
+        for (int w = 0; w < threads; w++) {
+            int id = w;
+            workers[w] = new Thread(() -> {
+                ThreadState state = new ThreadState(data, seedBase + id);
+                int local = 0;
+                long ops = 0;
+                try { start.await(); } catch (InterruptedException e) { return; }
+                long begin = System.nanoTime(), deadline = begin + millis * 1_000_000;
+                long now;
+                do {
+                    // check the clock every 64 calls to keep timing overhead out of the score
+                    for (int i = 0; i < 64; i++) local += System.identityHashCode(op.apply(state));
+                    ops += 64;
+                } while ((now = System.nanoTime()) < deadline);
+                counts[id] = ops;
+                elapsed[id] = now - begin;
+                sink += local;
+            }, "dnu-bench-" + w);
+            workers[w].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) worker.join();
+        double opsPerSecond = 0;
+        for (int w = 0; w < threads; w++) opsPerSecond += counts[w] * 1e9 / elapsed[w];
+        return opsPerSecond;
+    }
+
+    /*
+     * Background load for the underWrites.* benchmarks: each thread books a random tutor for a
+     * minute of its own, confirms the booking and rates the tutor, until stopped.
+     */
+    static final class Writers {
+        private static final LocalDateTime FROM = EPOCH.plusYears(100);
+        private final Thread[] threads;
+        private final LongAdder writes = new LongAdder();
+        private final long started = System.nanoTime();
+        private volatile long stopped;
+
+        Writers(Dataset data, int count) {
+            threads = new Thread[count];
+            for (int w = 0; w < count; w++) {
+                SplittableRandom random = new SplittableRandom(w);
+                threads[w] = new Thread(() -> {
+                    while (stopped == 0) {
+                        DnuTutorConnect.Tutor t = data.tutors[random.nextInt(data.tutors.length)];
+                        DnuTutorConnect.Student s = data.students[random.nextInt(data.students.length)];
+                        DnuTutorConnect.Booking b = data.service.createBooking(s, t, data.subjects[0],
+                                FROM.plusMinutes(data.nextWriteMinute.getAndIncrement()), 1);
+                        data.service.confirmBooking(b);
+                        data.service.addRating(s, t, 1 + random.nextInt(5), "");
+                        writes.add(3);
+                    }
+                }, "dnu-bench-writer-" + w);
+                threads[w].setDaemon(true);
+                threads[w].start();
+            }
+        }
+
+        void stop() throws InterruptedException {
+            stopped = System.nanoTime();
+            for (Thread t : threads) t.join();
+        }
+
+        double writesPerSecond() { return writes.sum() * 1e9 / (stopped - started); }
+    }
+
+    /* =======================
+       Codec round trip
+       ======================= */
+
+    // Every entity kind, with the optional fields both set and unset
+    static DnuTutorConnect.DnuService codecSample() {
+        DnuTutorConnect.DnuService service = new DnuTutorConnect.DnuService();
+        DnuTutorConnect.Subject math = service.createOrGetSubject("Toán cao cấp");
+        DnuTutorConnect.Subject java = service.createOrGetSubject("Lập trình Java");
+        DnuTutorConnect.Student student = service.registerStudent("Nguyễn Minh Ánh", "anh@dnu.edu.vn", "+84 901 000 100");
+        DnuTutorConnect.Student noPhone = service.registerStudent("Student \uD83D\uDE00", "emoji@dnu.edu.vn", null);
+        service.registerAdmin("Admin", "admin@dnu.edu.vn", null);
+        DnuTutorConnect.Tutor tutor = service.registerTutor("Trần Văn Bình", "binh@dnu.edu.vn", "0902000200",
+                150_000.5, "Đồ án Java, TOEIC 900");
+        DnuTutorConnect.Tutor bare = service.registerTutor("Bare", "bare@dnu.edu.vn", null, 0, null);
+        tutor.addSubject(math);
+        tutor.addSubject(java);
+        LocalDate day = EPOCH.toLocalDate();
+        tutor.addAvailability(day, new DnuTutorConnect.TimeSlot(EPOCH.plusHours(8), EPOCH.plusHours(12).plusNanos(1)));
+        tutor.addAvailability(day.minusDays(400), new DnuTutorConnect.TimeSlot(EPOCH.minusDays(400), EPOCH.minusDays(399)));
+        DnuTutorConnect.Booking booking = service.createBooking(student, tutor, java, EPOCH.plusHours(9), 90);
+        DnuTutorConnect.Booking cancelled = service.createBooking(noPhone, tutor, math, EPOCH.plusHours(11), 30);
+        service.cancelBooking(cancelled);
+        service.confirmBooking(booking);
+        service.postLearningRequest(student, math, "Cần học giải tích");
+        service.postLearningRequest(noPhone, java, null, 120_000.0, null, 0);
+        DnuTutorConnect.LearningRequest matched = service.postLearningRequest(student, java, "Java OOP",
+                200_000.0, EPOCH.plusHours(10).plusMinutes(30), 60);
+        service.matchRequest(matched, tutor);
+        service.addRating(student, tutor, 5, "Rất nhiệt tình");
+        service.addRating(noPhone, bare, 1, null);
+        service.createTransaction(booking, 225_000.75, "ví nội bộ");
+        service.refundTransaction(booking, "ví nội bộ");
+        service.recordFailedPayment(cancelled, 1, null);
+        return service;
+    }
+
+    /*
+     * Exports service, imports the export into a fresh service and checks that every entity
+     * encodes to the same bytes as its copy. Throws IllegalStateException on a difference.
+     */
+    static void checkCodecRoundTrip(String label, DnuTutorConnect.DnuService service) throws IOException {
+        long started = System.nanoTime();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        long exported = DnuCodec.export(service, bytes);
+        DnuTutorConnect.DnuService copy = new DnuTutorConnect.DnuService();
+        long imported = DnuCodec.importInto(new ByteArrayInputStream(bytes.toByteArray()), copy);
+        if (imported != exported) throw new IllegalStateException("exported " + exported + " entities, imported " + imported);
+
+        DnuCodec.Writer a = new DnuCodec.Writer(), b = new DnuCodec.Writer();
+        long compared = 0;
+        for (DnuTutorConnect.Subject s : service.listAllSubjects()) {
+            compare(a.reset().writeSubject(s), b.reset().writeSubject(copy.findSubject(s.getId()).orElse(null)), s);
+            compared++;
+        }
+        for (DnuTutorConnect.User u : service.listAllUsers()) {
+            DnuTutorConnect.User other = copy.findUser(u.getId()).orElseThrow(() -> new IllegalStateException("lost " + u));
+            if (u instanceof DnuTutorConnect.Tutor) {
+                DnuTutorConnect.Tutor t = (DnuTutorConnect.Tutor) u, o = (DnuTutorConnect.Tutor) other;
+                compare(a.reset().writeTutor(t, service.availabilityOf(t)), b.reset().writeTutor(o, copy.availabilityOf(o)), u);
+                List<DnuTutorConnect.Rating> ratings = service.ratingsOf(t), copied = copy.ratingsOf(o);
+                if (ratings.size() != copied.size()) throw new IllegalStateException("ratings of " + t + " differ");
+                for (int i = 0; i < ratings.size(); i++) {
+                    compare(a.reset().writeRating(ratings.get(i)), b.reset().writeRating(copied.get(i)), ratings.get(i));
+                }
+                compared += ratings.size();
+            } else {
+                compare(a.reset().writeUser(u), b.reset().writeUser(other), u);
+            }
+            compared++;
+        }
+        for (DnuTutorConnect.Booking x : service.listAllBookings()) {
+            compare(a.reset().writeBooking(x), b.reset().writeBooking(copy.findBooking(x.getId())
+                    .orElseThrow(() -> new IllegalStateException("lost " + x))), x);
+            compared++;
+        }
+        for (DnuTutorConnect.LearningRequest x : service.listAllRequests()) {
+            compare(a.reset().writeRequest(x), b.reset().writeRequest(copy.findRequest(x.getId())
+                    .orElseThrow(() -> new IllegalStateException("lost " + x))), x);
+            compared++;
+        }
+        List<DnuTutorConnect.Transaction> txs = service.listAllTransactions(), copiedTxs = copy.listAllTransactions();
+        if (txs.size() != copiedTxs.size()) throw new IllegalStateException("transactions differ");
+        for (int i = 0; i < txs.size(); i++) compare(a.reset().writeTransaction(txs.get(i)), b.reset().writeTransaction(copiedTxs.get(i)), txs.get(i));
+        compared += txs.size();
+        if (compared != exported) throw new IllegalStateException("exported " + exported + " entities, compared " + compared);
+        System.out.printf("# codec round trip %s: %d entities, %d bytes (%.1f per entity), ok in %.1f s%n", label, exported,
+                bytes.size(), (double) bytes.size() / Math.max(1, exported), (System.nanoTime() - started) / 1e9);
+    }
+
+    private static void compare(DnuCodec.Writer a, DnuCodec.Writer b, Object entity) {
+        if (!Arrays.equals(a.array(), 0, a.size(), b.array(), 0, b.size())) {
+            throw new IllegalStateException("codec round trip changed " + entity);
+        }
+    }
+
+    /* =======================
+       Concurrency checks
+       ======================= */
+
+    /*
+     * Every thread books random, often overlapping, sessions with a few tutors, confirms or
+     * cancels random bookings of the latest snapshot, rates the same tutors and pays random
+     * bookings, both directly and through DnuPayments. Checks that no two live bookings of a
+     * tutor overlap; that the bookings, the per-user lists, the snapshot and DnuStats agree on
+     * how many bookings there are in each status; that every tutor's rating count, sum and
+     * histogram hold exactly the ratings submitted; and that every booking paid at least once
+     * has exactly one PAID transaction.
+     */
+    static void checkBookingStress(int threads) throws InterruptedException, ExecutionException {
+        long started = System.nanoTime();
+        DnuTutorConnect.DnuService service = new DnuTutorConnect.DnuService();
+        DnuTutorConnect.Subject subject = service.createOrGetSubject("Toan");
+        DnuTutorConnect.Tutor[] tutors = new DnuTutorConnect.Tutor[16];
+        for (int i = 0; i < tutors.length; i++) {
+            tutors[i] = service.registerTutor("Tutor " + i, "stress.tutor" + i + "@dnu.edu.vn", null, 150_000, "");
+            tutors[i].addSubject(subject);
+            tutors[i].addAvailability(EPOCH.toLocalDate(), new DnuTutorConnect.TimeSlot(EPOCH, EPOCH.plusYears(1)));
+        }
+        DnuTutorConnect.Student[] students = new DnuTutorConnect.Student[64];
+        for (int i = 0; i < students.length; i++) {
+            students[i] = service.registerStudent("Student " + i, "stress.student" + i + "@dnu.edu.vn", null);
+        }
+
+        LongAdder created = new LongAdder(), clashes = new LongAdder(), confirmed = new LongAdder(), cancelled = new LongAdder();
+        AtomicLongArray rated = new AtomicLongArray(tutors.length * 6); // [tutor * 6 + score]
+        Set<Long> paid = ConcurrentHashMap.newKeySet();
+        Queue<CompletableFuture<DnuTutorConnect.Transaction>> charges = new ConcurrentLinkedQueue<>();
+        DnuPayments payments = new DnuPayments(service, batch -> Collections.nCopies(batch.size(), DnuPayments.Result.approved()),
+                64, 1, 2, 1_000_000, 60_000);
+        List<Thread> workers = new ArrayList<>();
+        for (int k = 0; k < threads; k++) {
+            SplittableRandom random = new SplittableRandom(k);
+            int thread = k;
+            workers.add(new Thread(() -> {
+                for (int op = 0; op < 50_000; op++) {
+                    int dice = random.nextInt(10);
+                    if (dice == 0) {
+                        int t = random.nextInt(tutors.length), score = 1 + random.nextInt(5);
+                        service.addRating(students[random.nextInt(students.length)], tutors[t], score, "");
+                        rated.incrementAndGet(t * 6 + score);
+                        continue;
+                    }
+                    if (dice < 5) {
+                        try {
+                            // half-hour starts and 60/90 minute sessions: most attempts clash
+                            service.createBooking(students[random.nextInt(students.length)], tutors[random.nextInt(tutors.length)],
+                                    subject, EPOCH.plusMinutes(30L * random.nextInt(2_000)), 60 + 30 * random.nextInt(2));
+                            created.increment();
+                        } catch (IllegalStateException e) {
+                            clashes.increment();
+                        }
+                        continue;
+                    }
+                    List<DnuTutorConnect.Booking> visible = service.snapshot().bookings();
+                    if (visible.isEmpty()) continue;
+                    DnuTutorConnect.Booking b = visible.get(random.nextInt(visible.size()));
+                    if (dice == 5) {
+                        paid.add(b.getId());
+                        service.createTransaction(b, 100, "stress");
+                    } else if (dice == 6) {
+                        paid.add(b.getId());
+                        charges.add(payments.charge("stress-" + thread + "-" + op, b, 100, "stress"));
+                    } else if (dice < 9) {
+                        if (service.confirmBooking(b)) confirmed.increment();
+                    } else if (service.cancelBooking(b)) {
+                        cancelled.increment();
+                    }
+                }
+            }));
+        }
+        for (Thread w : workers) w.start();
+        for (Thread w : workers) w.join();
+        for (CompletableFuture<DnuTutorConnect.Transaction> charge : charges) charge.get();
+        payments.close();
+
+        List<DnuTutorConnect.Booking> bookings = service.listAllBookings();
+        if (bookings.size() != created.sum()) throw new IllegalStateException(created.sum() + " bookings created, " + bookings.size() + " stored");
+        long[] byStatus = new long[DnuTutorConnect.BookingStatus.values().length];
+        for (DnuTutorConnect.Booking b : bookings) byStatus[b.getStatus().ordinal()]++;
+        for (DnuTutorConnect.BookingStatus status : DnuTutorConnect.BookingStatus.values()) {
+            long inSnapshot = service.snapshot().bookings(status).size(), inStats = service.getStats().getBookings(status);
+            if (inSnapshot != byStatus[status.ordinal()] || inStats != byStatus[status.ordinal()]) {
+                throw new IllegalStateException(status + ": " + byStatus[status.ordinal()] + " bookings, "
+                        + inSnapshot + " in the snapshot, " + inStats + " in stats");
+            }
+        }
+        if (byStatus[DnuTutorConnect.BookingStatus.CANCELLED.ordinal()] != cancelled.sum()) {
+            throw new IllegalStateException(cancelled.sum() + " cancels succeeded, "
+                    + byStatus[DnuTutorConnect.BookingStatus.CANCELLED.ordinal()] + " bookings cancelled");
+        }
+        if (byStatus[DnuTutorConnect.BookingStatus.CONFIRMED.ordinal()] > confirmed.sum()) {
+            throw new IllegalStateException(confirmed.sum() + " confirms succeeded, more bookings confirmed");
+        }
+        long listed = 0;
+        for (DnuTutorConnect.Tutor t : tutors) {
+            List<DnuTutorConnect.Booking> live = new ArrayList<>();
+            for (DnuTutorConnect.Booking b : service.bookingsOf(t)) {
+                listed++;
+                if (b.getStatus() != DnuTutorConnect.BookingStatus.CANCELLED) live.add(b);
+            }
+            live.sort(Comparator.comparing(DnuTutorConnect.Booking::getScheduleTime));
+            for (int i = 1; i < live.size(); i++) {
+                if (live.get(i).getScheduleTime().isBefore(live.get(i - 1).getScheduleTime().plusMinutes(live.get(i - 1).getDurationMinutes()))) {
+                    throw new IllegalStateException("double booking: " + live.get(i - 1) + " and " + live.get(i));
+                }
+            }
+        }
+        if (listed != bookings.size()) throw new IllegalStateException(listed + " bookings in the tutors' lists, " + bookings.size() + " stored");
+
+        long ratings = 0;
+        for (int t = 0; t < tutors.length; t++) {
+            long count = 0, sum = 0;
+            for (int score = 1; score <= 5; score++) {
+                long n = rated.get(t * 6 + score);
+                if (tutors[t].getRatingCount(score) != n) {
+                    throw new IllegalStateException(tutors[t].name + ": " + tutors[t].getRatingCount(score) + " ratings of " + score + ", " + n + " submitted");
+                }
+                count += n;
+                sum += n * score;
+            }
+            if (tutors[t].getRatingCount() != count || tutors[t].getRatingsReceived().size() != count
+                    || Math.abs(tutors[t].getAverageRating() * count - sum) > 1e-6 * Math.max(1, sum)) {
+                throw new IllegalStateException(tutors[t].name + ": " + tutors[t].getRatingCount() + " ratings averaging "
+                        + tutors[t].getAverageRating() + ", " + count + " submitted summing to " + sum);
+            }
+            ratings += count;
+        }
+
+        Map<Long, Integer> paidTransactions = new HashMap<>();
+        for (DnuTutorConnect.Transaction tx : service.listAllTransactions()) {
+            if (tx.getStatus() == DnuTutorConnect.TransactionStatus.PAID) paidTransactions.merge(tx.getBooking().getId(), 1, Integer::sum);
+        }
+        for (DnuTutorConnect.Booking b : bookings) {
+            int n = paidTransactions.getOrDefault(b.getId(), 0);
+            if (n != (paid.contains(b.getId()) ? 1 : 0)) throw new IllegalStateException(b + " has " + n + " PAID transactions");
+        }
+        if (service.getStats().getRevenue() != 100.0 * paid.size()) {
+            throw new IllegalStateException("revenue " + service.getStats().getRevenue() + " for " + paid.size() + " paid bookings");
+        }
+        System.out.printf("# booking stress on %d threads: %d created, %d clashes, %d confirmed, %d cancelled, %d ratings, %d paid, ok in %.1f s%n",
+                threads, created.sum(), clashes.sum(), confirmed.sum(), cancelled.sum(), ratings, paid.size(), (System.nanoTime() - started) / 1e9);
+    }
+
+    /*
+     * Half the threads create bookings while the other half confirm (or cancel) each one as soon
+     * as a snapshot shows it, i.e. while its creation may still be journaled and published.
+     * Checks that no transition event reaches a subscriber before its booking's creation, then
+     * reopens the journal into a fresh service (replay rejects a status record logged before
+     * its booking) and compares every status.
+     */
+    static void checkCreateConfirmReopen(int threads) throws IOException, InterruptedException {
+        long started = System.nanoTime();
+        Path dir = Files.createTempDirectory("dnu-check");
+        DnuTutorConnect.DnuService service = new DnuTutorConnect.DnuService();
+        DnuJournal journal = DnuJournal.open(dir, service, 1, 1 << 20);
+        DnuEventBus bus = new DnuEventBus(1 << 16, DnuEventBus.OverflowPolicy.BLOCK);
+        Set<Long> created = ConcurrentHashMap.newKeySet();
+        LongAdder outOfOrder = new LongAdder();
+        bus.subscribe("check", batch -> {
+            for (DnuEventBus.Event e : batch) {
+                if (!(e.getPayload() instanceof DnuTutorConnect.Booking)) continue;
+                long id = ((DnuTutorConnect.Booking) e.getPayload()).getId();
+                if (e.getType() == DnuEventBus.Type.BOOKING_CREATED) created.add(id);
+                else if (!created.contains(id)) outOfOrder.increment();
+            }
+        });
+        service.setEventBus(bus);
+
+        int creators = Math.max(1, threads / 2), perCreator = 20_000, total = creators * perCreator;
+        DnuTutorConnect.Subject subject = service.createOrGetSubject("Toan");
+        DnuTutorConnect.Tutor[] tutors = new DnuTutorConnect.Tutor[creators * 4];
+        for (int i = 0; i < tutors.length; i++) {
+            tutors[i] = service.registerTutor("Tutor " + i, "check.tutor" + i + "@dnu.edu.vn", null, 150_000, "");
+            tutors[i].addSubject(subject);
+            tutors[i].addAvailability(EPOCH.toLocalDate(), new DnuTutorConnect.TimeSlot(EPOCH, EPOCH.plusYears(100)));
+        }
+        DnuTutorConnect.Student student = service.registerStudent("Student", "check.student@dnu.edu.vn", null);
+
+        AtomicInteger claimed = new AtomicInteger();
+        List<Thread> workers = new ArrayList<>();
+        for (int k = 0; k < creators; k++) {
+            int first = k * 4;
+            workers.add(new Thread(() -> {
+                for (int j = 0; j < perCreator; j++) {
+                    service.createBooking(student, tutors[first + j % 4], subject, EPOCH.plusHours(j / 4), 60);
+                }
+            }));
+        }
+        for (int k = 0; k < Math.max(1, threads - creators); k++) {
+            workers.add(new Thread(() -> {
+                for (int i; (i = claimed.getAndIncrement()) < total; ) {
+                    List<DnuTutorConnect.Booking> visible;
+                    while ((visible = service.snapshot().bookings()).size() <= i) Thread.onSpinWait();
+                    DnuTutorConnect.Booking b = visible.get(i);
+                    if (i % 3 == 0) service.cancelBooking(b); else service.confirmBooking(b);
+                }
+            }));
+        }
+        for (Thread w : workers) w.start();
+        for (Thread w : workers) w.join();
+        bus.close();
+        journal.close();
+        if (outOfOrder.sum() != 0) throw new IllegalStateException(outOfOrder.sum() + " transition events before their booking's creation");
+
+        DnuTutorConnect.DnuService copy = new DnuTutorConnect.DnuService();
+        DnuJournal.open(dir, copy).close();
+        List<DnuTutorConnect.Booking> bookings = service.listAllBookings();
+        if (bookings.size() != total || copy.listAllBookings().size() != total) {
+            throw new IllegalStateException("expected " + total + " bookings, reopened " + copy.listAllBookings().size());
+        }
+        for (DnuTutorConnect.Booking b : bookings) {
+            DnuTutorConnect.Booking other = copy.findBooking(b.getId()).orElseThrow(() -> new IllegalStateException("lost " + b));
+            if (other.getStatus() != b.getStatus()) throw new IllegalStateException("reopened " + other + ", was " + b.getStatus());
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path f : (Iterable<Path>) files::iterator) Files.delete(f);
+        }
+        Files.delete(dir);
+        System.out.printf("# create+confirm+reopen on %d threads: %d bookings, ok in %.1f s%n",
+                threads, total, (System.nanoTime() - started) / 1e9);
+    }
+
+    /*
+     * A draft booking, or a booking or user of another service, must be rejected before anything
+     * is journaled: its record would reference entities the log does not have, and reopening
+     * the journal would fail.
+     */
+    static void checkForeignEntitiesRejected() throws IOException {
+        Path dir = Files.createTempDirectory("dnu-check");
+        DnuTutorConnect.DnuService service = new DnuTutorConnect.DnuService(), other = new DnuTutorConnect.DnuService();
+        DnuJournal journal = DnuJournal.open(dir, service);
+        DnuTutorConnect.Subject subject = service.createOrGetSubject("Toan");
+        DnuTutorConnect.Tutor tutor = service.registerTutor("Tutor", "foreign.tutor@dnu.edu.vn", null, 150_000, "");
+        tutor.addSubject(subject);
+        tutor.addAvailability(EPOCH.toLocalDate(), new DnuTutorConnect.TimeSlot(EPOCH, EPOCH.plusDays(1)));
+        DnuTutorConnect.Student student = service.registerStudent("Student", "foreign.student@dnu.edu.vn", null);
+        DnuTutorConnect.Booking own = service.createBooking(student, tutor, subject, EPOCH, 60);
+
+        DnuTutorConnect.Subject otherSubject = other.createOrGetSubject("Toan");
+        DnuTutorConnect.Tutor otherTutor = other.registerTutor("Tutor", "foreign.tutor@dnu.edu.vn", null, 150_000, "");
+        otherTutor.addSubject(otherSubject);
+        otherTutor.addAvailability(EPOCH.toLocalDate(), new DnuTutorConnect.TimeSlot(EPOCH, EPOCH.plusDays(1)));
+        DnuTutorConnect.Student otherStudent = other.registerStudent("Student", "foreign.student@dnu.edu.vn", null);
+        DnuTutorConnect.Booking foreign = other.createBooking(otherStudent, otherTutor, otherSubject, EPOCH, 60);
+        DnuTutorConnect.Booking draft = new DnuTutorConnect.Booking(student, tutor, subject, EPOCH.plusHours(2), 60);
+
+        Map<String, Runnable> calls = new LinkedHashMap<>();
+        calls.put("confirm draft", () -> service.confirmBooking(draft));
+        calls.put("cancel foreign booking", () -> service.cancelBooking(foreign));
+        calls.put("batch with a foreign booking", () -> service.changeStatuses(List.of(own, foreign), DnuTutorConnect.BookingStatus.CONFIRMED));
+        calls.put("pay foreign booking", () -> service.createTransaction(foreign, 100_000, "CARD"));
+        calls.put("pay draft", () -> service.createTransaction(draft, 100_000, "CARD"));
+        calls.put("rate foreign tutor", () -> service.addRating(student, otherTutor, 5, ""));
+        calls.put("book foreign student", () -> service.createBooking(otherStudent, tutor, subject, EPOCH.plusHours(4), 60));
+        for (Map.Entry<String, Runnable> call : calls.entrySet()) {
+            try {
+                call.getValue().run();
+                throw new IllegalStateException(call.getKey() + " was accepted");
+            } catch (IllegalArgumentException expected) {
+                // rejected before it was applied or journaled
+            }
+        }
+        if (own.getStatus() != DnuTutorConnect.BookingStatus.PENDING) throw new IllegalStateException("rejected batch moved " + own);
+        service.confirmBooking(own);
+        journal.close();
+
+        DnuTutorConnect.DnuService copy = new DnuTutorConnect.DnuService();
+        DnuJournal.open(dir, copy).close();
+        if (copy.findBooking(own.getId()).map(DnuTutorConnect.Booking::getStatus).orElse(null) != DnuTutorConnect.BookingStatus.CONFIRMED) {
+            throw new IllegalStateException("reopened journal lost " + own);
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path f : (Iterable<Path>) files::iterator) Files.delete(f);
+        }
+        Files.delete(dir);
+        System.out.printf("# foreign entities: %d calls rejected, journal reopens%n", calls.size());
+    }
+
+    /* =======================
+       Footprint
+       ======================= */
+
+    // n one-hour bookings over 2,000 tutors and 8,000 students; every tenth cancelled, a third of the rest confirmed
+    static void measureFootprint(int n) {
+        DnuTutorConnect.DnuService service = new DnuTutorConnect.DnuService();
+        DnuTutorConnect.Subject subject = service.createOrGetSubject("Toan");
+        DnuTutorConnect.Tutor[] tutors = new DnuTutorConnect.Tutor[2_000];
+        DnuTutorConnect.Student[] students = new DnuTutorConnect.Student[8_000];
+        for (int i = 0; i < tutors.length; i++) {
+            tutors[i] = service.registerTutor("Tutor " + i, "tutor" + i + "@dnu.edu.vn", null, 150_000, "");
+            tutors[i].addSubject(subject);
+            tutors[i].addAvailability(EPOCH.toLocalDate(), new DnuTutorConnect.TimeSlot(EPOCH, EPOCH.plusYears(200)));
+        }
+        for (int i = 0; i < students.length; i++) {
+            students[i] = service.registerStudent("Student " + i, "student" + i + "@dnu.edu.vn", null);
+        }
+        long before = liveHeap();
+        long[] gcBefore = gcTotals();
+        long started = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            DnuTutorConnect.Booking b = service.createBooking(students[i % students.length], tutors[i % tutors.length],
+                    subject, EPOCH.plusHours(i / tutors.length), 60);
+            if (i % 10 == 0) service.cancelBooking(b);
+            else if (i % 3 == 0) service.confirmBooking(b);
+        }
+        double loadSeconds = (System.nanoTime() - started) / 1e9;
+        long[] gcLoad = gcTotals();
+        long live = liveHeap() - before;
+        long[] gcFull = gcTotals();
+        System.gc();
+        long fullPause = gcTotals()[1] - gcFull[1];
+        System.out.printf("# footprint: %,d bookings, %.1f bytes per booking (%,d MB live)%n", n, (double) live / n, live >> 20);
+        System.out.printf("#   load %.1f s, %d collections, %,d ms in GC; full GC with all live: %,d ms%n",
+                loadSeconds, gcLoad[0] - gcBefore[0], gcLoad[1] - gcBefore[1], fullPause);
+        Reference.reachabilityFence(service);
+    }
+
+    // Heap in use after full collections
+    static long liveHeap() {
+        for (int i = 0; i < 3; i++) System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    // {collections, milliseconds} over all collectors so far
+    static long[] gcTotals() {
+        long[] totals = new long[2];
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            totals[0] += Math.max(0, gc.getCollectionCount());
+            totals[1] += Math.max(0, gc.getCollectionTime());
+        }
+        return totals;
+    }
+
+    /* =======================
+       Helpers
+       ======================= */
+
+    static double[] zipfCdf(int n, double exponent) {
+        double[] cdf = new double[n];
+        double total = 0;
+        for (int i = 0; i < n; i++) cdf[i] = total += 1 / Math.pow(i + 1, exponent);
+        for (int i = 0; i < n; i++) cdf[i] /= total;
+        return cdf;
+    }
+
+    static int sample(double[] cdf, SplittableRandom random) {
+        int i = Arrays.binarySearch(cdf, random.nextDouble());
+        return Math.min(i >= 0 ? i : -i - 1, cdf.length - 1);
+    }
+
+    static double mean(double[] xs) {
+        double sum = 0;
+        for (double x : xs) sum += x;
+        return sum / xs.length;
+    }
+
+    // Half-width of a 99.9% confidence interval (normal approximation), as JMH reports scoreError
+    static double error(double[] xs, double mean) {
+        if (xs.length < 2) return Double.NaN;
+        double squares = 0;
+        for (double x : xs) squares += (x - mean) * (x - mean);
+        return 3.291 * Math.sqrt(squares / (xs.length - 1)) / Math.sqrt(xs.length);
+    }
+
+    static String toJson(String name, int users, int threads, int warmup, int iterations, long millis,
+                         double score, double error, double[] raw) {
+        StringBuilder rawData = new StringBuilder();
+        for (double x : raw) rawData.append(rawData.length() == 0 ? "" : ", ").append(number(x));
+        return "  {\n"
+                + "    \"benchmark\": \"DnuBenchmark." + name + "\",\n"
+                + "    \"mode\": \"thrpt\",\n"
+                + "    \"threads\": " + threads + ",\n"
+                + "    \"forks\": 1,\n"
+                + "    \"jvm\": \"" + System.getProperty("java.home").replace("\\", "\\\\") + "\",\n"
+                + "    \"jdkVersion\": \"" + System.getProperty("java.version") + "\",\n"
+                + "    \"warmupIterations\": " + warmup + ",\n"
+                + "    \"warmupTime\": \"" + millis + " ms\",\n"
+                + "    \"measurementIterations\": " + iterations + ",\n"
+                + "    \"measurementTime\": \"" + millis + " ms\",\n"
+                + "    \"params\": { \"users\": \"" + users + "\" },\n"
+                + "    \"primaryMetric\": {\n"
+                + "      \"score\": " + number(score) + ",\n"
+                + "      \"scoreError\": " + number(error) + ",\n"
+                + "      \"scoreUnit\": \"ops/s\",\n"
+                + "      \"rawData\": [[" + rawData + "]]\n"
+                + "    }\n"
+                + "  }";
+    }
+
+    private static String number(double x) { return Double.isFinite(x) ? String.format(Locale.ROOT, "%.3f", x) : "\"NaN\""; }
+
+    static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) throw new IllegalArgumentException("expected --name=value: " + arg);
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        return options;
+    }
+
+    static int[] ints(String csv) {
+        return Arrays.stream(csv.split(",")).map(String::trim).mapToInt(Integer::parseInt).toArray();
+    }
+}
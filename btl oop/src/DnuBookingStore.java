@@ -0,0 +1,339 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Columnar storage of one DnuService's bookings. Each booking is a row: its id, the ordinals
+ * of its student, tutor and subject, its start (epoch second and nano), duration, state and
+ * transaction sit in parallel primitive arrays, in chunks of 16K rows that never move once
+ * allocated. A Booking is a small view of a row (or a draft until a service adds it), made
+ * when asked for and dropped after, so millions of bookings cost the collector a few hundred
+ * arrays to trace rather than several objects each, and about a third of the heap.
+ *
+ * Per user, the store keeps the rows of its bookings (a posting list, in booking order) and,
+ * for a tutor, its scheduled (non-cancelled) bookings sorted by start, which never overlap:
+ * a tutor's calendar is two primitive arrays instead of a tree of boxed entries.
+ *
+ * add() and publish() are serialized; the caller holds the users' lock stripes, which also
+ * guard the per-user lists and calendars. Column reads take no lock: a row's fields are written
+ * before it is committed to a snapshot or published by id, and its state, transitions and
+ * transaction are read and written through VarHandles.
+ */
+public final class DnuBookingStore {
+
+    private static final int CHUNK_BITS = 14, CHUNK = 1 << CHUNK_BITS, MASK = CHUNK - 1;
+    private static final VarHandle BYTES = MethodHandles.arrayElementVarHandle(byte[].class);
+    private static final VarHandle INTS = MethodHandles.arrayElementVarHandle(int[].class);
+    private static final VarHandle OBJECTS = MethodHandles.arrayElementVarHandle(Object[].class);
+
+    /*
+     * Open-addressing index from an id to a row or ordinal. A slot holds only value + 1 (0 is
+     * free) and keys are compared through idOf, so a slot costs 4 bytes. Slots are written with
+     * release and read with acquire after the value's columns, and a grown table is filled
+     * before it is published, so lookups take no lock.
+     */
+    private abstract static class IdTable {
+        private volatile int[] slots = new int[64];
+        private int size;
+
+        abstract long idOf(int value);
+
+        int find(long id) {
+            int[] s = slots;
+            for (int i = slot(id, s.length); ; i = (i + 1) & (s.length - 1)) {
+                int v = (int) INTS.getAcquire(s, i);
+                if (v == 0) return -1;
+                if (idOf(v - 1) == id) return v - 1;
+            }
+        }
+
+        // Caller holds the store's lock and has checked that id is absent
+        void add(long id, int value) {
+            int[] s = slots;
+            if ((size + 1) * 4 > s.length * 3) {
+                int[] grown = new int[s.length * 2];
+                for (int v : s) if (v != 0) insert(grown, idOf(v - 1), v);
+                slots = s = grown;
+            }
+            insert(s, id, value + 1);
+            size++;
+        }
+
+        private static void insert(int[] s, long id, int v) {
+            int i = slot(id, s.length);
+            while (s[i] != 0) i = (i + 1) & (s.length - 1);
+            INTS.setRelease(s, i, v);
+        }
+
+        private static int slot(long id, int capacity) {
+            return (int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & (capacity - 1);
+        }
+    }
+
+    /*
+     * One user's bookings: every row, in booking order, and (tutors) the scheduled ones by
+     * start minute. Written and read under the user's lock stripe.
+     */
+    final class UserBookings {
+        private int[] rows = NO_ROWS;
+        private int count;
+        private long[] starts = NO_STARTS;
+        private int[] scheduled = NO_ROWS;
+        private int active;
+
+        private void add(int row) {
+            if (count == rows.length) rows = Arrays.copyOf(rows, Math.max(4, count * 2));
+            rows[count++] = row;
+        }
+
+        private void schedule(long start, int row) {
+            int i = lower(start) + 1;
+            if (active == starts.length) {
+                starts = Arrays.copyOf(starts, Math.max(4, active * 2));
+                scheduled = Arrays.copyOf(scheduled, starts.length);
+            }
+            System.arraycopy(starts, i, starts, i + 1, active - i);
+            System.arraycopy(scheduled, i, scheduled, i + 1, active - i);
+            starts[i] = start;
+            scheduled[i] = row;
+            active++;
+        }
+
+        private void unschedule(long start, int row) {
+            int i = lower(start) + 1;
+            while (i < active && starts[i] == start && scheduled[i] != row) i++;
+            if (i == active || starts[i] != start) return;
+            System.arraycopy(starts, i + 1, starts, i, active - i - 1);
+            System.arraycopy(scheduled, i + 1, scheduled, i, active - i - 1);
+            active--;
+        }
+
+        // Scheduled bookings, by start
+        int scheduled() { return active; }
+        long startAt(int i) { return starts[i]; }
+        long endAt(int i) { return starts[i] + duration(scheduled[i]); }
+        int rowAt(int i) { return scheduled[i]; }
+
+        // Index of the last scheduled booking starting before minute, or -1
+        int lower(long minute) {
+            int lo = 0, hi = active - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (starts[mid] < minute) lo = mid + 1; else hi = mid - 1;
+            }
+            return hi;
+        }
+    }
+
+    private static final int[] NO_ROWS = new int[0];
+    private static final long[] NO_STARTS = new long[0];
+
+    // Columns, per row; chunks are allocated on first use and never copied
+    private volatile long[][] ids = new long[16][];
+    private volatile int[][] students = new int[16][], tutors = new int[16][], subjects = new int[16][];
+    private volatile long[][] startSeconds = new long[16][];
+    private volatile int[][] nanos = new int[16][], durations = new int[16][];
+    private volatile byte[][] states = new byte[16][]; // Booking's (transitions << 4) | status ordinal
+    private volatile byte[][] turns = new byte[16][]; // transitions whose side effects are done
+    private volatile Object[][] transactions = new Object[16][];
+    private volatile int size;
+
+    // Users and subjects by ordinal; arrays are replaced when they grow
+    private volatile DnuTutorConnect.User[] users = new DnuTutorConnect.User[64];
+    private volatile UserBookings[] bookingsOfUser = new UserBookings[64];
+    private volatile DnuTutorConnect.Subject[] subjectsByOrdinal = new DnuTutorConnect.Subject[16];
+    private int userCount, subjectCount;
+    private final UserBookings none = new UserBookings();
+
+    private final IdTable rowsById = new IdTable() {
+        @Override long idOf(int row) { return id(row); }
+    };
+    private final IdTable userOrdinals = new IdTable() {
+        @Override long idOf(int ordinal) { return users[ordinal].getId(); }
+    };
+    private final IdTable subjectOrdinals = new IdTable() {
+        @Override long idOf(int ordinal) { return subjectsByOrdinal[ordinal].getId(); }
+    };
+
+    /* =======================
+       Writes (DnuService)
+       ======================= */
+
+    /*
+     * Appends b (a draft) as the next row, with its current state and transaction, and adds it
+     * to its users' lists and, if scheduled, to the tutor's calendar. b becomes a view of the
+     * row. Caller holds both users' lock stripes; b is found by id only after publish(b).
+     */
+    synchronized int add(DnuTutorConnect.Booking b, boolean scheduled) {
+        if (b.isAttached()) throw new IllegalArgumentException("booking " + b.getId() + " already added");
+        int row = size, chunk = row >>> CHUNK_BITS, i = row & MASK;
+        if (chunk == ids.length) grow(chunk * 2);
+        if (ids[chunk] == null) allocate(chunk);
+        LocalDateTime time = b.getScheduleTime();
+        int student = userOrdinal(b.getStudent()), tutor = userOrdinal(b.getTutor());
+        ids[chunk][i] = b.getId();
+        students[chunk][i] = student;
+        tutors[chunk][i] = tutor;
+        subjects[chunk][i] = subjectOrdinal(b.getSubject());
+        startSeconds[chunk][i] = time.toEpochSecond(ZoneOffset.UTC);
+        nanos[chunk][i] = time.getNano();
+        durations[chunk][i] = b.getDurationMinutes();
+        states[chunk][i] = (byte) b.state();
+        turns[chunk][i] = (byte) (b.transitionsApplied() - 1); // until the service emits the creation
+        transactions[chunk][i] = b.getTransaction();
+        size = row + 1;
+        bookingsOfUser[student].add(row);
+        bookingsOfUser[tutor].add(row);
+        if (scheduled) bookingsOfUser[tutor].schedule(startMinute(row), row);
+        b.attach(this, row);
+        return row;
+    }
+
+    // Makes b findable by id; called once b is committed
+    synchronized void publish(DnuTutorConnect.Booking b) {
+        rowsById.add(b.getId(), b.rowIn(this));
+    }
+
+    // Frees b's slot in its tutor's calendar (cancellation); caller holds the tutor's lock
+    void unschedule(DnuTutorConnect.Booking b) {
+        int row = b.rowIn(this);
+        if (row >= 0) bookingsOfUser[tutorOrdinal(row)].unschedule(startMinute(row), row);
+    }
+
+    private void grow(int chunks) {
+        ids = Arrays.copyOf(ids, chunks);
+        students = Arrays.copyOf(students, chunks);
+        tutors = Arrays.copyOf(tutors, chunks);
+        subjects = Arrays.copyOf(subjects, chunks);
+        startSeconds = Arrays.copyOf(startSeconds, chunks);
+        nanos = Arrays.copyOf(nanos, chunks);
+        durations = Arrays.copyOf(durations, chunks);
+        states = Arrays.copyOf(states, chunks);
+        turns = Arrays.copyOf(turns, chunks);
+        transactions = Arrays.copyOf(transactions, chunks);
+    }
+
+    private void allocate(int chunk) {
+        ids[chunk] = new long[CHUNK];
+        students[chunk] = new int[CHUNK];
+        tutors[chunk] = new int[CHUNK];
+        subjects[chunk] = new int[CHUNK];
+        startSeconds[chunk] = new long[CHUNK];
+        nanos[chunk] = new int[CHUNK];
+        durations[chunk] = new int[CHUNK];
+        states[chunk] = new byte[CHUNK];
+        turns[chunk] = new byte[CHUNK];
+        transactions[chunk] = new Object[CHUNK];
+    }
+
+    // Caller holds the store's lock
+    private int userOrdinal(DnuTutorConnect.User u) {
+        int ordinal = userOrdinals.find(u.getId());
+        if (ordinal >= 0) return ordinal;
+        ordinal = userCount++;
+        if (ordinal == users.length) {
+            bookingsOfUser = Arrays.copyOf(bookingsOfUser, ordinal * 2);
+            users = Arrays.copyOf(users, ordinal * 2);
+        }
+        users[ordinal] = u;
+        bookingsOfUser[ordinal] = new UserBookings();
+        userOrdinals.add(u.getId(), ordinal);
+        return ordinal;
+    }
+
+    private int subjectOrdinal(DnuTutorConnect.Subject s) {
+        int ordinal = subjectOrdinals.find(s.getId());
+        if (ordinal >= 0) return ordinal;
+        ordinal = subjectCount++;
+        if (ordinal == subjectsByOrdinal.length) subjectsByOrdinal = Arrays.copyOf(subjectsByOrdinal, ordinal * 2);
+        subjectsByOrdinal[ordinal] = s;
+        subjectOrdinals.add(s.getId(), ordinal);
+        return ordinal;
+    }
+
+    /* =======================
+       Reads
+       ======================= */
+
+    // Rows added so far
+    public int size() { return size; }
+
+    // A view of row
+    DnuTutorConnect.Booking view(int row) { return new DnuTutorConnect.Booking(this, row, id(row)); }
+
+    // A view of the published booking with this id, or null
+    DnuTutorConnect.Booking find(long id) {
+        int row = rowsById.find(id);
+        return row < 0 ? null : view(row);
+    }
+
+    // Copy of u's bookings, in booking order; caller holds u's lock
+    List<DnuTutorConnect.Booking> bookingsOf(DnuTutorConnect.User u) {
+        UserBookings booked = bookingsOf(u.getId());
+        List<DnuTutorConnect.Booking> copy = new ArrayList<>(booked.count);
+        for (int i = 0; i < booked.count; i++) copy.add(view(booked.rows[i]));
+        return copy;
+    }
+
+    // t's calendar (empty if t has no bookings here); caller holds t's lock while using it
+    UserBookings calendarOf(DnuTutorConnect.Tutor t) { return bookingsOf(t.getId()); }
+
+    private UserBookings bookingsOf(long userId) {
+        int ordinal = userOrdinals.find(userId);
+        return ordinal < 0 ? none : bookingsOfUser[ordinal];
+    }
+
+    // Row of t's scheduled booking overlapping [start, end) in epoch minutes, or -1; caller holds t's lock
+    int overlapping(DnuTutorConnect.Tutor t, long start, long end) {
+        UserBookings booked = calendarOf(t);
+        int i = booked.lower(end); // bookings are disjoint, so only the last one starting before end can overlap
+        return i >= 0 && booked.endAt(i) > start ? booked.rowAt(i) : -1;
+    }
+
+    long id(int row) { return ids[row >>> CHUNK_BITS][row & MASK]; }
+
+    DnuTutorConnect.Student student(int row) {
+        return (DnuTutorConnect.Student) users[students[row >>> CHUNK_BITS][row & MASK]];
+    }
+
+    DnuTutorConnect.Tutor tutor(int row) { return (DnuTutorConnect.Tutor) users[tutorOrdinal(row)]; }
+
+    private int tutorOrdinal(int row) { return tutors[row >>> CHUNK_BITS][row & MASK]; }
+
+    DnuTutorConnect.Subject subject(int row) { return subjectsByOrdinal[subjects[row >>> CHUNK_BITS][row & MASK]]; }
+
+    LocalDateTime scheduleTime(int row) {
+        return LocalDateTime.ofEpochSecond(startSeconds[row >>> CHUNK_BITS][row & MASK],
+                nanos[row >>> CHUNK_BITS][row & MASK], ZoneOffset.UTC);
+    }
+
+    long startMinute(int row) { return Math.floorDiv(startSeconds[row >>> CHUNK_BITS][row & MASK], 60); }
+
+    int duration(int row) { return durations[row >>> CHUNK_BITS][row & MASK]; }
+
+    int state(int row) { return (byte) BYTES.getVolatile(states[row >>> CHUNK_BITS], row & MASK); }
+
+    boolean compareAndSetState(int row, int expected, int next) {
+        return BYTES.compareAndSet(states[row >>> CHUNK_BITS], row & MASK, (byte) expected, (byte) next);
+    }
+
+    int turn(int row) { return (byte) BYTES.getVolatile(turns[row >>> CHUNK_BITS], row & MASK); }
+
+    void setTurn(int row, int ticket) { BYTES.setVolatile(turns[row >>> CHUNK_BITS], row & MASK, (byte) ticket); }
+
+    DnuTutorConnect.Transaction transaction(int row) {
+        return (DnuTutorConnect.Transaction) OBJECTS.getVolatile(transactions[row >>> CHUNK_BITS], row & MASK);
+    }
+
+    void setTransaction(int row, DnuTutorConnect.Transaction tx) {
+        OBJECTS.setVolatile(transactions[row >>> CHUNK_BITS], row & MASK, tx);
+    }
+
+    @Override public String toString() {
+        return String.format("DnuBookingStore{bookings=%d, users=%d, subjects=%d}", size, userCount, subjectCount);
+    }
+}
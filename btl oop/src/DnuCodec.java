@@ -0,0 +1,548 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Compact, schema-versioned binary encoding of the domain entities, for export, replication
+ * and portable snapshots (the write-ahead log keeps its own record format).
+ *
+ * Every entity is [byte tag][byte schemaVersion][varint bodyLength][body]. Integers are
+ * LEB128 varints (signed ones zigzag-encoded), strings are [varint length + 1][UTF-8] with 0
+ * for null, times are epoch seconds (UTC) plus nanos, and entities refer to each other by id.
+ * A reader skips body bytes it does not know, so later versions may append fields; it rejects
+ * a schema version newer than its own.
+ *
+ * Writer and Reader are reusable and not thread-safe: keep one per thread. Encoding allocates
+ * nothing once the buffer has grown; decoding allocates the entity and its strings.
+ */
+public final class DnuCodec {
+
+    public static final int SCHEMA_VERSION = 1;
+    private static final int EXPORT_MAGIC = 0x444E5558; // "DNUX"
+
+    static final byte USER = 1, SUBJECT = 2, REQUEST = 3, BOOKING = 4, RATING = 5, TRANSACTION = 6;
+
+    private static final DnuTutorConnect.Role[] ROLES = DnuTutorConnect.Role.values();
+    private static final DnuTutorConnect.RequestStatus[] REQUEST_STATUSES = DnuTutorConnect.RequestStatus.values();
+    private static final DnuTutorConnect.BookingStatus[] BOOKING_STATUSES = DnuTutorConnect.BookingStatus.values();
+    private static final DnuTutorConnect.TransactionStatus[] TRANSACTION_STATUSES = DnuTutorConnect.TransactionStatus.values();
+
+    private DnuCodec() {}
+
+    // Turns ids back into entities while decoding
+    public interface Resolver {
+        DnuTutorConnect.User user(long id);
+        DnuTutorConnect.Subject subject(long id);
+        DnuTutorConnect.Booking booking(long id);
+    }
+
+    // Resolves against a service's current state; unknown ids are rejected
+    public static Resolver resolver(DnuTutorConnect.DnuService service) {
+        return new Resolver() {
+            @Override public DnuTutorConnect.User user(long id) {
+                return service.findUser(id).orElseThrow(() -> new IllegalArgumentException("unknown user " + id));
+            }
+            @Override public DnuTutorConnect.Subject subject(long id) {
+                return service.findSubject(id).orElseThrow(() -> new IllegalArgumentException("unknown subject " + id));
+            }
+            @Override public DnuTutorConnect.Booking booking(long id) {
+                return service.findBooking(id).orElseThrow(() -> new IllegalArgumentException("unknown booking " + id));
+            }
+        };
+    }
+
+    /* =======================
+       Writer
+       ======================= */
+
+    public static final class Writer {
+        private byte[] buf = new byte[256];
+        private int size;
+        private int bodyStart; // of the entity being written
+        private long[] ids = new long[8]; // scratch for a tutor's subject ids
+
+        public Writer reset() { size = 0; return this; }
+        public int size() { return size; }
+        // Backing array; valid up to size() until the next write
+        public byte[] array() { return buf; }
+        public byte[] toByteArray() { return Arrays.copyOf(buf, size); }
+        public void writeTo(OutputStream out) throws IOException { out.write(buf, 0, size); }
+
+        // Appends any supported entity
+        public Writer write(Object entity) {
+            if (entity instanceof DnuTutorConnect.User) return writeUser((DnuTutorConnect.User) entity);
+            if (entity instanceof DnuTutorConnect.Subject) return writeSubject((DnuTutorConnect.Subject) entity);
+            if (entity instanceof DnuTutorConnect.LearningRequest) return writeRequest((DnuTutorConnect.LearningRequest) entity);
+            if (entity instanceof DnuTutorConnect.Booking) return writeBooking((DnuTutorConnect.Booking) entity);
+            if (entity instanceof DnuTutorConnect.Rating) return writeRating((DnuTutorConnect.Rating) entity);
+            if (entity instanceof DnuTutorConnect.Transaction) return writeTransaction((DnuTutorConnect.Transaction) entity);
+            throw new IllegalArgumentException("not an entity: " + entity);
+        }
+
+        // A tutor's availability is read from the tutor itself; see writeTutor to pass a copy
+        public Writer writeUser(DnuTutorConnect.User u) {
+            if (u instanceof DnuTutorConnect.Tutor) {
+                DnuTutorConnect.Tutor t = (DnuTutorConnect.Tutor) u;
+                return writeTutor(t, t.getAvailability());
+            }
+            begin(USER);
+            writeUserFields(u);
+            return end();
+        }
+
+        // Tutor with the given availability (e.g. DnuService.availabilityOf while others write)
+        public Writer writeTutor(DnuTutorConnect.Tutor t, Map<LocalDate, List<DnuTutorConnect.TimeSlot>> availability) {
+            begin(USER);
+            writeUserFields(t);
+            writeDouble(t.getFeePerHour());
+            writeString(t.getProfileDescription());
+            // sorted, so equal tutors encode to equal bytes whatever the set's iteration order
+            int n = 0;
+            for (DnuTutorConnect.Subject s : t.getSubjects()) {
+                if (n == ids.length) ids = Arrays.copyOf(ids, n * 2);
+                ids[n++] = s.getId();
+            }
+            Arrays.sort(ids, 0, n);
+            writeVarLong(n);
+            for (int i = 0; i < n; i++) writeVarLong(ids[i]);
+            int slots = 0;
+            for (List<DnuTutorConnect.TimeSlot> day : availability.values()) slots += day.size();
+            writeVarLong(slots);
+            for (Map.Entry<LocalDate, List<DnuTutorConnect.TimeSlot>> day : availability.entrySet()) {
+                for (DnuTutorConnect.TimeSlot slot : day.getValue()) {
+                    writeSignedVarLong(day.getKey().toEpochDay());
+                    writeTime(slot.getStart());
+                    writeTime(slot.getEnd());
+                }
+            }
+            return end();
+        }
+
+        private void writeUserFields(DnuTutorConnect.User u) {
+            writeByte(u.getRole().ordinal());
+            writeVarLong(u.getId());
+            writeString(u.getName());
+            writeString(u.getEmail());
+            writeString(u.getPhone());
+        }
+
+        public Writer writeSubject(DnuTutorConnect.Subject s) {
+            begin(SUBJECT);
+            writeVarLong(s.getId());
+            writeString(s.getName());
+            return end();
+        }
+
+        public Writer writeRequest(DnuTutorConnect.LearningRequest lr) {
+            begin(REQUEST);
+            writeVarLong(lr.getId());
+            writeVarLong(lr.getStudent().getId());
+            writeVarLong(lr.getSubject().getId());
+            writeString(lr.getDescription());
+            writeTime(lr.getCreatedAt());
+            writeByte(lr.getStatus().ordinal());
+            Double maxFee = lr.getMaxFee();
+            LocalDateTime preferredStart = lr.getPreferredStart();
+            DnuTutorConnect.Tutor matched = lr.getMatchedTutor();
+            DnuTutorConnect.Booking booking = lr.getBooking();
+            writeByte((maxFee != null ? 1 : 0) | (preferredStart != null ? 2 : 0)
+                    | (matched != null ? 4 : 0) | (booking != null ? 8 : 0));
+            if (maxFee != null) writeDouble(maxFee);
+            if (preferredStart != null) writeTime(preferredStart);
+            writeVarLong(lr.getDurationMinutes());
+            if (matched != null) writeVarLong(matched.getId());
+            if (booking != null) writeVarLong(booking.getId());
+            return end();
+        }
+
+        public Writer writeBooking(DnuTutorConnect.Booking b) {
+            begin(BOOKING);
+            writeVarLong(b.getId());
+            writeVarLong(b.getStudent().getId());
+            writeVarLong(b.getTutor().getId());
+            writeVarLong(b.getSubject().getId());
+            writeTime(b.getScheduleTime());
+            writeVarLong(b.getDurationMinutes());
+            writeByte(b.getStatus().ordinal());
+            return end();
+        }
+
+        public Writer writeRating(DnuTutorConnect.Rating r) {
+            begin(RATING);
+            writeVarLong(r.getId());
+            writeVarLong(r.getStudent().getId());
+            writeVarLong(r.getTutor().getId());
+            writeByte(r.getScore());
+            writeString(r.getComment());
+            writeSignedVarLong(r.getDate().toEpochDay());
+            return end();
+        }
+
+        public Writer writeTransaction(DnuTutorConnect.Transaction tx) {
+            begin(TRANSACTION);
+            writeVarLong(tx.getId());
+            writeVarLong(tx.getBooking().getId());
+            writeDouble(tx.getAmount());
+            writeString(tx.getMethod());
+            writeByte(tx.getStatus().ordinal());
+            writeTime(tx.getCreatedAt());
+            return end();
+        }
+
+        // The body length is not known up front: reserve a 4-byte varint and patch it in end()
+        private void begin(byte tag) {
+            ensure(6);
+            buf[size++] = tag;
+            buf[size++] = (byte) SCHEMA_VERSION;
+            size += 4;
+            bodyStart = size;
+        }
+
+        private Writer end() {
+            int length = size - bodyStart;
+            if (length >= 1 << 28) throw new IllegalArgumentException("entity too large: " + length + " bytes");
+            int at = bodyStart - 4;
+            buf[at] = (byte) (length | 0x80);
+            buf[at + 1] = (byte) ((length >>> 7) | 0x80);
+            buf[at + 2] = (byte) ((length >>> 14) | 0x80);
+            buf[at + 3] = (byte) (length >>> 21);
+            return this;
+        }
+
+        private void ensure(int n) {
+            if (size + n > buf.length) buf = Arrays.copyOf(buf, Math.max(size + n, buf.length * 2));
+        }
+
+        private void writeByte(int b) {
+            ensure(1);
+            buf[size++] = (byte) b;
+        }
+
+        private void writeVarLong(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buf[size++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[size++] = (byte) v;
+        }
+
+        private void writeSignedVarLong(long v) { writeVarLong((v << 1) ^ (v >> 63)); }
+
+        private void writeDouble(double d) {
+            ensure(8);
+            long bits = Double.doubleToRawLongBits(d);
+            for (int i = 0; i < 8; i++) buf[size++] = (byte) (bits >>> (8 * i));
+        }
+
+        private void writeTime(LocalDateTime t) {
+            writeSignedVarLong(t.toEpochSecond(ZoneOffset.UTC));
+            writeVarLong(t.getNano());
+        }
+
+        // UTF-8 straight into the buffer, no intermediate byte[]; a lone surrogate becomes '?'
+        // as with String.getBytes
+        private void writeString(String s) {
+            if (s == null) { writeVarLong(0); return; }
+            int n = s.length(), bytes = 0;
+            for (int i = 0; i < n; i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) bytes++;
+                else if (c < 0x800) bytes += 2;
+                else if (!Character.isSurrogate(c)) bytes += 3;
+                else if (isPair(s, i)) { bytes += 4; i++; }
+                else bytes++;
+            }
+            writeVarLong(bytes + 1L);
+            ensure(bytes);
+            for (int i = 0; i < n; i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    buf[size++] = (byte) c;
+                } else if (c < 0x800) {
+                    buf[size++] = (byte) (0xC0 | (c >> 6));
+                    buf[size++] = (byte) (0x80 | (c & 0x3F));
+                } else if (!Character.isSurrogate(c)) {
+                    buf[size++] = (byte) (0xE0 | (c >> 12));
+                    buf[size++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buf[size++] = (byte) (0x80 | (c & 0x3F));
+                } else if (isPair(s, i)) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    buf[size++] = (byte) (0xF0 | (cp >> 18));
+                    buf[size++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    buf[size++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    buf[size++] = (byte) (0x80 | (cp & 0x3F));
+                } else {
+                    buf[size++] = '?';
+                }
+            }
+        }
+
+        private static boolean isPair(String s, int i) {
+            return Character.isHighSurrogate(s.charAt(i)) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1));
+        }
+    }
+
+    /* =======================
+       Reader
+       ======================= */
+
+    public static final class Reader {
+        private byte[] buf = new byte[0];
+        private int pos, limit;
+
+        public Reader reset(byte[] bytes, int offset, int length) {
+            buf = bytes; pos = offset; limit = offset + length;
+            return this;
+        }
+
+        public boolean hasNext() { return pos < limit; }
+
+        // Decodes the next entity; references are looked up through resolver
+        public Object read(Resolver resolver) {
+            int tag = readByte();
+            int version = readByte();
+            if (version > SCHEMA_VERSION) throw new IllegalArgumentException("unsupported schema version " + version);
+            int length = (int) readVarLong();
+            int end = pos + length;
+            if (length < 0 || end > limit) throw new IllegalArgumentException("truncated entity");
+            int outerLimit = limit;
+            limit = end;
+            Object entity;
+            switch (tag) {
+                case USER: entity = readUser(resolver); break;
+                case SUBJECT: entity = new DnuTutorConnect.Subject(readVarLong(), readString()); break;
+                case REQUEST: entity = readRequest(resolver); break;
+                case BOOKING: {
+                    DnuTutorConnect.Booking b = new DnuTutorConnect.Booking(readVarLong(),
+                            (DnuTutorConnect.Student) resolver.user(readVarLong()),
+                            (DnuTutorConnect.Tutor) resolver.user(readVarLong()), resolver.subject(readVarLong()),
+                            readTime(), (int) readVarLong());
+                    b.setStatus(BOOKING_STATUSES[readByte()]);
+                    entity = b;
+                    break;
+                }
+                case RATING:
+                    entity = new DnuTutorConnect.Rating(readVarLong(), (DnuTutorConnect.Student) resolver.user(readVarLong()),
+                            (DnuTutorConnect.Tutor) resolver.user(readVarLong()), readByte(), readString(),
+                            LocalDate.ofEpochDay(readSignedVarLong()));
+                    break;
+                case TRANSACTION:
+                    entity = new DnuTutorConnect.Transaction(readVarLong(), resolver.booking(readVarLong()),
+                            readDouble(), readString(), TRANSACTION_STATUSES[readByte()], readTime());
+                    break;
+                default: throw new IllegalArgumentException("unknown entity tag " + tag);
+            }
+            pos = end; // skip fields added by later schema versions
+            limit = outerLimit;
+            return entity;
+        }
+
+        @SuppressWarnings("unchecked")
+        public <E> E read(Resolver resolver, Class<E> type) {
+            Object entity = read(resolver);
+            if (!type.isInstance(entity)) throw new IllegalArgumentException("expected " + type.getSimpleName() + ", got " + entity);
+            return (E) entity;
+        }
+
+        private DnuTutorConnect.User readUser(Resolver resolver) {
+            DnuTutorConnect.Role role = ROLES[readByte()];
+            long id = readVarLong();
+            String name = readString(), email = readString(), phone = readString();
+            switch (role) {
+                case STUDENT: return new DnuTutorConnect.Student(id, name, email, phone);
+                case ADMIN: return new DnuTutorConnect.Admin(id, name, email, phone);
+                default: break;
+            }
+            DnuTutorConnect.Tutor t = new DnuTutorConnect.Tutor(id, name, email, phone, readDouble(), readString());
+            for (long n = readVarLong(); n > 0; n--) t.addSubject(resolver.subject(readVarLong()));
+            for (long n = readVarLong(); n > 0; n--) {
+                LocalDate date = LocalDate.ofEpochDay(readSignedVarLong());
+                t.addAvailability(date, new DnuTutorConnect.TimeSlot(readTime(), readTime()));
+            }
+            return t;
+        }
+
+        private DnuTutorConnect.LearningRequest readRequest(Resolver resolver) {
+            long id = readVarLong();
+            DnuTutorConnect.Student student = (DnuTutorConnect.Student) resolver.user(readVarLong());
+            DnuTutorConnect.Subject subject = resolver.subject(readVarLong());
+            String description = readString();
+            LocalDateTime createdAt = readTime();
+            DnuTutorConnect.RequestStatus status = REQUEST_STATUSES[readByte()];
+            int flags = readByte();
+            Double maxFee = (flags & 1) != 0 ? readDouble() : null;
+            LocalDateTime preferredStart = (flags & 2) != 0 ? readTime() : null;
+            int duration = (int) readVarLong();
+            DnuTutorConnect.LearningRequest lr = new DnuTutorConnect.LearningRequest(id, student, subject,
+                    description, createdAt, maxFee, preferredStart, duration);
+            DnuTutorConnect.Tutor matched = (flags & 4) != 0 ? (DnuTutorConnect.Tutor) resolver.user(readVarLong()) : null;
+            DnuTutorConnect.Booking booking = (flags & 8) != 0 ? resolver.booking(readVarLong()) : null;
+            if (matched != null) lr.restoreMatch(matched, booking);
+            lr.setStatus(status);
+            return lr;
+        }
+
+        private int readByte() {
+            if (pos >= limit) throw new IllegalArgumentException("truncated entity");
+            return buf[pos++] & 0xFF;
+        }
+
+        private long readVarLong() {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return v;
+            }
+            throw new IllegalArgumentException("malformed varint");
+        }
+
+        private long readSignedVarLong() {
+            long v = readVarLong();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        private double readDouble() {
+            if (limit - pos < 8) throw new IllegalArgumentException("truncated entity");
+            long bits = 0;
+            for (int i = 0; i < 8; i++) bits |= (long) (buf[pos++] & 0xFF) << (8 * i);
+            return Double.longBitsToDouble(bits);
+        }
+
+        private LocalDateTime readTime() {
+            long seconds = readSignedVarLong();
+            return LocalDateTime.ofEpochSecond(seconds, (int) readVarLong(), ZoneOffset.UTC);
+        }
+
+        private String readString() {
+            long n = readVarLong();
+            if (n == 0) return null;
+            int length = (int) (n - 1);
+            if (length < 0 || limit - pos < length) throw new IllegalArgumentException("truncated entity");
+            String s = new String(buf, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return s;
+        }
+    }
+
+    /* =======================
+       Export / import
+       ======================= */
+
+    /*
+     * Writes every entity of service: [int magic][int schemaVersion], then [int length][entity]
+     * frames in dependency order (subjects, users, bookings, requests, ratings, transactions)
+     * and a 0 length at the end. Writers may keep running: subjects, users, bookings and
+     * requests are those of one DnuSnapshot; a rating or transaction referring to something
+     * created later is left out, so nothing is written before what it refers to.
+     */
+    public static long export(DnuTutorConnect.DnuService service, OutputStream os) throws IOException {
+        DataOutputStream out = new DataOutputStream(os);
+        Writer w = new Writer();
+        DnuTutorConnect.LongHashSet written = new DnuTutorConnect.LongHashSet();
+        long count = 0;
+        out.writeInt(EXPORT_MAGIC);
+        out.writeInt(SCHEMA_VERSION);
+        DnuSnapshot state = service.snapshot();
+        for (DnuTutorConnect.Subject s : state.subjects()) {
+            frame(out, w.reset().writeSubject(s));
+            written.add(s.getId());
+            count++;
+        }
+        List<DnuTutorConnect.Tutor> tutors = new ArrayList<>();
+        for (DnuTutorConnect.User u : state.users()) {
+            if (u instanceof DnuTutorConnect.Tutor) { tutors.add((DnuTutorConnect.Tutor) u); continue; }
+            frame(out, w.reset().writeUser(u));
+            written.add(u.getId());
+            count++;
+        }
+        for (DnuTutorConnect.Tutor t : tutors) {
+            boolean known = true;
+            for (DnuTutorConnect.Subject s : t.getSubjects()) known &= written.contains(s.getId());
+            if (!known) continue;
+            frame(out, w.reset().writeTutor(t, service.availabilityOf(t)));
+            written.add(t.getId());
+            count++;
+        }
+        for (DnuTutorConnect.Booking b : state.bookings()) {
+            if (!written.contains(b.getStudent().getId()) || !written.contains(b.getTutor().getId())
+                    || !written.contains(b.getSubject().getId())) continue;
+            frame(out, w.reset().writeBooking(b));
+            written.add(b.getId());
+            count++;
+        }
+        for (DnuTutorConnect.LearningRequest lr : state.requests()) {
+            if (!written.contains(lr.getStudent().getId()) || !written.contains(lr.getSubject().getId())
+                    || (lr.getMatchedTutor() != null && !written.contains(lr.getMatchedTutor().getId()))
+                    || (lr.getBooking() != null && !written.contains(lr.getBooking().getId()))) continue;
+            frame(out, w.reset().writeRequest(lr));
+            count++;
+        }
+        for (DnuTutorConnect.Tutor t : tutors) {
+            if (!written.contains(t.getId())) continue;
+            for (DnuTutorConnect.Rating r : service.ratingsOf(t)) {
+                if (!written.contains(r.getStudent().getId())) continue;
+                frame(out, w.reset().writeRating(r));
+                count++;
+            }
+        }
+        for (DnuTutorConnect.Transaction tx : service.listAllTransactions()) {
+            if (!written.contains(tx.getBooking().getId())) continue;
+            frame(out, w.reset().writeTransaction(tx));
+            count++;
+        }
+        out.writeInt(0);
+        out.flush();
+        return count;
+    }
+
+    private static void frame(DataOutputStream out, Writer w) throws IOException {
+        out.writeInt(w.size());
+        w.writeTo(out);
+    }
+
+    // Loads an export into service, which should be empty; returns the number of entities read
+    public static long importInto(InputStream is, DnuTutorConnect.DnuService service) throws IOException {
+        DataInputStream in = new DataInputStream(is);
+        if (in.readInt() != EXPORT_MAGIC) throw new IOException("not a DnuCodec export");
+        int version = in.readInt();
+        if (version > SCHEMA_VERSION) throw new IOException("unsupported schema version " + version);
+        Resolver resolver = resolver(service);
+        Reader r = new Reader();
+        byte[] buf = new byte[256];
+        long count = 0;
+        for (int length = in.readInt(); length != 0; length = in.readInt()) {
+            if (length < 0) throw new IOException("corrupt export frame");
+            if (buf.length < length) buf = new byte[Math.max(length, buf.length * 2)];
+            in.readFully(buf, 0, length);
+            Object entity;
+            try {
+                entity = r.reset(buf, 0, length).read(resolver);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("corrupt export frame " + count, e);
+            }
+            if (entity instanceof DnuTutorConnect.Subject) service.restoreSubject((DnuTutorConnect.Subject) entity);
+            else if (entity instanceof DnuTutorConnect.User) service.restoreUser((DnuTutorConnect.User) entity);
+            else if (entity instanceof DnuTutorConnect.Booking) {
+                DnuTutorConnect.Booking b = (DnuTutorConnect.Booking) entity;
+                service.restoreBooking(b, b.getStatus());
+            }
+            else if (entity instanceof DnuTutorConnect.LearningRequest) service.restoreRequest((DnuTutorConnect.LearningRequest) entity);
+            else if (entity instanceof DnuTutorConnect.Rating) service.restoreRating((DnuTutorConnect.Rating) entity);
+            else service.restoreTransaction((DnuTutorConnect.Transaction) entity);
+            count++;
+        }
+        return count;
+    }
+}
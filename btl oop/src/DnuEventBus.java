@@ -0,0 +1,237 @@
+import java.io.Closeable;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Asynchronous domain events for DnuService (booking lifecycle, ratings, payments, matches).
+ *
+ * Events go into one bounded ring buffer shared by all subscribers (multi-producer,
+ * Disruptor style: producers claim a sequence with a CAS, write the slot, then mark it
+ * published). Each subscriber is served by `lanes` workers; a lane reads every published
+ * event but only delivers those whose tutor hashes to it, in sequence order and in batches
+ * of whatever has accumulated. Events of one tutor therefore arrive in the order they were
+ * published; DnuService publishes creations under the tutor's lock and the status changes of
+ * one booking in transition order, while different tutors' events are processed in parallel.
+ * A slot is reused only after every lane of every subscriber has passed it.
+ *
+ * Lane workers are virtual threads when the JVM has them (Java 21+) and daemon platform
+ * threads otherwise.
+ *
+ * When the buffer is full, DROP (the default) discards the new event and counts it, so a slow
+ * subscriber never adds latency to the call that published; BLOCK waits for space instead,
+ * for subscribers that must see every event.
+ */
+public class DnuEventBus implements Closeable {
+
+    public enum Type {
+        BOOKING_CREATED, BOOKING_CONFIRMED, BOOKING_DONE, BOOKING_CANCELLED,
+        RATING_ADDED, TRANSACTION_CREATED, REQUEST_MATCHED
+    }
+
+    public enum OverflowPolicy { DROP, BLOCK }
+
+    public static final class Event {
+        private final Type type;
+        private final long tutorId;
+        private final Object payload;
+        private final long publishedNanos;
+
+        Event(Type type, long tutorId, Object payload) {
+            this.type = type; this.tutorId = tutorId; this.payload = payload;
+            this.publishedNanos = System.nanoTime();
+        }
+        public Type getType() { return type; }
+        public long getTutorId() { return tutorId; }
+        // Booking, Rating, Transaction or LearningRequest, depending on the type
+        public Object getPayload() { return payload; }
+        public long getPublishedNanos() { return publishedNanos; }
+        @Override public String toString() { return type + "(tutor=" + tutorId + ", " + payload + ")"; }
+    }
+
+    // Called on a lane worker with consecutive events; the list is reused after the call returns
+    public interface Subscriber {
+        void onEvents(List<Event> batch);
+    }
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final Event[] slots;
+    private final AtomicLongArray published; // sequence last written into each slot
+    private final int mask;
+    private final OverflowPolicy policy;
+    private final AtomicLong cursor = new AtomicLong(-1); // last claimed sequence
+    private final List<Lane> lanes = new CopyOnWriteArrayList<>();
+    private volatile long gatingCache = -1; // min lane sequence as of the last check
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private volatile boolean closed;
+
+    public DnuEventBus(int capacity, OverflowPolicy policy) {
+        if (capacity < 2) throw new IllegalArgumentException("capacity must be at least 2");
+        int n = 1;
+        while (n < capacity) n <<= 1;
+        slots = new Event[n];
+        published = new AtomicLongArray(n);
+        for (int i = 0; i < n; i++) published.set(i, -1);
+        mask = n - 1;
+        this.policy = policy;
+    }
+
+    public DnuEventBus() { this(1 << 16, OverflowPolicy.DROP); }
+
+    /* =======================
+       Publishing
+       ======================= */
+
+    // Returns false when the event was dropped (buffer full under DROP, or bus closed)
+    public boolean publish(Type type, long tutorId, Object payload) {
+        if (closed) return false;
+        Event event = new Event(type, tutorId, payload);
+        long seq;
+        while (true) {
+            long current = cursor.get();
+            seq = current + 1;
+            if (seq - slots.length > gatingCache && seq - slots.length > (gatingCache = minLaneSequence())) {
+                if (policy == OverflowPolicy.DROP || closed) {
+                    dropped.increment();
+                    return false;
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+            if (cursor.compareAndSet(current, seq)) break;
+        }
+        slots[(int) seq & mask] = event;
+        published.set((int) seq & mask, seq); // volatile write publishes the slot
+        return true;
+    }
+
+    private long minLaneSequence() {
+        long min = cursor.get();
+        for (Lane lane : lanes) min = Math.min(min, lane.sequence.get());
+        return min;
+    }
+
+    /* =======================
+       Subscribing
+       ======================= */
+
+    // Starts `lanes` workers for the subscriber; it sees events published from now on
+    public void subscribe(String name, Subscriber subscriber, int lanes) {
+        if (lanes < 1) throw new IllegalArgumentException("lanes must be positive");
+        if (closed) throw new IllegalStateException("event bus closed");
+        List<Lane> group = new ArrayList<>(lanes);
+        synchronized (this) {
+            // lanes start at the current cursor; a producer racing with us cannot claim a slot
+            // the new lanes still need, since they need none before their start
+            long start = cursor.get();
+            for (int i = 0; i < lanes; i++) group.add(new Lane(subscriber, i, lanes, start));
+            this.lanes.addAll(group);
+        }
+        for (Lane lane : group) startThread(name + "-" + lane.index, lane);
+    }
+
+    public void subscribe(String name, Subscriber subscriber) { subscribe(name, subscriber, 4); }
+
+    private final class Lane implements Runnable {
+        final Subscriber subscriber;
+        final int index, of;
+        final AtomicLong sequence; // last sequence this lane is done with
+        final List<Event> batch = new ArrayList<>();
+
+        Lane(Subscriber subscriber, int index, int of, long start) {
+            this.subscriber = subscriber; this.index = index; this.of = of;
+            this.sequence = new AtomicLong(start);
+        }
+
+        @Override public void run() {
+            long next = sequence.get() + 1;
+            while (true) {
+                long last = next - 1;
+                while (published.get((int) (last + 1) & mask) == last + 1) last++;
+                if (last < next) {
+                    if (closed && next > cursor.get()) return; // drained
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    continue;
+                }
+                for (long s = next; s <= last; s++) {
+                    Event e = slots[(int) s & mask];
+                    if (laneOf(e.tutorId, of) == index) batch.add(e);
+                }
+                if (!batch.isEmpty()) {
+                    try {
+                        subscriber.onEvents(batch);
+                    } catch (RuntimeException | Error e) {
+                        failures.increment(); // a failing subscriber must not stall its lane
+                    }
+                    batch.clear();
+                }
+                sequence.set(last);
+                next = last + 1;
+            }
+        }
+    }
+
+    private static int laneOf(long tutorId, int lanes) {
+        return (int) (((tutorId * 0x9E3779B97F4A7C15L) >>> 33) % lanes);
+    }
+
+    /* =======================
+       Threads
+       ======================= */
+
+    private static final Method OF_VIRTUAL, UNSTARTED;
+    static {
+        Method ofVirtual = null, unstarted = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+        } catch (ReflectiveOperationException e) {
+            // before Java 21: platform threads
+        }
+        OF_VIRTUAL = ofVirtual;
+        UNSTARTED = unstarted;
+    }
+
+    private static void startThread(String name, Runnable task) {
+        Thread t = null;
+        if (OF_VIRTUAL != null) {
+            try {
+                t = (Thread) UNSTARTED.invoke(OF_VIRTUAL.invoke(null), task);
+            } catch (ReflectiveOperationException e) {
+                t = null;
+            }
+        }
+        if (t == null) {
+            t = new Thread(task);
+            t.setDaemon(true);
+        }
+        t.setName("dnu-events-" + name);
+        t.start();
+    }
+
+    /* =======================
+       Stats / shutdown
+       ======================= */
+
+    public long getPublished() { return cursor.get() + 1; }
+    public long getDropped() { return dropped.sum(); }
+    public long getSubscriberFailures() { return failures.sum(); }
+
+    // Events published but not yet handled by the slowest lane
+    public long getLag() { return cursor.get() - minLaneSequence(); }
+
+    // Stops accepting events and waits (up to 10 s) for the lanes to drain what was published
+    @Override public void close() {
+        closed = true;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (getLag() > 0 && System.nanoTime() < deadline) LockSupport.parkNanos(IDLE_PARK_NANOS);
+    }
+}
@@ -0,0 +1,412 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+/*
+ * Bulk loader for term onboarding. Accepts CSV (.csv) or JSON lines (.jsonl / .ndjson), one
+ * record per line; blank lines and lines starting with '#' are skipped.
+ *
+ *   CSV:   student,<name>,<email>,<phone>
+ *          tutor,<name>,<email>,<phone>,<feePerHour>,<profile>,<subject>|<subject>|...
+ *          availability,<tutorEmail>,<yyyy-MM-dd>,<HH:mm>,<HH:mm>
+ *   JSONL: {"type":"tutor","name":"..","email":"..","phone":"..","fee":150000,
+ *           "profile":"..","subjects":["Toan","Lap trinh Java"]}
+ *          {"type":"availability","tutor":"bob@dnu.edu.vn","date":"2025-01-10","start":"18:00","end":"20:00"}
+ *
+ * Lines are parsed in parallel on a ForkJoinPool. Subject names are interned in one pass over
+ * the distinct names, users are registered in parallel (duplicates are rejected by the email
+ * and phone indexes), availability rows follow once every tutor exists, and the search and
+ * availability indexes are built once at the end (DnuService.rebuildIndexes).
+ */
+public class DnuImporter {
+
+    private static final int MAX_REPORTED_REJECTIONS = 100;
+
+    private final DnuTutorConnect.DnuService service;
+    private final ForkJoinPool pool;
+
+    public DnuImporter(DnuTutorConnect.DnuService service) {
+        this(service, ForkJoinPool.commonPool());
+    }
+
+    public DnuImporter(DnuTutorConnect.DnuService service, ForkJoinPool pool) {
+        this.service = service;
+        this.pool = pool;
+    }
+
+    public static class Report {
+        private final int rows;
+        private final int accepted;
+        private final List<String> rejections;
+        private final int rejected;
+        private final long elapsedNanos;
+
+        Report(int rows, int accepted, int rejected, List<String> rejections, long elapsedNanos) {
+            this.rows = rows; this.accepted = accepted; this.rejected = rejected;
+            this.rejections = rejections; this.elapsedNanos = elapsedNanos;
+        }
+        public int getRows() { return rows; }
+        public int getAccepted() { return accepted; }
+        public int getRejected() { return rejected; }
+        // "line N: reason", capped at the first 100 rejections
+        public List<String> getRejections() { return rejections; }
+        public double getRowsPerSecond() { return elapsedNanos == 0 ? 0 : rows * 1e9 / elapsedNanos; }
+        @Override public String toString() {
+            return String.format("Import{rows=%d, accepted=%d, rejected=%d, %.0f rows/s}",
+                    rows, accepted, rejected, getRowsPerSecond());
+        }
+    }
+
+    // One parsed line; fields not used by the row type stay null
+    private static final class Row {
+        final int line;
+        final String type;
+        String name, email, phone, profile, tutorEmail;
+        double fee;
+        List<String> subjects = Collections.emptyList();
+        LocalDate date;
+        LocalTime start, end;
+        DnuTutorConnect.Tutor tutor; // set once registered
+
+        Row(int line, String type) { this.line = line; this.type = type; }
+    }
+
+    private final Queue<String> rejections = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger rejected = new AtomicInteger();
+
+    private void reject(int line, String reason) {
+        if (rejected.incrementAndGet() <= MAX_REPORTED_REJECTIONS) rejections.add("line " + line + ": " + reason);
+    }
+
+    public Report load(Path file) throws IOException {
+        String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+        boolean json = name.endsWith(".jsonl") || name.endsWith(".ndjson");
+        long started = System.nanoTime();
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+
+        // 1. parse in parallel
+        Row[] rows = new Row[lines.size()];
+        inPool(() -> IntStream.range(0, lines.size()).parallel().forEach(i -> {
+            String text = lines.get(i).trim();
+            if (text.isEmpty() || text.startsWith("#")) return;
+            try {
+                rows[i] = json ? parseJson(i + 1, text) : parseCsv(i + 1, text);
+            } catch (IllegalArgumentException | DateTimeParseException e) {
+                reject(i + 1, e.getMessage());
+            }
+        }));
+        // duplicates inside the file are resolved here, so the first occurrence wins
+        // regardless of the order parallel registration runs in
+        int total = 0;
+        List<Row> users = new ArrayList<>(), availability = new ArrayList<>();
+        Set<String> subjectNames = new HashSet<>(), emails = new HashSet<>(), phones = new HashSet<>();
+        for (int i = 0; i < lines.size(); i++) {
+            String text = lines.get(i).trim();
+            if (!text.isEmpty() && !text.startsWith("#")) total++;
+            Row row = rows[i];
+            if (row == null) continue;
+            if (row.type.equals("availability")) {
+                availability.add(row);
+                continue;
+            }
+            if (!emails.add(DnuTutorConnect.normalizeEmail(row.email))) {
+                reject(row.line, "duplicate email in file: " + row.email);
+                continue;
+            }
+            String phone = DnuTutorConnect.normalizePhone(row.phone);
+            if (phone != null && !phones.add(phone)) {
+                reject(row.line, "duplicate phone in file: " + row.phone);
+                continue;
+            }
+            users.add(row);
+            subjectNames.addAll(row.subjects);
+        }
+
+        // 2. intern every subject once
+        Map<String, DnuTutorConnect.Subject> subjects = new HashMap<>();
+        for (String subject : subjectNames) subjects.put(subject, service.createOrGetSubject(subject));
+
+        // 3. register users, then availability, in parallel
+        AtomicInteger accepted = new AtomicInteger();
+        inPool(() -> users.parallelStream().forEach(row -> {
+            try {
+                register(row, subjects);
+                accepted.incrementAndGet();
+            } catch (IllegalArgumentException e) {
+                reject(row.line, e.getMessage());
+            }
+        }));
+        inPool(() -> availability.parallelStream().forEach(row -> {
+            Optional<DnuTutorConnect.User> tutor = service.findUserByEmail(row.tutorEmail);
+            if (tutor.isEmpty() || !(tutor.get() instanceof DnuTutorConnect.Tutor)) {
+                reject(row.line, "unknown tutor " + row.tutorEmail);
+                return;
+            }
+            try {
+                service.attachImportedAvailability((DnuTutorConnect.Tutor) tutor.get(), row.date,
+                        new DnuTutorConnect.TimeSlot(row.date.atTime(row.start), row.date.atTime(row.end)));
+                accepted.incrementAndGet();
+            } catch (IllegalArgumentException e) {
+                reject(row.line, e.getMessage());
+            }
+        }));
+
+        // 4. build the indexes once
+        service.rebuildIndexes();
+        List<String> sample = new ArrayList<>(rejections);
+        sample.sort(Comparator.comparingInt(r -> Integer.parseInt(r.substring(5, r.indexOf(':')))));
+        return new Report(total, accepted.get(), rejected.get(), sample, System.nanoTime() - started);
+    }
+
+    private void register(Row row, Map<String, DnuTutorConnect.Subject> subjects) {
+        switch (row.type) {
+            case "student": service.registerStudent(row.name, row.email, row.phone); break;
+            case "admin": service.registerAdmin(row.name, row.email, row.phone); break;
+            case "tutor": {
+                DnuTutorConnect.Tutor t = service.registerTutor(row.name, row.email, row.phone, row.fee, row.profile);
+                List<DnuTutorConnect.Subject> taught = new ArrayList<>(row.subjects.size());
+                for (String s : row.subjects) taught.add(subjects.get(s));
+                service.attachImportedSubjects(t, taught);
+                break;
+            }
+            default: throw new IllegalArgumentException("unknown row type " + row.type);
+        }
+    }
+
+    private void inPool(Runnable task) {
+        try {
+            pool.submit(task).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("import interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /* =======================
+       Parsing
+       ======================= */
+
+    private static Row parseCsv(int line, String text) {
+        List<String> f = splitCsv(text);
+        String type = f.get(0).trim().toLowerCase(Locale.ROOT);
+        Row row = new Row(line, type);
+        switch (type) {
+            case "student":
+            case "admin":
+                require(f, 3, type + ",name,email[,phone]");
+                row.name = f.get(1); row.email = f.get(2); row.phone = f.size() > 3 ? f.get(3) : null;
+                break;
+            case "tutor":
+                require(f, 5, "tutor,name,email,phone,feePerHour[,profile[,subjects]]");
+                row.name = f.get(1); row.email = f.get(2); row.phone = f.get(3);
+                row.fee = parseFee(f.get(4));
+                row.profile = f.size() > 5 ? f.get(5) : null;
+                if (f.size() > 6) row.subjects = splitSubjects(f.get(6));
+                break;
+            case "availability":
+                require(f, 5, "availability,tutorEmail,date,start,end");
+                row.tutorEmail = f.get(1);
+                row.date = LocalDate.parse(f.get(2).trim());
+                row.start = LocalTime.parse(f.get(3).trim());
+                row.end = LocalTime.parse(f.get(4).trim());
+                break;
+            default: throw new IllegalArgumentException("unknown row type " + type);
+        }
+        return row;
+    }
+
+    private static void require(List<String> fields, int min, String shape) {
+        if (fields.size() < min) throw new IllegalArgumentException("expected " + shape);
+    }
+
+    private static double parseFee(String text) {
+        try {
+            double fee = Double.parseDouble(text.trim());
+            if (fee < 0 || Double.isNaN(fee)) throw new IllegalArgumentException("negative fee " + text);
+            return fee;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("bad fee " + text);
+        }
+    }
+
+    private static List<String> splitSubjects(String text) {
+        List<String> subjects = new ArrayList<>();
+        for (String s : text.split("[|;]")) {
+            if (!s.isBlank()) subjects.add(s.trim());
+        }
+        return subjects;
+    }
+
+    // RFC 4180 style: fields may be quoted, "" inside quotes is a literal quote
+    static List<String> splitCsv(String text) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < text.length() && text.charAt(i + 1) == '"') { field.append('"'); i++; }
+                else if (c == '"') quoted = false;
+                else field.append(c);
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if (quoted) throw new IllegalArgumentException("unterminated quote");
+        fields.add(field.toString());
+        return fields;
+    }
+
+    private static Row parseJson(int line, String text) {
+        Map<String, Object> obj = new JsonObjectParser(text).parse();
+        Object type = obj.get("type");
+        if (!(type instanceof String)) throw new IllegalArgumentException("missing \"type\"");
+        Row row = new Row(line, ((String) type).toLowerCase(Locale.ROOT));
+        switch (row.type) {
+            case "student":
+            case "admin":
+                row.name = string(obj, "name", true); row.email = string(obj, "email", true);
+                row.phone = string(obj, "phone", false);
+                break;
+            case "tutor":
+                row.name = string(obj, "name", true); row.email = string(obj, "email", true);
+                row.phone = string(obj, "phone", false); row.profile = string(obj, "profile", false);
+                Object fee = obj.get("fee");
+                if (fee == null) throw new IllegalArgumentException("missing \"fee\"");
+                row.fee = parseFee(fee.toString());
+                Object subjects = obj.get("subjects");
+                if (subjects instanceof List) {
+                    List<String> names = new ArrayList<>();
+                    for (Object s : (List<?>) subjects) names.add(s.toString().trim());
+                    row.subjects = names;
+                } else if (subjects instanceof String) {
+                    row.subjects = splitSubjects((String) subjects);
+                }
+                break;
+            case "availability":
+                row.tutorEmail = string(obj, "tutor", true);
+                row.date = LocalDate.parse(string(obj, "date", true));
+                row.start = LocalTime.parse(string(obj, "start", true));
+                row.end = LocalTime.parse(string(obj, "end", true));
+                break;
+            default: throw new IllegalArgumentException("unknown row type " + row.type);
+        }
+        return row;
+    }
+
+    private static String string(Map<String, Object> obj, String key, boolean required) {
+        Object v = obj.get(key);
+        if (v == null) {
+            if (required) throw new IllegalArgumentException("missing \"" + key + "\"");
+            return null;
+        }
+        return v.toString();
+    }
+
+    // Minimal parser for one flat JSON object: string, number, boolean, null and array values
+    private static final class JsonObjectParser {
+        private final String s;
+        private int i;
+
+        JsonObjectParser(String s) { this.s = s; }
+
+        Map<String, Object> parse() {
+            Map<String, Object> obj = new HashMap<>();
+            expect('{');
+            skipWs();
+            if (peek() == '}') { i++; return obj; }
+            while (true) {
+                skipWs();
+                String key = readString();
+                skipWs();
+                expect(':');
+                obj.put(key, readValue());
+                skipWs();
+                char c = next();
+                if (c == '}') break;
+                if (c != ',') throw error("expected , or }");
+            }
+            skipWs();
+            if (i != s.length()) throw error("trailing characters");
+            return obj;
+        }
+
+        private Object readValue() {
+            skipWs();
+            char c = peek();
+            if (c == '"') return readString();
+            if (c == '[') {
+                i++;
+                List<Object> list = new ArrayList<>();
+                skipWs();
+                if (peek() == ']') { i++; return list; }
+                while (true) {
+                    list.add(readValue());
+                    skipWs();
+                    char d = next();
+                    if (d == ']') return list;
+                    if (d != ',') throw error("expected , or ]");
+                }
+            }
+            int start = i;
+            while (i < s.length() && ",}] \t".indexOf(s.charAt(i)) < 0) i++;
+            String literal = s.substring(start, i);
+            switch (literal) {
+                case "null": return null;
+                case "true": return Boolean.TRUE;
+                case "false": return Boolean.FALSE;
+                default:
+                    try { return Double.parseDouble(literal); }
+                    catch (NumberFormatException e) { throw error("bad value " + literal); }
+            }
+        }
+
+        private String readString() {
+            expect('"');
+            StringBuilder out = new StringBuilder();
+            while (true) {
+                char c = next();
+                if (c == '"') return out.toString();
+                if (c != '\\') { out.append(c); continue; }
+                char e = next();
+                switch (e) {
+                    case 'n': out.append('\n'); break;
+                    case 't': out.append('\t'); break;
+                    case 'r': out.append('\r'); break;
+                    case 'b': out.append('\b'); break;
+                    case 'f': out.append('\f'); break;
+                    case 'u':
+                        if (i + 4 > s.length()) throw error("bad escape");
+                        out.append((char) Integer.parseInt(s.substring(i, i + 4), 16));
+                        i += 4;
+                        break;
+                    default: out.append(e);
+                }
+            }
+        }
+
+        private void skipWs() { while (i < s.length() && Character.isWhitespace(s.charAt(i))) i++; }
+        private char peek() { if (i >= s.length()) throw error("unexpected end"); return s.charAt(i); }
+        private char next() { char c = peek(); i++; return c; }
+        private void expect(char c) { if (next() != c) throw error("expected " + c); }
+        private IllegalArgumentException error(String msg) { return new IllegalArgumentException("json: " + msg + " at " + i); }
+    }
+}
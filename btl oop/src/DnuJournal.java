@@ -0,0 +1,750 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/*
+ * Durable storage for a DnuService: a binary write-ahead log plus periodic snapshots.
+ *
+ * Directory layout:
+ *   snapshot.bin            full state as of sequence number S (written to a temp file, then renamed)
+ *   wal-<firstSeq>.log      log segments; a checkpoint starts a new segment and deletes the old ones
+ *
+ * Every record is [int payloadLength][long seq][byte type][payload][int crc32]. Appends only
+ * encode into an in-memory batch; a flusher thread writes and fsyncs the batch every
+ * groupCommitMillis (group commit), so one fsync covers all events of that window.
+ *
+ * By default a mutation returns as soon as its record is in the batch: a crash loses the
+ * mutations acknowledged in the last groupCommitMillis (plus the batch being written), and
+ * sync() forces everything appended so far to disk. Opened with syncWrites, every mutation
+ * instead waits until its own record is on disk; the flusher then writes as soon as anyone
+ * waits, and records appended during one fsync share the next.
+ *
+ * A write or fsync failure stops the journal: the records it held are not durable, and every
+ * later mutation of the service is rejected before it is applied (checkWritable). With
+ * syncWrites, the mutations waiting on the failed fsync throw UncheckedIOException although
+ * they were applied in memory; nothing after them is.
+ *
+ * Recovery loads the snapshot and replays only log records with seq > S. The snapshot is
+ * read while writers keep running, so the tail may repeat events the snapshot already holds;
+ * DnuService's restore methods are idempotent for that reason. A torn record at the end of
+ * the last segment (crash mid-write) ends the replay and is truncated away.
+ */
+public class DnuJournal implements DnuTutorConnect.Journal, Closeable {
+
+    private static final String SNAPSHOT = "snapshot.bin";
+    private static final int SNAPSHOT_MAGIC = 0x444E5553; // "DNUS"
+    private static final int FORMAT_VERSION = 3; // 2: 64-bit ids; 3: LEDGER entry
+
+    // record types
+    static final byte USER = 1, SUBJECT = 2, TUTOR_SUBJECT = 3, AVAILABILITY = 4, TUTOR_FEE = 5,
+            REQUEST = 6, BOOKING = 7, BOOKING_STATUS = 8, RATING = 9, TRANSACTION = 10, REQUEST_MATCHED = 11;
+    // snapshot only: the first n ledger records stand in for TRANSACTION entries
+    static final byte LEDGER = 12;
+
+    private final Path dir;
+    private final long groupCommitMillis;
+    private final int maxBatchBytes;
+
+    private final Object appendLock = new Object();
+    private final Object ioLock = new Object(); // taken before appendLock, never while holding it
+    private Batch pending = new Batch();
+    private Batch spare = new Batch();
+    private final Batch scratch = new Batch();
+    private final CRC32 crc = new CRC32();
+    private long lastSeq;
+    private long durableSeq;
+    private IOException failure;
+    private final boolean syncWrites;
+    private int syncWaiters; // appenders waiting for their record to be durable
+
+    private FileChannel segment;
+    private Path segmentPath;
+    private final Thread flusher;
+    private volatile boolean closed;
+    private long recovered;
+
+    private DnuJournal(Path dir, long lastSeq, long groupCommitMillis, int maxBatchBytes, boolean syncWrites) throws IOException {
+        this.dir = dir;
+        this.lastSeq = lastSeq;
+        this.durableSeq = lastSeq;
+        this.groupCommitMillis = groupCommitMillis;
+        this.maxBatchBytes = maxBatchBytes;
+        this.syncWrites = syncWrites;
+        openSegment(lastSeq + 1);
+        flusher = new Thread(this::flushLoop, "dnu-journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    public static DnuJournal open(Path dir, DnuTutorConnect.DnuService service) throws IOException {
+        return open(dir, service, 5, 1 << 20, false);
+    }
+
+    public static DnuJournal open(Path dir, DnuTutorConnect.DnuService service,
+                                  long groupCommitMillis, int maxBatchBytes) throws IOException {
+        return open(dir, service, groupCommitMillis, maxBatchBytes, false);
+    }
+
+    /*
+     * Recovers service state from dir (which must belong to a fresh, empty service), then
+     * attaches the journal so that every further mutation is logged. With syncWrites, each
+     * mutation returns only once its record is on disk (see the class comment).
+     */
+    public static DnuJournal open(Path dir, DnuTutorConnect.DnuService service,
+                                  long groupCommitMillis, int maxBatchBytes, boolean syncWrites) throws IOException {
+        Files.createDirectories(dir);
+        Replayer replayer = new Replayer(service);
+        long snapshotSeq = 0;
+        Path snapshot = dir.resolve(SNAPSHOT);
+        if (Files.exists(snapshot)) snapshotSeq = replayer.loadSnapshot(snapshot);
+        long lastSeq = snapshotSeq;
+        List<Path> segments = listSegments(dir);
+        for (int i = 0; i < segments.size(); i++) {
+            lastSeq = Math.max(lastSeq, replayer.replaySegment(segments.get(i), snapshotSeq, i == segments.size() - 1));
+        }
+        DnuJournal journal = new DnuJournal(dir, lastSeq, groupCommitMillis, maxBatchBytes, syncWrites);
+        journal.recovered = replayer.replayed;
+        service.setJournal(journal);
+        return journal;
+    }
+
+    // Number of snapshot entries and log records replayed by open()
+    public long getRecoveredEvents() { return recovered; }
+
+    public long getLastSeq() { synchronized (appendLock) { return lastSeq; } }
+
+    /* =======================
+       Journal callbacks
+       ======================= */
+
+    @Override public void userRegistered(DnuTutorConnect.User u) { append(USER, out -> writeUser(out, u)); }
+
+    @Override public void subjectCreated(DnuTutorConnect.Subject s) {
+        append(SUBJECT, out -> { writeId(out, s.getId()); writeString(out, s.getName()); });
+    }
+
+    @Override public void tutorSubjectAdded(DnuTutorConnect.Tutor t, DnuTutorConnect.Subject s) {
+        append(TUTOR_SUBJECT, out -> { writeId(out, t.getId()); writeId(out, s.getId()); });
+    }
+
+    @Override public void availabilityAdded(DnuTutorConnect.Tutor t, LocalDate date, DnuTutorConnect.TimeSlot slot) {
+        append(AVAILABILITY, out -> writeAvailability(out, t, date, slot));
+    }
+
+    @Override public void tutorFeeChanged(DnuTutorConnect.Tutor t, double feePerHour) {
+        append(TUTOR_FEE, out -> { writeId(out, t.getId()); out.writeDouble(feePerHour); });
+    }
+
+    @Override public void requestPosted(DnuTutorConnect.LearningRequest lr) { append(REQUEST, out -> writeRequest(out, lr)); }
+
+    @Override public void bookingCreated(DnuTutorConnect.Booking b) {
+        append(BOOKING, out -> writeBooking(out, b, DnuTutorConnect.BookingStatus.PENDING));
+    }
+
+    @Override public void bookingStatusChanged(DnuTutorConnect.Booking b, DnuTutorConnect.BookingStatus status) {
+        append(BOOKING_STATUS, out -> { writeId(out, b.getId()); out.writeByte(status.ordinal()); });
+    }
+
+    @Override public void ratingAdded(DnuTutorConnect.Rating r) { append(RATING, out -> writeRating(out, r)); }
+
+    @Override public void requestMatched(DnuTutorConnect.LearningRequest lr) {
+        append(REQUEST_MATCHED, out -> writeMatch(out, lr));
+    }
+
+    @Override public void transactionCreated(DnuTutorConnect.Transaction tx) { append(TRANSACTION, out -> writeTransaction(out, tx)); }
+
+    /* =======================
+       Write path
+       ======================= */
+
+    private interface Encoder { void encode(DataOutputStream out) throws IOException; }
+
+    // Byte buffer whose backing array can be written out without copying
+    private static final class Batch extends ByteArrayOutputStream {
+        final DataOutputStream out = new DataOutputStream(this);
+        Batch() { super(8192); }
+        byte[] array() { return buf; }
+    }
+
+    @Override public void checkWritable() {
+        synchronized (appendLock) {
+            if (closed) throw new IllegalStateException("journal closed");
+            if (failure != null) throw new UncheckedIOException("journal write failed", failure);
+        }
+    }
+
+    // The service checked writability before its mutation, so this only fails if the journal
+    // was closed or failed since; after a failure, records are still taken but never written
+    private void append(byte type, Encoder encoder) {
+        synchronized (appendLock) {
+            if (closed) throw new IllegalStateException("journal closed");
+            long seq;
+            try {
+                scratch.reset();
+                encoder.encode(scratch.out);
+                seq = ++lastSeq;
+                int start = pending.size();
+                pending.out.writeInt(scratch.size());
+                pending.out.writeLong(seq);
+                pending.out.writeByte(type);
+                scratch.writeTo(pending);
+                crc.reset();
+                crc.update(pending.array(), start + 4, pending.size() - start - 4);
+                pending.out.writeInt((int) crc.getValue());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // in-memory streams only
+            }
+            if (pending.size() >= maxBatchBytes) appendLock.notifyAll();
+            if (syncWrites) awaitDurable(seq);
+        }
+    }
+
+    // Caller holds appendLock; wakes the flusher and waits for it to force seq
+    private void awaitDurable(long seq) {
+        boolean interrupted = false;
+        syncWaiters++;
+        try {
+            appendLock.notifyAll();
+            while (durableSeq < seq && failure == null) {
+                try {
+                    appendLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true; // the record is already in the batch; keep waiting for it
+                }
+            }
+        } finally {
+            syncWaiters--;
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+        if (durableSeq < seq) throw new UncheckedIOException("journal write failed; change applied but not durable", failure);
+    }
+
+    private void flushLoop() {
+        while (!closed) {
+            try {
+                synchronized (appendLock) {
+                    // a waiting syncWrites appender has its record in the batch: write it now
+                    boolean waited = syncWaiters > 0 && pending.size() > 0;
+                    if (pending.size() < maxBatchBytes && !waited && !closed) appendLock.wait(groupCommitMillis);
+                }
+                flushPending();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                return; // recorded by flushPending
+            }
+        }
+    }
+
+    // Writes and fsyncs everything appended so far; returns the highest durable sequence number
+    private long flushPending() throws IOException {
+        synchronized (ioLock) {
+            Batch batch;
+            long upTo;
+            synchronized (appendLock) {
+                if (pending.size() == 0) return durableSeq;
+                batch = pending;
+                pending = spare;
+                spare = batch;
+                upTo = lastSeq;
+            }
+            try {
+                ByteBuffer bytes = ByteBuffer.wrap(batch.array(), 0, batch.size());
+                while (bytes.hasRemaining()) segment.write(bytes);
+                segment.force(false);
+            } catch (IOException e) {
+                // the batch is gone from memory and maybe half on disk: stop taking mutations
+                synchronized (appendLock) { failure = e; appendLock.notifyAll(); }
+                throw e;
+            }
+            batch.reset();
+            synchronized (appendLock) {
+                durableSeq = upTo;
+                appendLock.notifyAll();
+            }
+            return upTo;
+        }
+    }
+
+    // Blocks until every event appended before this call is on disk
+    public void sync() throws IOException {
+        flushPending();
+        synchronized (appendLock) {
+            if (failure != null) throw failure;
+        }
+    }
+
+    private void openSegment(long firstSeq) throws IOException {
+        segmentPath = dir.resolve(String.format("wal-%020d.log", firstSeq));
+        segment = FileChannel.open(segmentPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    /*
+     * Writes a snapshot and drops the log segments it covers. Writers keep running: the log
+     * is rolled at sequence S first, then the state is read; events after S stay in the new
+     * segment and are replayed (idempotently) on top of the snapshot.
+     */
+    public void checkpoint(DnuTutorConnect.DnuService service) throws IOException {
+        long snapshotSeq;
+        synchronized (ioLock) {
+            snapshotSeq = flushPending();
+            if (firstSeqOf(segmentPath) <= snapshotSeq) {
+                segment.close();
+                openSegment(snapshotSeq + 1);
+            }
+        }
+        writeSnapshot(service, snapshotSeq);
+        for (Path p : listSegments(dir)) {
+            if (firstSeqOf(p) <= snapshotSeq) Files.deleteIfExists(p);
+        }
+    }
+
+    private void writeSnapshot(DnuTutorConnect.DnuService service, long snapshotSeq) throws IOException {
+        Path tmp = dir.resolve(SNAPSHOT + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(tmp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(snapshotSeq);
+            Batch entry = new Batch();
+            // Subjects, users, requests and bookings (with their statuses) come from one
+            // DnuSnapshot, taken after S was flushed, so they are consistent with each other.
+            // Profiles, ratings and transactions are read live: entities created meanwhile may
+            // be missing from an earlier section, and entries that reference them are skipped;
+            // the log tail (seq > S) has both. With a ledger attached, transactions stay in it:
+            // only its record count is written, read before the state so that every record it
+            // covers refers to a booking of that state
+            DnuLedger ledger = service.getLedger();
+            int ledgerCount = -1;
+            if (ledger != null) {
+                ledger.sync();
+                ledgerCount = ledger.size();
+            }
+            DnuSnapshot state = service.snapshot();
+            DnuTutorConnect.LongHashSet written = new DnuTutorConnect.LongHashSet();
+            for (DnuTutorConnect.Subject s : state.subjects()) {
+                writeEntry(out, entry, SUBJECT, o -> { writeId(o, s.getId()); writeString(o, s.getName()); });
+                written.add(s.getId());
+            }
+            List<DnuTutorConnect.Tutor> tutors = new ArrayList<>();
+            for (DnuTutorConnect.User u : state.users()) {
+                writeEntry(out, entry, USER, o -> writeUser(o, u));
+                written.add(u.getId());
+                if (u instanceof DnuTutorConnect.Tutor) tutors.add((DnuTutorConnect.Tutor) u);
+            }
+            for (DnuTutorConnect.Tutor t : tutors) {
+                for (DnuTutorConnect.Subject s : t.getSubjects()) {
+                    if (!written.contains(s.getId())) continue;
+                    writeEntry(out, entry, TUTOR_SUBJECT, o -> { writeId(o, t.getId()); writeId(o, s.getId()); });
+                }
+                for (Map.Entry<LocalDate, List<DnuTutorConnect.TimeSlot>> day : service.availabilityOf(t).entrySet()) {
+                    for (DnuTutorConnect.TimeSlot slot : day.getValue()) {
+                        writeEntry(out, entry, AVAILABILITY, o -> writeAvailability(o, t, day.getKey(), slot));
+                    }
+                }
+            }
+            for (DnuTutorConnect.LearningRequest lr : state.requests()) {
+                if (!written.contains(lr.getStudent().getId()) || !written.contains(lr.getSubject().getId())) continue;
+                writeEntry(out, entry, REQUEST, o -> writeRequest(o, lr));
+                written.add(lr.getId());
+            }
+            for (DnuTutorConnect.Booking b : state.bookings()) {
+                if (!written.contains(b.getStudent().getId()) || !written.contains(b.getTutor().getId())
+                        || !written.contains(b.getSubject().getId())) continue;
+                writeEntry(out, entry, BOOKING, o -> writeBooking(o, b, state.statusOf(b)));
+                written.add(b.getId());
+            }
+            for (DnuTutorConnect.LearningRequest lr : state.requests()) {
+                DnuTutorConnect.Tutor matched = lr.getMatchedTutor();
+                DnuTutorConnect.Booking b = lr.getBooking();
+                if (matched == null || !written.contains(lr.getId()) || !written.contains(matched.getId())
+                        || (b != null && !written.contains(b.getId()))) continue;
+                writeEntry(out, entry, REQUEST_MATCHED, o -> writeMatch(o, lr));
+            }
+            for (DnuTutorConnect.Tutor t : tutors) {
+                for (DnuTutorConnect.Rating r : service.ratingsOf(t)) {
+                    if (!written.contains(r.getStudent().getId())) continue;
+                    writeEntry(out, entry, RATING, o -> writeRating(o, r));
+                }
+            }
+            if (ledger != null) {
+                int n = ledgerCount;
+                writeEntry(out, entry, LEDGER, o -> o.writeInt(n));
+            } else {
+                for (DnuTutorConnect.Transaction tx : service.listAllTransactions()) {
+                    if (!written.contains(tx.getBooking().getId())) continue;
+                    writeEntry(out, entry, TRANSACTION, o -> writeTransaction(o, tx));
+                }
+            }
+            out.writeByte(0); // end marker
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(tmp, dir.resolve(SNAPSHOT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeEntry(DataOutputStream out, Batch entry, byte type, Encoder encoder) throws IOException {
+        entry.reset();
+        encoder.encode(entry.out);
+        out.writeByte(type);
+        out.writeInt(entry.size());
+        entry.writeTo(out);
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (appendLock) {
+            if (closed) return;
+            closed = true;
+            appendLock.notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (ioLock) {
+            try {
+                flushPending();
+            } finally {
+                segment.close();
+            }
+        }
+    }
+
+    /* =======================
+       Encoding
+       ======================= */
+
+    private static void writeId(DataOutput out, long id) throws IOException {
+        out.writeLong(id);
+    }
+
+    private static void writeString(DataOutput out, String s) throws IOException {
+        if (s == null) { out.writeInt(-1); return; }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeTime(DataOutput out, LocalDateTime t) throws IOException {
+        out.writeLong(t.toEpochSecond(ZoneOffset.UTC));
+        out.writeInt(t.getNano());
+    }
+
+    private static void writeUser(DataOutput out, DnuTutorConnect.User u) throws IOException {
+        out.writeByte(u.getRole().ordinal());
+        writeId(out, u.getId());
+        writeString(out, u.getName());
+        writeString(out, u.getEmail());
+        writeString(out, u.getPhone());
+        if (u instanceof DnuTutorConnect.Tutor) {
+            DnuTutorConnect.Tutor t = (DnuTutorConnect.Tutor) u;
+            out.writeDouble(t.getFeePerHour());
+            writeString(out, t.getProfileDescription());
+        }
+    }
+
+    private static void writeAvailability(DataOutput out, DnuTutorConnect.Tutor t, LocalDate date,
+                                          DnuTutorConnect.TimeSlot slot) throws IOException {
+        writeId(out, t.getId());
+        out.writeLong(date.toEpochDay());
+        writeTime(out, slot.getStart());
+        writeTime(out, slot.getEnd());
+    }
+
+    private static void writeRequest(DataOutput out, DnuTutorConnect.LearningRequest lr) throws IOException {
+        writeId(out, lr.getId());
+        writeId(out, lr.getStudent().getId());
+        writeId(out, lr.getSubject().getId());
+        writeString(out, lr.getDescription());
+        writeTime(out, lr.getCreatedAt());
+        out.writeByte(lr.getStatus().ordinal());
+        // matching terms trail the original fields; records written before them simply end here
+        out.writeDouble(lr.getMaxFee() == null ? Double.NaN : lr.getMaxFee());
+        out.writeBoolean(lr.getPreferredStart() != null);
+        if (lr.getPreferredStart() != null) writeTime(out, lr.getPreferredStart());
+        out.writeInt(lr.getDurationMinutes());
+    }
+
+    private static void writeMatch(DataOutput out, DnuTutorConnect.LearningRequest lr) throws IOException {
+        writeId(out, lr.getId());
+        writeId(out, lr.getMatchedTutor().getId());
+        out.writeBoolean(lr.getBooking() != null);
+        if (lr.getBooking() != null) writeId(out, lr.getBooking().getId());
+    }
+
+    private static void writeBooking(DataOutput out, DnuTutorConnect.Booking b,
+                                     DnuTutorConnect.BookingStatus status) throws IOException {
+        writeId(out, b.getId());
+        writeId(out, b.getStudent().getId());
+        writeId(out, b.getTutor().getId());
+        writeId(out, b.getSubject().getId());
+        writeTime(out, b.getScheduleTime());
+        out.writeInt(b.getDurationMinutes());
+        out.writeByte(status.ordinal());
+    }
+
+    private static void writeRating(DataOutput out, DnuTutorConnect.Rating r) throws IOException {
+        writeId(out, r.getId());
+        writeId(out, r.getStudent().getId());
+        writeId(out, r.getTutor().getId());
+        out.writeByte(r.getScore());
+        writeString(out, r.getComment());
+        out.writeLong(r.getDate().toEpochDay());
+    }
+
+    private static void writeTransaction(DataOutput out, DnuTutorConnect.Transaction tx) throws IOException {
+        writeId(out, tx.getId());
+        writeId(out, tx.getBooking().getId());
+        out.writeDouble(tx.getAmount());
+        writeString(out, tx.getMethod());
+        out.writeByte(tx.getStatus().ordinal());
+        writeTime(out, tx.getCreatedAt());
+    }
+
+    /* =======================
+       Recovery
+       ======================= */
+
+    private static List<Path> listSegments(Path dir) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "wal-*.log")) {
+            for (Path p : stream) segments.add(p);
+        }
+        segments.sort(Comparator.comparingLong(DnuJournal::firstSeqOf));
+        return segments;
+    }
+
+    private static long firstSeqOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(4, name.length() - 4));
+    }
+
+    // Applies snapshot entries and log records to a service through its restore methods
+    private static final class Replayer {
+        private final DnuTutorConnect.DnuService service;
+        // ids loaded from the snapshot; only these can be repeated by the log tail
+        private final DnuTutorConnect.LongHashSet ratings = new DnuTutorConnect.LongHashSet();
+        private final DnuTutorConnect.LongHashSet transactions = new DnuTutorConnect.LongHashSet();
+        private int ledgerCount = -1; // ledger records restored from the snapshot's LEDGER entry
+        private boolean fromSnapshot;
+        private final CRC32 crc = new CRC32();
+        private final Payload payload = new Payload();
+        private final DataInputStream in = new DataInputStream(payload);
+        long replayed;
+
+        Replayer(DnuTutorConnect.DnuService service) { this.service = service; }
+
+        long loadSnapshot(Path path) throws IOException {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+                if (in.readInt() != SNAPSHOT_MAGIC) throw new IOException("not a snapshot: " + path);
+                int version = in.readInt();
+                if (version < 2 || version > FORMAT_VERSION) throw new IOException("unsupported snapshot version " + version);
+                long seq = in.readLong();
+                byte[] buf = new byte[256];
+                fromSnapshot = true;
+                for (byte type = in.readByte(); type != 0; type = in.readByte()) {
+                    int len = in.readInt();
+                    if (buf.length < len) buf = new byte[Math.max(len, buf.length * 2)];
+                    in.readFully(buf, 0, len);
+                    payload.reset(buf, 0, len);
+                    apply(type);
+                }
+                fromSnapshot = false;
+                return seq;
+            }
+        }
+
+        // Returns the last sequence number read; truncates a torn tail on the last segment
+        long replaySegment(Path path, long afterSeq, boolean last) throws IOException {
+            long lastSeq = afterSeq, goodBytes = 0;
+            byte[] buf = new byte[256];
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 20))) {
+                while (true) {
+                    int len;
+                    try { len = in.readInt(); } catch (EOFException e) { break; }
+                    if (len < 0) break;
+                    if (buf.length < len + 9) buf = new byte[Math.max(len + 9, buf.length * 2)];
+                    try {
+                        in.readFully(buf, 0, len + 9);
+                        int stored = in.readInt();
+                        crc.reset();
+                        crc.update(buf, 0, len + 9);
+                        if ((int) crc.getValue() != stored) break;
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    ByteBuffer header = ByteBuffer.wrap(buf, 0, 9);
+                    long seq = header.getLong();
+                    byte type = header.get();
+                    goodBytes += len + 17;
+                    lastSeq = Math.max(lastSeq, seq);
+                    if (seq > afterSeq) {
+                        payload.reset(buf, 9, len);
+                        apply(type);
+                    }
+                }
+            }
+            if (goodBytes < Files.size(path)) {
+                if (!last) throw new IOException("corrupt log segment " + path);
+                try (FileChannel ch = FileChannel.open(path, StandardOpenOption.WRITE)) { ch.truncate(goodBytes); }
+            }
+            return lastSeq;
+        }
+
+        private void apply(byte type) throws IOException {
+            replayed++;
+            switch (type) {
+                case USER: service.restoreUser(readUser(in)); break;
+                case SUBJECT: service.restoreSubject(new DnuTutorConnect.Subject(readId(in), readString(in))); break;
+                case TUTOR_SUBJECT: tutor(readId(in)).addSubject(subject(readId(in))); break;
+                case AVAILABILITY: {
+                    DnuTutorConnect.Tutor t = tutor(readId(in));
+                    LocalDate date = LocalDate.ofEpochDay(in.readLong());
+                    service.restoreAvailability(t, date, new DnuTutorConnect.TimeSlot(readTime(in), readTime(in)));
+                    break;
+                }
+                case TUTOR_FEE: tutor(readId(in)).setFeePerHour(in.readDouble()); break;
+                case REQUEST: {
+                    long id = readId(in);
+                    DnuTutorConnect.Student student = (DnuTutorConnect.Student) user(readId(in));
+                    DnuTutorConnect.Subject subject = subject(readId(in));
+                    String description = readString(in);
+                    LocalDateTime createdAt = readTime(in);
+                    DnuTutorConnect.RequestStatus status = DnuTutorConnect.RequestStatus.values()[in.readByte()];
+                    Double maxFee = null;
+                    LocalDateTime preferredStart = null;
+                    int duration = 0;
+                    if (in.available() > 0) {
+                        double fee = in.readDouble();
+                        maxFee = Double.isNaN(fee) ? null : fee;
+                        if (in.readBoolean()) preferredStart = readTime(in);
+                        duration = in.readInt();
+                    }
+                    DnuTutorConnect.LearningRequest lr = new DnuTutorConnect.LearningRequest(id, student, subject,
+                            description, createdAt, maxFee, preferredStart, duration);
+                    lr.setStatus(status);
+                    service.restoreRequest(lr);
+                    break;
+                }
+                case REQUEST_MATCHED: {
+                    long id = readId(in);
+                    DnuTutorConnect.LearningRequest lr = service.findRequest(id)
+                            .orElseThrow(() -> new IOException("unknown request " + id));
+                    DnuTutorConnect.Tutor t = tutor(readId(in));
+                    service.restoreRequestMatch(lr, t, in.readBoolean() ? booking(readId(in)) : null);
+                    break;
+                }
+                case BOOKING: {
+                    DnuTutorConnect.Booking b = new DnuTutorConnect.Booking(readId(in),
+                            (DnuTutorConnect.Student) user(readId(in)), tutor(readId(in)), subject(readId(in)),
+                            readTime(in), in.readInt());
+                    service.restoreBooking(b, DnuTutorConnect.BookingStatus.values()[in.readByte()]);
+                    break;
+                }
+                case BOOKING_STATUS: {
+                    DnuTutorConnect.Booking b = booking(readId(in));
+                    service.restoreBookingStatus(b, DnuTutorConnect.BookingStatus.values()[in.readByte()]);
+                    break;
+                }
+                case RATING: {
+                    long id = readId(in);
+                    DnuTutorConnect.Rating r = new DnuTutorConnect.Rating(id, (DnuTutorConnect.Student) user(readId(in)),
+                            tutor(readId(in)), in.readByte(), readString(in), LocalDate.ofEpochDay(in.readLong()));
+                    if (fromSnapshot ? ratings.add(id) : !ratings.contains(id)) service.restoreRating(r);
+                    break;
+                }
+                case TRANSACTION: {
+                    long id = readId(in);
+                    DnuTutorConnect.Transaction tx = new DnuTutorConnect.Transaction(id, booking(readId(in)),
+                            in.readDouble(), readString(in), DnuTutorConnect.TransactionStatus.values()[in.readByte()],
+                            readTime(in));
+                    if (fromSnapshot ? transactions.add(id) : !transactions.contains(id) && !inLedgerPrefix(id)) {
+                        service.restoreTransaction(tx);
+                    }
+                    break;
+                }
+                case LEDGER: restoreLedger(in.readInt()); break;
+                default: throw new IOException("unknown record type " + type);
+            }
+        }
+
+        // Applies the first n ledger records to the bookings and stats, streaming them off-heap
+        private void restoreLedger(int n) throws IOException {
+            DnuLedger ledger = service.getLedger();
+            if (ledger == null || ledger.size() < n) {
+                throw new IOException("snapshot needs the first " + n + " ledger transactions; attach the ledger before open()");
+            }
+            long[] orphan = { 0, 0 };
+            int[] seen = { 0 };
+            ledger.forEach((id, bookingId, tutorId, postedAt, amount, status, method) -> {
+                if (seen[0]++ >= n || orphan[0] != 0) return;
+                DnuTutorConnect.Booking b = service.findBooking(bookingId).orElse(null);
+                if (b == null) { orphan[0] = id; orphan[1] = bookingId; return; }
+                service.restoreTransaction(new DnuTutorConnect.Transaction(id, b, Math.abs(amount), method, status,
+                        DnuLedger.fromMillis(postedAt)));
+            });
+            if (orphan[0] != 0) throw new IOException("ledger transaction " + orphan[0] + " refers to unknown booking " + orphan[1]);
+            ledgerCount = n;
+        }
+
+        private boolean inLedgerPrefix(long txId) {
+            if (ledgerCount < 0) return false;
+            int i = service.getLedger().indexOf(txId);
+            return i >= 0 && i < ledgerCount;
+        }
+
+        private DnuTutorConnect.User user(long id) throws IOException {
+            return service.findUser(id).orElseThrow(() -> new IOException("unknown user " + id));
+        }
+        private DnuTutorConnect.Tutor tutor(long id) throws IOException { return (DnuTutorConnect.Tutor) user(id); }
+        private DnuTutorConnect.Subject subject(long id) throws IOException {
+            return service.findSubject(id).orElseThrow(() -> new IOException("unknown subject " + id));
+        }
+        private DnuTutorConnect.Booking booking(long id) throws IOException {
+            return service.findBooking(id).orElseThrow(() -> new IOException("unknown booking " + id));
+        }
+
+        // Reusable view over one record's payload bytes
+        private static final class Payload extends ByteArrayInputStream {
+            Payload() { super(new byte[0]); }
+            void reset(byte[] bytes, int offset, int length) {
+                buf = bytes; pos = offset; count = offset + length; mark = offset;
+            }
+        }
+
+        private static DnuTutorConnect.User readUser(DataInputStream in) throws IOException {
+            DnuTutorConnect.Role role = DnuTutorConnect.Role.values()[in.readByte()];
+            long id = readId(in);
+            String name = readString(in), email = readString(in), phone = readString(in);
+            switch (role) {
+                case STUDENT: return new DnuTutorConnect.Student(id, name, email, phone);
+                case TUTOR: return new DnuTutorConnect.Tutor(id, name, email, phone, in.readDouble(), readString(in));
+                default: return new DnuTutorConnect.Admin(id, name, email, phone);
+            }
+        }
+
+        private static long readId(DataInput in) throws IOException { return in.readLong(); }
+
+        private static String readString(DataInput in) throws IOException {
+            int len = in.readInt();
+            if (len < 0) return null;
+            byte[] bytes = new byte[len];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private static LocalDateTime readTime(DataInput in) throws IOException {
+            return LocalDateTime.ofEpochSecond(in.readLong(), in.readInt(), ZoneOffset.UTC);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/*
+ * Materialized "top tutors per subject": one skip list per subject, ordered by score (best
+ * first), then number of ratings, then tutor id. A rating or a newly taught subject moves only
+ * that tutor's entries (O(log n) per subject taught), so reading the top N costs O(N) however
+ * many tutors a subject has.
+ *
+ * The score is the tutor's average rating, or with a half-life, a time-decayed average in
+ * which a rating's weight halves every halfLifeDays: recent ratings dominate, and old ones
+ * fade out. Each tutor keeps its weights relative to its latest rating day and rescales them
+ * when a newer rating arrives, so no history is ever recomputed and the weights cannot
+ * overflow however long the service runs.
+ *
+ * Updates of one tutor must not run concurrently (DnuService calls in under the tutor's lock
+ * stripe); readers take no lock. An entry being replaced is briefly on the list twice and is
+ * then returned once, at its better position.
+ */
+public class DnuLeaderboard {
+
+    public static final class Entry {
+        private final DnuTutorConnect.Tutor tutor;
+        private final double score;
+        private final int ratings;
+
+        Entry(DnuTutorConnect.Tutor tutor, double score, int ratings) {
+            this.tutor = tutor; this.score = score; this.ratings = ratings;
+        }
+        public DnuTutorConnect.Tutor getTutor() { return tutor; }
+        public double getScore() { return score; }
+        public int getRatings() { return ratings; }
+        @Override public String toString() { return String.format("%s (%.2f, %d ratings)", tutor.getName(), score, ratings); }
+    }
+
+    static final Comparator<Entry> ORDER = (a, b) -> a.score != b.score ? Double.compare(b.score, a.score)
+            : a.ratings != b.ratings ? Integer.compare(b.ratings, a.ratings)
+            : Long.compare(a.tutor.getId(), b.tutor.getId());
+
+    // One tutor's folded ratings and the entry it currently has on its subjects' lists
+    private static final class Standing {
+        final List<Long> subjects = new ArrayList<>();
+        long referenceDay; // weights are relative to this day
+        double weight, weightedSum;
+        int ratings;
+        volatile Entry entry;
+    }
+
+    // Replaced whole by rebuild(), so readers never see a half-built board
+    private static final class State {
+        final Map<Long, ConcurrentSkipListSet<Entry>> bySubject = new ConcurrentHashMap<>();
+        final Map<Long, Standing> byTutor = new ConcurrentHashMap<>();
+    }
+
+    private final int halfLifeDays; // 0: plain average
+    private volatile State state = new State();
+
+    public DnuLeaderboard() { this(0); }
+
+    public DnuLeaderboard(int halfLifeDays) {
+        if (halfLifeDays < 0) throw new IllegalArgumentException("halfLifeDays must not be negative");
+        this.halfLifeDays = halfLifeDays;
+    }
+
+    public int getHalfLifeDays() { return halfLifeDays; }
+
+    /* =======================
+       Updates (caller holds the tutor's lock)
+       ======================= */
+
+    // Adds t to subject's list; a tutor seen for the first time brings its existing ratings
+    void taught(DnuTutorConnect.Tutor t, DnuTutorConnect.Subject subject) {
+        State s = state;
+        Standing st = standingOf(s, t);
+        if (st.subjects.contains(subject.getId())) return;
+        st.subjects.add(subject.getId());
+        s.bySubject.computeIfAbsent(subject.getId(), k -> new ConcurrentSkipListSet<>(ORDER)).add(st.entry);
+    }
+
+    // r must already be in the tutor's ratings; a tutor on no list yet is picked up by taught()
+    void rated(DnuTutorConnect.Rating r) {
+        State s = state;
+        Standing st = s.byTutor.get(r.getTutor().getId());
+        if (st == null) return;
+        fold(st, r);
+        Entry old = st.entry, updated = entryOf(r.getTutor(), st);
+        if (ORDER.compare(old, updated) == 0) return;
+        // insert before removing, so a reader never misses the tutor
+        for (long subject : st.subjects) s.bySubject.get(subject).add(updated);
+        st.entry = updated;
+        for (long subject : st.subjects) s.bySubject.get(subject).remove(old);
+    }
+
+    // Starts over from every tutor's ratings and subjects; caller holds off all writers
+    void rebuild(Collection<DnuTutorConnect.Tutor> tutors) {
+        State fresh = new State();
+        for (DnuTutorConnect.Tutor t : tutors) {
+            Standing st = standingOf(fresh, t);
+            for (DnuTutorConnect.Subject subject : t.getSubjects()) {
+                st.subjects.add(subject.getId());
+                fresh.bySubject.computeIfAbsent(subject.getId(), k -> new ConcurrentSkipListSet<>(ORDER)).add(st.entry);
+            }
+        }
+        state = fresh;
+    }
+
+    private Standing standingOf(State s, DnuTutorConnect.Tutor t) {
+        Standing st = s.byTutor.get(t.getId());
+        if (st != null) return st;
+        st = new Standing();
+        for (DnuTutorConnect.Rating r : t.getRatingsReceived()) fold(st, r);
+        st.entry = entryOf(t, st);
+        s.byTutor.put(t.getId(), st);
+        return st;
+    }
+
+    private void fold(Standing st, DnuTutorConnect.Rating r) {
+        double w = 1;
+        if (halfLifeDays > 0) {
+            long day = r.getDate().toEpochDay();
+            if (st.ratings == 0) {
+                st.referenceDay = day;
+            } else if (day > st.referenceDay) {
+                double fade = Math.pow(0.5, (double) (day - st.referenceDay) / halfLifeDays);
+                st.weight *= fade;
+                st.weightedSum *= fade;
+                st.referenceDay = day;
+            } else {
+                w = Math.pow(0.5, (double) (st.referenceDay - day) / halfLifeDays); // an older rating
+            }
+        }
+        st.weight += w;
+        st.weightedSum += w * r.getScore();
+        st.ratings++;
+    }
+
+    private static Entry entryOf(DnuTutorConnect.Tutor t, Standing st) {
+        return new Entry(t, st.weight == 0 ? 0 : st.weightedSum / st.weight, st.ratings);
+    }
+
+    /* =======================
+       Reading
+       ======================= */
+
+    // The best n tutors teaching subject, best first
+    public List<Entry> top(DnuTutorConnect.Subject subject, int n) {
+        if (n <= 0) throw new IllegalArgumentException("n must be positive");
+        List<Entry> top = new ArrayList<>(Math.min(n, 64));
+        ConcurrentSkipListSet<Entry> list = state.bySubject.get(subject.getId());
+        if (list == null) return top;
+        Set<Long> seen = new HashSet<>();
+        for (Entry e : list) {
+            if (!seen.add(e.tutor.getId())) continue; // the replaced entry of a tutor being rated
+            top.add(e);
+            if (top.size() == n) break;
+        }
+        return top;
+    }
+
+    // Score of t, as on its lists (0 for a tutor not on any)
+    public double scoreOf(DnuTutorConnect.Tutor t) {
+        Standing st = state.byTutor.get(t.getId());
+        return st == null ? 0 : st.entry.score;
+    }
+}
@@ -0,0 +1,366 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/*
+ * Append-only transaction ledger kept off-heap in a memory-mapped file, so the heap does not
+ * grow with payment history.
+ *
+ * File layout: a 4 KB header [int magic][int version][int count][int methodCount]
+ * [short len + UTF-8 name]... followed by fixed-width 80-byte records:
+ *
+ *    0 long txId           8 long bookingId        16 long tutorId
+ *   24 long postedAt (epoch ms UTC, non-decreasing)
+ *   32 long amount (minor units; refunds negative, failed payments 0 in the sums)
+ *   40 long prefix          running net total of the whole ledger, this record included
+ *   48 long tutorPrefix     running net total of this record's tutor
+ *   56 int prevTutor       60 int jumpTutor        64 int tutorDepth
+ *   68 int prevBooking     72 byte status          73 byte method    74..79 unused
+ *
+ * Because postedAt never decreases, a time window is a contiguous index range found by binary
+ * search, and its total is the difference of two prefix values. Each tutor's records form a
+ * backwards chain with skew-binary jump pointers (Myers), so the last record of a tutor before
+ * a given time is found in O(log n) and per-tutor totals use tutorPrefix the same way.
+ *
+ * Chain heads and the txId index are open-addressing tables in direct buffers, rebuilt by one
+ * sequential scan on open. A single writer appends; readers run lock-free against the
+ * published count.
+ */
+public class DnuLedger implements Closeable {
+
+    private static final int MAGIC = 0x444E554C; // "DNUL"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_BYTES = 4096;
+    private static final int RECORD_BYTES = 80;
+    private static final int CHUNK_RECORDS = 1 << 18; // 20 MB mappings
+    private static final long CHUNK_BYTES = (long) CHUNK_RECORDS * RECORD_BYTES;
+    private static final int NONE = -1;
+
+    private static final DnuTutorConnect.TransactionStatus[] STATUSES = DnuTutorConnect.TransactionStatus.values();
+
+    // Receives one record's columns, without materializing a Transaction
+    public interface RecordVisitor {
+        void visit(long txId, long bookingId, long tutorId, long postedAtMillis, double amount,
+                   DnuTutorConnect.TransactionStatus status, String method);
+    }
+
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    // copy-on-write: both grow rarely and are read by lock-free readers
+    private final List<MappedByteBuffer> chunks = new CopyOnWriteArrayList<>();
+    private final List<String> methods = new CopyOnWriteArrayList<>();
+    private final LongIntTable byTx = new LongIntTable();
+    private final LongIntTable tutorHeads = new LongIntTable();
+    private final LongIntTable bookingHeads = new LongIntTable();
+    private int methodBytes; // header bytes used by the method names
+    private long lastPostedAt = Long.MIN_VALUE;
+    private volatile int count;
+
+    private DnuLedger(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+    }
+
+    public static DnuLedger open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        DnuLedger ledger = new DnuLedger(channel);
+        try {
+            ledger.load();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return ledger;
+    }
+
+    private void load() throws IOException {
+        int magic = header.getInt(0);
+        if (magic == 0) {
+            header.putInt(0, MAGIC).putInt(4, FORMAT_VERSION).putInt(8, 0).putInt(12, 0);
+            return;
+        }
+        if (magic != MAGIC) throw new IOException("not a ledger file");
+        if (header.getInt(4) != FORMAT_VERSION) throw new IOException("unsupported ledger version " + header.getInt(4));
+        int n = header.getInt(8);
+        int pos = 16;
+        for (int i = header.getInt(12); i > 0; i--) {
+            byte[] name = new byte[header.getShort(pos)];
+            header.get(pos + 2, name);
+            methods.add(new String(name, StandardCharsets.UTF_8));
+            pos += 2 + name.length;
+        }
+        methodBytes = pos - 16;
+        while ((long) chunks.size() * CHUNK_RECORDS < n) mapChunk();
+        for (int i = 0; i < n; i++) {
+            ByteBuffer c = chunk(i);
+            int at = offset(i);
+            byTx.put(c.getLong(at), i);
+            tutorHeads.put(c.getLong(at + 16), i);
+            bookingHeads.put(c.getLong(at + 8), i);
+            lastPostedAt = c.getLong(at + 24);
+        }
+        count = n;
+    }
+
+    private void mapChunk() throws IOException {
+        long position = HEADER_BYTES + chunks.size() * CHUNK_BYTES;
+        chunks.add(channel.map(FileChannel.MapMode.READ_WRITE, position, CHUNK_BYTES));
+    }
+
+    private ByteBuffer chunk(int record) { return chunks.get(record / CHUNK_RECORDS); }
+    private static int offset(int record) { return (record % CHUNK_RECORDS) * RECORD_BYTES; }
+
+    private long getLong(int record, int column) { return chunk(record).getLong(offset(record) + column); }
+    private int getInt(int record, int column) { return chunk(record).getInt(offset(record) + column); }
+
+    /* =======================
+       Writes
+       ======================= */
+
+    /*
+     * Appends tx unless its id is already in the ledger. A refunded transaction is booked as a
+     * negative amount and a failed one as zero. Returns false for a duplicate.
+     */
+    public synchronized boolean append(DnuTutorConnect.Transaction tx) {
+        if (byTx.get(tx.getId()) != NONE) return false;
+        int i = count;
+        if (i == Integer.MAX_VALUE) throw new IllegalStateException("ledger full");
+        if (i == (long) chunks.size() * CHUNK_RECORDS) {
+            try { mapChunk(); } catch (IOException e) { throw new UncheckedIOException("ledger grow failed", e); }
+        }
+
+        DnuTutorConnect.TransactionStatus status = tx.getStatus();
+        long amount = Math.round(tx.getAmount() * 100);
+        long net = status == DnuTutorConnect.TransactionStatus.PAID ? amount
+                : status == DnuTutorConnect.TransactionStatus.REFUNDED ? -amount : 0;
+        long postedAt = Math.max(lastPostedAt, tx.getCreatedAt().toInstant(ZoneOffset.UTC).toEpochMilli());
+        long tutorId = tx.getBooking().getTutor().getId();
+        long bookingId = tx.getBooking().getId();
+
+        int prevTutor = tutorHeads.get(tutorId);
+        int depth = 0, jump = i;
+        if (prevTutor != NONE) {
+            depth = getInt(prevTutor, 64) + 1;
+            int j = getInt(prevTutor, 60), jj = getInt(j, 60);
+            jump = getInt(prevTutor, 64) - getInt(j, 64) == getInt(j, 64) - getInt(jj, 64) ? jj : prevTutor;
+        }
+
+        ByteBuffer c = chunk(i);
+        int at = offset(i);
+        c.putLong(at, tx.getId());
+        c.putLong(at + 8, bookingId);
+        c.putLong(at + 16, tutorId);
+        c.putLong(at + 24, postedAt);
+        c.putLong(at + 32, status == DnuTutorConnect.TransactionStatus.REFUNDED ? -amount : amount);
+        c.putLong(at + 40, (i == 0 ? 0 : getLong(i - 1, 40)) + net);
+        c.putLong(at + 48, (prevTutor == NONE ? 0 : getLong(prevTutor, 48)) + net);
+        c.putInt(at + 56, prevTutor);
+        c.putInt(at + 60, jump);
+        c.putInt(at + 64, depth);
+        c.putInt(at + 68, bookingHeads.get(bookingId));
+        c.put(at + 72, (byte) status.ordinal());
+        c.put(at + 73, methodCode(tx.getMethod()));
+
+        byTx.put(tx.getId(), i);
+        tutorHeads.put(tutorId, i);
+        bookingHeads.put(bookingId, i);
+        lastPostedAt = postedAt;
+        header.putInt(8, i + 1); // the record is complete before the count covers it
+        count = i + 1;
+        return true;
+    }
+
+    private byte methodCode(String method) {
+        String name = method == null ? "" : method;
+        int code = methods.indexOf(name);
+        if (code >= 0) return (byte) code;
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (methods.size() == 256 || 16 + methodBytes + 2 + bytes.length > HEADER_BYTES || bytes.length > Short.MAX_VALUE) {
+            throw new IllegalStateException("too many payment methods for the ledger header");
+        }
+        header.putShort(16 + methodBytes, (short) bytes.length);
+        header.put(16 + methodBytes + 2, bytes);
+        methodBytes += 2 + bytes.length;
+        methods.add(name);
+        header.putInt(12, methods.size());
+        return (byte) (methods.size() - 1);
+    }
+
+    // Forces appended records to the storage device
+    public synchronized void sync() {
+        for (MappedByteBuffer c : chunks) c.force();
+        header.force();
+    }
+
+    @Override public void close() throws IOException {
+        sync();
+        channel.close();
+    }
+
+    /* =======================
+       Reads
+       ======================= */
+
+    public int size() { return count; }
+
+    public boolean contains(long txId) {
+        synchronized (this) { return byTx.get(txId) != NONE; }
+    }
+
+    // Position of txId in the ledger, or -1
+    public int indexOf(long txId) {
+        synchronized (this) { return byTx.get(txId); }
+    }
+
+    // Net amount (payments minus refunds) posted in [from, to)
+    public double totalBetween(LocalDateTime from, LocalDateTime to) {
+        int n = count;
+        int lo = lowerBound(millis(from), n), hi = lowerBound(millis(to), n);
+        if (hi <= lo) return 0;
+        return (getLong(hi - 1, 40) - (lo == 0 ? 0 : getLong(lo - 1, 40))) / 100.0;
+    }
+
+    // Net amount received by one tutor in [from, to)
+    public double tutorTotalBetween(long tutorId, LocalDateTime from, LocalDateTime to) {
+        int head = tutorHead(tutorId);
+        int upper = lastBefore(head, millis(to)), lower = lastBefore(upper, millis(from));
+        if (upper == NONE) return 0;
+        return (getLong(upper, 48) - (lower == NONE ? 0 : getLong(lower, 48))) / 100.0;
+    }
+
+    // Net amount booked against one booking (payment minus any refund)
+    public double bookingTotal(long bookingId) {
+        long sum = 0;
+        int i;
+        synchronized (this) { i = bookingHeads.get(bookingId); }
+        for (; i != NONE; i = getInt(i, 68)) {
+            DnuTutorConnect.TransactionStatus status = STATUSES[chunk(i).get(offset(i) + 72)];
+            if (status != DnuTutorConnect.TransactionStatus.FAILED) sum += getLong(i, 32);
+        }
+        return sum / 100.0;
+    }
+
+    // Records posted in [from, to), oldest first
+    public void forEachBetween(LocalDateTime from, LocalDateTime to, RecordVisitor visitor) {
+        int n = count;
+        for (int i = lowerBound(millis(from), n), hi = lowerBound(millis(to), n); i < hi; i++) visit(i, visitor);
+    }
+
+    public void forEach(RecordVisitor visitor) {
+        for (int i = 0, n = count; i < n; i++) visit(i, visitor);
+    }
+
+    // One tutor's records posted in [from, to), newest first
+    public void forEachOfTutor(long tutorId, LocalDateTime from, LocalDateTime to, RecordVisitor visitor) {
+        long start = millis(from);
+        for (int i = lastBefore(tutorHead(tutorId), millis(to)); i != NONE && getLong(i, 24) >= start; i = getInt(i, 56)) {
+            visit(i, visitor);
+        }
+    }
+
+    // One booking's records, newest first
+    public void forEachOfBooking(long bookingId, RecordVisitor visitor) {
+        int i;
+        synchronized (this) { i = bookingHeads.get(bookingId); }
+        for (; i != NONE; i = getInt(i, 68)) visit(i, visitor);
+    }
+
+    private void visit(int i, RecordVisitor visitor) {
+        ByteBuffer c = chunk(i);
+        int at = offset(i);
+        visitor.visit(c.getLong(at), c.getLong(at + 8), c.getLong(at + 16), c.getLong(at + 24),
+                c.getLong(at + 32) / 100.0, STATUSES[c.get(at + 72)], methods.get(c.get(at + 73) & 0xFF));
+    }
+
+    private synchronized int tutorHead(long tutorId) { return tutorHeads.get(tutorId); }
+
+    // First record index in [0, n) posted at or after millis
+    private int lowerBound(long millis, int n) {
+        int lo = 0, hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (getLong(mid, 24) < millis) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+
+    // Walks a tutor chain back from record i to the newest record posted before millis
+    private int lastBefore(int i, long millis) {
+        while (i != NONE && getLong(i, 24) >= millis) {
+            int jump = getInt(i, 60);
+            i = jump != i && getLong(jump, 24) >= millis ? jump : getInt(i, 56);
+        }
+        return i;
+    }
+
+    private static long millis(LocalDateTime t) { return t.toInstant(ZoneOffset.UTC).toEpochMilli(); }
+
+    static LocalDateTime fromMillis(long millis) {
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(millis, 1000), Math.floorMod(millis, 1000) * 1_000_000, ZoneOffset.UTC);
+    }
+
+    /*
+     * long -> int open-addressing table in a direct buffer (12-byte slots), so indexes over
+     * tens of millions of records stay off the heap. Key 0 is the empty marker and is kept
+     * aside. Callers synchronize.
+     */
+    private static final class LongIntTable {
+        private static final int SLOT = 12;
+        private ByteBuffer slots = ByteBuffer.allocateDirect(16 * SLOT);
+        private int capacity = 16, size;
+        private int zeroValue = NONE;
+
+        int get(long key) {
+            if (key == 0) return zeroValue;
+            for (int i = slot(key, capacity); ; i = (i + 1) & (capacity - 1)) {
+                long k = slots.getLong(i * SLOT);
+                if (k == key) return slots.getInt(i * SLOT + 8);
+                if (k == 0) return NONE;
+            }
+        }
+
+        void put(long key, int value) {
+            if (key == 0) { zeroValue = value; return; }
+            if ((size + 1) * 2 > capacity) rehash(capacity * 2);
+            if (insert(slots, capacity, key, value)) size++;
+        }
+
+        private static boolean insert(ByteBuffer slots, int capacity, long key, int value) {
+            int i = slot(key, capacity);
+            while (true) {
+                long k = slots.getLong(i * SLOT);
+                if (k == key || k == 0) {
+                    slots.putLong(i * SLOT, key).putInt(i * SLOT + 8, value);
+                    return k == 0;
+                }
+                i = (i + 1) & (capacity - 1);
+            }
+        }
+
+        private void rehash(int newCapacity) {
+            if ((long) newCapacity * SLOT > Integer.MAX_VALUE) throw new IllegalStateException("ledger index full");
+            ByteBuffer grown = ByteBuffer.allocateDirect(newCapacity * SLOT);
+            for (int i = 0; i < capacity; i++) {
+                long k = slots.getLong(i * SLOT);
+                if (k != 0) insert(grown, newCapacity, k, slots.getInt(i * SLOT + 8));
+            }
+            slots = grown;
+            capacity = newCapacity;
+        }
+
+        private static int slot(long key, int capacity) {
+            return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & (capacity - 1);
+        }
+    }
+}
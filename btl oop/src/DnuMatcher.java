@@ -0,0 +1,258 @@
+import java.io.Closeable;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Pairs OPEN learning requests with tutors, in batches.
+ *
+ * A batch is split by subject and the subjects are matched in parallel on a ForkJoinPool.
+ * Within a subject, requests are served oldest first. The subject's tutors are sorted by fee
+ * under a max segment tree of scores, so "best tutor with fee <= the request's ceiling" is one
+ * O(log n) prefix query. A score is the tutor's rating, smoothed toward a prior so that new
+ * tutors still get work, minus loadPenalty for every request the tutor already received in
+ * this batch. No tutor takes more than maxMatchesPerTutor requests per batch, across all
+ * subjects. Tutors that fail the availability/overlap check for a request are skipped for that
+ * request only (up to maxAttempts candidates).
+ *
+ * DnuService.matchRequest does the actual pairing under the student's and tutor's locks, so
+ * a batch can run while users keep posting and booking.
+ */
+public class DnuMatcher implements Closeable {
+
+    private static final double RATING_PRIOR = 3.5;
+    private static final int PRIOR_WEIGHT = 2;
+
+    private final DnuTutorConnect.DnuService service;
+    private final ForkJoinPool pool;
+    private final int maxMatchesPerTutor;
+    private final double loadPenalty;
+    private final int maxAttempts;
+    private ScheduledExecutorService scheduler;
+
+    public DnuMatcher(DnuTutorConnect.DnuService service) {
+        this(service, ForkJoinPool.commonPool(), 5, 0.5, 16);
+    }
+
+    public DnuMatcher(DnuTutorConnect.DnuService service, ForkJoinPool pool,
+                      int maxMatchesPerTutor, double loadPenalty, int maxAttempts) {
+        if (maxMatchesPerTutor < 1) throw new IllegalArgumentException("maxMatchesPerTutor must be positive");
+        if (maxAttempts < 1) throw new IllegalArgumentException("maxAttempts must be positive");
+        this.service = service;
+        this.pool = pool;
+        this.maxMatchesPerTutor = maxMatchesPerTutor;
+        this.loadPenalty = loadPenalty;
+        this.maxAttempts = maxAttempts;
+    }
+
+    public static class Report {
+        private final int considered;
+        private final int matched;
+        private final long elapsedNanos;
+
+        Report(int considered, int matched, long elapsedNanos) {
+            this.considered = considered; this.matched = matched; this.elapsedNanos = elapsedNanos;
+        }
+        public int getConsidered() { return considered; }
+        public int getMatched() { return matched; }
+        public int getUnmatched() { return considered - matched; }
+        public long getElapsedNanos() { return elapsedNanos; }
+        public double getRequestsPerSecond() { return elapsedNanos == 0 ? 0 : considered * 1e9 / elapsedNanos; }
+        @Override public String toString() {
+            return String.format("Match{considered=%d, matched=%d, unmatched=%d, %.0f ms, %.0f requests/s}",
+                    considered, matched, getUnmatched(), elapsedNanos / 1e6, getRequestsPerSecond());
+        }
+    }
+
+    // One batch over every request that is OPEN right now
+    public Report matchOpen() { return match(service.listOpenRequests()); }
+
+    public Report match(Collection<DnuTutorConnect.LearningRequest> batch) {
+        DnuMetrics metrics = service.getMetrics();
+        long started = metrics.start(), t0 = System.nanoTime();
+        try {
+            Map<DnuTutorConnect.Subject, List<DnuTutorConnect.LearningRequest>> bySubject = new HashMap<>();
+            for (DnuTutorConnect.LearningRequest lr : batch) {
+                if (lr.getStatus() == DnuTutorConnect.RequestStatus.OPEN) {
+                    bySubject.computeIfAbsent(lr.getSubject(), k -> new ArrayList<>()).add(lr);
+                }
+            }
+            Map<DnuTutorConnect.Tutor, AtomicInteger> load = new ConcurrentHashMap<>();
+            AtomicInteger matched = new AtomicInteger();
+            try {
+                pool.submit(() -> bySubject.entrySet().parallelStream()
+                        .forEach(e -> matched.addAndGet(matchSubject(e.getKey(), e.getValue(), load)))).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("matching interrupted", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                throw new IllegalStateException(e.getCause());
+            }
+            int considered = 0;
+            for (List<DnuTutorConnect.LearningRequest> requests : bySubject.values()) considered += requests.size();
+            return new Report(considered, matched.get(), System.nanoTime() - t0);
+        } catch (RuntimeException e) {
+            metrics.failed(DnuMetrics.Op.MATCH_REQUESTS);
+            throw e;
+        } finally {
+            metrics.record(DnuMetrics.Op.MATCH_REQUESTS, started);
+        }
+    }
+
+    private int matchSubject(DnuTutorConnect.Subject subject, List<DnuTutorConnect.LearningRequest> requests,
+                             Map<DnuTutorConnect.Tutor, AtomicInteger> load) {
+        List<DnuTutorConnect.Tutor> candidates = service.searchTutorsBySubject(subject, null, null);
+        if (candidates.isEmpty()) return 0;
+        candidates.sort(Comparator.comparingDouble(DnuTutorConnect.Tutor::getFeePerHour));
+        int n = candidates.size();
+        double[] fees = new double[n], ratings = new double[n];
+        ScoreTree tree = new ScoreTree(n);
+        for (int i = 0; i < n; i++) {
+            DnuTutorConnect.Tutor t = candidates.get(i);
+            fees[i] = t.getFeePerHour();
+            int count = t.getRatingCount();
+            ratings[i] = (t.getAverageRating() * count + RATING_PRIOR * PRIOR_WEIGHT) / (count + PRIOR_WEIGHT);
+            tree.set(i, score(ratings[i], load.get(t)));
+        }
+        requests.sort(Comparator.comparing(DnuTutorConnect.LearningRequest::getCreatedAt));
+
+        int matched = 0;
+        int[] skipped = new int[maxAttempts];
+        DnuMetrics metrics = service.getMetrics();
+        for (DnuTutorConnect.LearningRequest lr : requests) {
+            int limit = lr.getMaxFee() == null ? n : upperBound(fees, lr.getMaxFee());
+            int skips = 0;
+            for (int attempt = 0; attempt < maxAttempts; attempt++) {
+                int best = tree.argMax(limit);
+                if (best < 0) break;
+                DnuTutorConnect.Tutor t = candidates.get(best);
+                AtomicInteger taken = load.computeIfAbsent(t, k -> new AtomicInteger());
+                if (taken.incrementAndGet() > maxMatchesPerTutor) {
+                    // full, possibly via another subject: gone for the rest of this batch
+                    taken.decrementAndGet();
+                    tree.set(best, Double.NEGATIVE_INFINITY);
+                    continue;
+                }
+                if (service.matchRequest(lr, t)) {
+                    matched++;
+                    tree.set(best, score(ratings[best], taken));
+                    metrics.recordMatchWait(Duration.between(lr.getCreatedAt(), LocalDateTime.now()).toNanos());
+                    break;
+                }
+                taken.decrementAndGet();
+                if (lr.getStatus() != DnuTutorConnect.RequestStatus.OPEN) break; // matched elsewhere meanwhile
+                tree.set(best, Double.NEGATIVE_INFINITY);
+                skipped[skips++] = best;
+            }
+            for (int i = 0; i < skips; i++) {
+                tree.set(skipped[i], score(ratings[skipped[i]], load.get(candidates.get(skipped[i]))));
+            }
+        }
+        return matched;
+    }
+
+    private double score(double rating, AtomicInteger taken) {
+        int n = taken == null ? 0 : taken.get();
+        return n >= maxMatchesPerTutor ? Double.NEGATIVE_INFINITY : rating - loadPenalty * n;
+    }
+
+    // Number of fees <= maxFee (fees sorted ascending)
+    private static int upperBound(double[] fees, double maxFee) {
+        int lo = 0, hi = fees.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (fees[mid] <= maxFee) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+
+    /*
+     * Runs matchOpen() every periodMillis on a daemon thread until close(). A failing batch is
+     * reported on stderr and the next one still runs.
+     */
+    public synchronized void start(long periodMillis) {
+        if (scheduler != null) throw new IllegalStateException("already started");
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "dnu-matcher");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                matchOpen();
+            } catch (RuntimeException e) {
+                System.err.println("matching batch failed: " + e);
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override public synchronized void close() {
+        if (scheduler == null) return;
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        scheduler = null;
+    }
+
+    // Max segment tree over candidate scores; argMax(limit) searches positions [0, limit)
+    private static final class ScoreTree {
+        private final int size;
+        private final double[] max;
+
+        ScoreTree(int n) {
+            int s = 1;
+            while (s < n) s <<= 1;
+            size = s;
+            max = new double[2 * s];
+            Arrays.fill(max, Double.NEGATIVE_INFINITY);
+        }
+
+        void set(int i, double score) {
+            int node = i + size;
+            max[node] = score;
+            for (node >>= 1; node > 0; node >>= 1) max[node] = Math.max(max[2 * node], max[2 * node + 1]);
+        }
+
+        // Position of the highest score below limit (the cheapest on ties), or -1 if none is finite
+        int argMax(int limit) {
+            if (limit <= 0) return -1;
+            double best = Double.NEGATIVE_INFINITY;
+            int bestNode = -1;
+            // canonical decomposition of [0, limit), then descend into the winning node
+            for (int lo = size, hi = limit + size; lo < hi; lo >>= 1, hi >>= 1) {
+                if ((lo & 1) == 1) {
+                    if (max[lo] > best || (max[lo] == best && bestNode >= 0 && leftOf(lo, bestNode))) { best = max[lo]; bestNode = lo; }
+                    lo++;
+                }
+                if ((hi & 1) == 1) {
+                    hi--;
+                    if (max[hi] > best || (max[hi] == best && bestNode >= 0 && leftOf(hi, bestNode))) { best = max[hi]; bestNode = hi; }
+                }
+            }
+            if (bestNode < 0 || best == Double.NEGATIVE_INFINITY) return -1;
+            while (bestNode < size) bestNode = max[2 * bestNode] >= max[2 * bestNode + 1] ? 2 * bestNode : 2 * bestNode + 1;
+            return bestNode - size;
+        }
+
+        // Whether node a covers positions left of node b's
+        private boolean leftOf(int a, int b) {
+            return firstLeaf(a) < firstLeaf(b);
+        }
+
+        private int firstLeaf(int node) {
+            while (node < size) node <<= 1;
+            return node;
+        }
+    }
+}
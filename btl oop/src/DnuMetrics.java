@@ -0,0 +1,252 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/*
+ * Per-operation call counts, error counts and latency histograms for a DnuService, plus gauges,
+ * exported in Prometheus text format.
+ *
+ * Recording is lock-free: LongAdders for counts and sums, and a log-linear histogram (HDR
+ * style: each power of two split into 8 linear sub-buckets, so any recorded value is off by
+ * at most 12.5%) held in an AtomicLongArray. Values up to ~18 minutes are tracked exactly;
+ * longer ones land in the last bucket.
+ *
+ * Start the JVM with -Ddnu.metrics=off to disable recording. ENABLED is a static final
+ * constant, so the JIT drops the instrumentation (including the clock reads) entirely.
+ */
+public class DnuMetrics {
+
+    public static final boolean ENABLED = !"off".equalsIgnoreCase(System.getProperty("dnu.metrics"));
+
+    public enum Op {
+        REGISTER_USER, CREATE_SUBJECT, POST_REQUEST, SEARCH_TUTORS, TEXT_SEARCH, FIND_FREE_SLOTS, FIND_USER,
+        UPDATE_TUTOR, CREATE_BOOKING, UPDATE_BOOKING_STATUS, ADD_RATING, CREATE_TRANSACTION, BULK_IMPORT,
+        MATCH_REQUESTS, PROCESS_PAYMENTS, TOP_TUTORS;
+
+        String label() { return name().toLowerCase(Locale.ROOT); }
+    }
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final long MAX_TRACKED_NANOS = (1L << 40) - 1;
+    private static final int BUCKETS = bucketOf(MAX_TRACKED_NANOS) + 1;
+    // Prometheus histogram bounds, in seconds
+    private static final double[] EXPORT_BOUNDS = {
+            1e-6, 5e-6, 1e-5, 5e-5, 1e-4, 5e-4, 1e-3, 5e-3, 1e-2, 5e-2, 0.1, 0.5, 1, 5 };
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    // Latency statistics of one operation
+    private static final class Recorder {
+        final LongAdder calls = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final AtomicLong maxNanos = new AtomicLong();
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        void record(long nanos) {
+            calls.increment();
+            totalNanos.add(nanos);
+            buckets.incrementAndGet(bucketOf(Math.min(nanos, MAX_TRACKED_NANOS)));
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) max = maxNanos.get();
+        }
+    }
+
+    // Point-in-time view of one operation; latencies in nanoseconds
+    public static final class OpStats {
+        private final long calls, errors, totalNanos, maxNanos;
+        private final long[] buckets;
+
+        OpStats(Recorder r) {
+            // buckets first: a call racing with the snapshot may then show in the histogram only
+            buckets = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) buckets[i] = r.buckets.get(i);
+            calls = r.calls.sum();
+            errors = r.errors.sum();
+            totalNanos = r.totalNanos.sum();
+            maxNanos = r.maxNanos.get();
+        }
+        public long getCalls() { return calls; }
+        public long getErrors() { return errors; }
+        public long getTotalNanos() { return totalNanos; }
+        public long getMaxNanos() { return maxNanos; }
+        public double getMeanNanos() { return calls == 0 ? 0 : (double) totalNanos / calls; }
+
+        // Upper bound of the bucket holding the q-th quantile (0 < q <= 1)
+        public long getPercentileNanos(double q) {
+            long total = 0;
+            for (long b : buckets) total += b;
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(q * total), seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[i];
+                if (seen >= rank) return Math.min(upperBoundOf(i), maxNanos);
+            }
+            return maxNanos;
+        }
+
+        // Calls whose latency bucket lies entirely at or below nanos
+        long countAtMost(long nanos) {
+            long n = 0;
+            for (int i = 0; i < BUCKETS && upperBoundOf(i) <= nanos; i++) n += buckets[i];
+            return n;
+        }
+
+        @Override public String toString() {
+            return String.format("calls=%d errors=%d mean=%.1fus p50=%.1fus p99=%.1fus max=%.1fus",
+                    calls, errors, getMeanNanos() / 1e3, getPercentileNanos(0.5) / 1e3,
+                    getPercentileNanos(0.99) / 1e3, maxNanos / 1e3);
+        }
+    }
+
+    private static final class Gauge {
+        final String name, help;
+        final LongSupplier value;
+        Gauge(String name, String help, LongSupplier value) { this.name = name; this.help = help; this.value = value; }
+    }
+
+    private final Recorder[] recorders = new Recorder[Op.values().length];
+    private final Recorder matchWait = new Recorder(); // posting of a learning request -> its match
+    private final List<Gauge> gauges = new CopyOnWriteArrayList<>();
+
+    public DnuMetrics() {
+        for (int i = 0; i < recorders.length; i++) recorders[i] = new Recorder();
+    }
+
+    /* =======================
+       Recording (hot path)
+       ======================= */
+
+    // Typical use:  long started = metrics.start(); try { ... } catch (RuntimeException e) {
+    //     metrics.failed(op); throw e; } finally { metrics.record(op, started); }
+    public long start() { return ENABLED ? System.nanoTime() : 0; }
+
+    public void record(Op op, long started) {
+        if (ENABLED) recorders[op.ordinal()].record(System.nanoTime() - started);
+    }
+
+    public void failed(Op op) {
+        if (ENABLED) recorders[op.ordinal()].errors.increment();
+    }
+
+    public void recordMatchWait(long nanos) {
+        if (ENABLED) matchWait.record(nanos);
+    }
+
+    // Gauges are sampled only when exported
+    public void gauge(String name, String help, LongSupplier value) {
+        gauges.add(new Gauge(name, help, value));
+    }
+
+    /* =======================
+       Snapshot / export
+       ======================= */
+
+    public OpStats snapshot(Op op) { return new OpStats(recorders[op.ordinal()]); }
+
+    public Map<Op, OpStats> snapshot() {
+        Map<Op, OpStats> all = new EnumMap<>(Op.class);
+        for (Op op : Op.values()) all.put(op, snapshot(op));
+        return all;
+    }
+
+    public OpStats matchWaitSnapshot() { return new OpStats(matchWait); }
+
+    public Map<String, Long> gauges() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (Gauge g : gauges) values.put(g.name, g.value.getAsLong());
+        return values;
+    }
+
+    public String toPrometheus() {
+        StringBuilder out = new StringBuilder(4096);
+        if (ENABLED) {
+            Map<Op, OpStats> stats = snapshot();
+            header(out, "dnu_operations_total", "counter", "Completed DnuService calls, failed ones included.");
+            for (Op op : Op.values()) sample(out, "dnu_operations_total", op, null, stats.get(op).calls);
+            header(out, "dnu_operation_errors_total", "counter", "DnuService calls that threw.");
+            for (Op op : Op.values()) sample(out, "dnu_operation_errors_total", op, null, stats.get(op).errors);
+
+            // fine buckets straddling a bound are counted in the next bound up
+            header(out, "dnu_operation_duration_seconds", "histogram", "DnuService call latency.");
+            for (Op op : Op.values()) {
+                OpStats s = stats.get(op);
+                for (double bound : EXPORT_BOUNDS) {
+                    sample(out, "dnu_operation_duration_seconds_bucket", op, "le=\"" + bound + "\"",
+                            s.countAtMost((long) (bound * 1e9)));
+                }
+                sample(out, "dnu_operation_duration_seconds_bucket", op, "le=\"+Inf\"", s.calls);
+                out.append("dnu_operation_duration_seconds_sum{op=\"").append(op.label()).append("\"} ")
+                        .append(s.totalNanos / 1e9).append('\n');
+                sample(out, "dnu_operation_duration_seconds_count", op, null, s.calls);
+            }
+            header(out, "dnu_operation_duration_quantile_seconds", "gauge", "DnuService call latency quantiles (within 12.5%).");
+            for (Op op : Op.values()) {
+                for (double q : QUANTILES) {
+                    out.append("dnu_operation_duration_quantile_seconds{op=\"").append(op.label())
+                            .append("\",quantile=\"").append(q).append("\"} ")
+                            .append(stats.get(op).getPercentileNanos(q) / 1e9).append('\n');
+                }
+            }
+            OpStats wait = matchWaitSnapshot();
+            header(out, "dnu_request_match_wait_seconds", "summary", "Time from posting a learning request to its match.");
+            for (double q : QUANTILES) {
+                out.append("dnu_request_match_wait_seconds{quantile=\"").append(q).append("\"} ")
+                        .append(wait.getPercentileNanos(q) / 1e9).append('\n');
+            }
+            out.append("dnu_request_match_wait_seconds_sum ").append(wait.totalNanos / 1e9).append('\n');
+            out.append("dnu_request_match_wait_seconds_count ").append(wait.calls).append('\n');
+        }
+        for (Gauge g : gauges) {
+            header(out, g.name, "gauge", g.help);
+            out.append(g.name).append(' ').append(g.value.getAsLong()).append('\n');
+        }
+        return out.toString();
+    }
+
+    // Writes to a temp file and renames it, so a scraper never reads a half-written file
+    public void writePrometheus(Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmp, toPrometheus().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, Op op, String extraLabel, long value) {
+        out.append(name).append("{op=\"").append(op.label()).append('"');
+        if (extraLabel != null) out.append(',').append(extraLabel);
+        out.append("} ").append(value).append('\n');
+    }
+
+    /* =======================
+       Bucket math
+       ======================= */
+
+    // Values below SUB_BUCKETS get a bucket each; above, 8 buckets per power of two
+    static int bucketOf(long nanos) {
+        if (nanos < SUB_BUCKETS) return (int) Math.max(nanos, 0);
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    // Largest value mapping to bucket i
+    static long upperBoundOf(int i) {
+        if (i < SUB_BUCKETS) return i;
+        int exponent = i / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = i % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
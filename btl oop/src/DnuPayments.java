@@ -0,0 +1,373 @@
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Asynchronous payment stage in front of DnuService's transactions.
+ *
+ * charge() and refund() only enqueue: they return a future right away and never block the
+ * caller. A dispatcher thread groups queued requests into batches (up to maxBatch, waiting at
+ * most lingerMillis for a batch to fill) and hands each batch to a Processor on a small worker
+ * pool, so a slow processor delays payments but not bookings. The outcome is then recorded
+ * through DnuService: PAID, FAILED (the charge was declined) or REFUNDED.
+ *
+ * Every request carries an idempotency key. Submitting a key again returns the first
+ * submission's future, in flight or completed, for keyTtlMillis after completion. On top of
+ * that a booking has at most one charge and one refund in flight (a second key shares the
+ * first one's outcome), a booking already paid is answered with its payment without calling
+ * the processor, and a refund of a booking no longer paid fails without calling it, so
+ * retries never charge or refund twice.
+ *
+ * When the processor throws, the outcome of its batch is unknown: nothing is recorded, the
+ * futures fail with OutcomeUnknownException, and their keys are released, so the caller can
+ * retry with the same key (which the provider uses to deduplicate).
+ *
+ * At most maxInFlight requests are queued or being processed; beyond that charge()/refund()
+ * fail fast with IllegalStateException in the returned future.
+ */
+public class DnuPayments implements Closeable {
+
+    public enum Kind { CHARGE, REFUND }
+
+    public static final class Request {
+        private final String key;
+        private final Kind kind;
+        private final DnuTutorConnect.Booking booking;
+        private final double amount;
+        private final String method;
+
+        Request(String key, Kind kind, DnuTutorConnect.Booking booking, double amount, String method) {
+            this.key = key; this.kind = kind; this.booking = booking; this.amount = amount; this.method = method;
+        }
+        public String getKey() { return key; }
+        public Kind getKind() { return kind; }
+        public DnuTutorConnect.Booking getBooking() { return booking; }
+        public double getAmount() { return amount; }
+        public String getMethod() { return method; }
+    }
+
+    // What the processor said about one request; reason is set when declined
+    public static final class Result {
+        private final boolean approved;
+        private final String reason;
+
+        private Result(boolean approved, String reason) { this.approved = approved; this.reason = reason; }
+        public static Result approved() { return new Result(true, null); }
+        public static Result declined(String reason) { return new Result(false, reason); }
+        public boolean isApproved() { return approved; }
+        public String getReason() { return reason; }
+    }
+
+    // The processor failed before answering; the request may or may not have reached the provider
+    public static final class OutcomeUnknownException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+        OutcomeUnknownException(String message, Throwable cause) { super(message, cause); }
+    }
+
+    // Talks to the payment provider; returns one result per request, in order
+    public interface Processor {
+        List<Result> process(List<Request> batch);
+    }
+
+    /*
+     * Stand-in provider for local runs and benchmarks: each batch takes latencyMillis plus
+     * perItemMicros per request, and each request is declined with probability failureRate.
+     */
+    public static class SimulatedProcessor implements Processor {
+        private final long latencyMillis, perItemMicros;
+        private final double failureRate;
+        private final SplittableRandom random;
+
+        public SimulatedProcessor(long latencyMillis, long perItemMicros, double failureRate, long seed) {
+            if (failureRate < 0 || failureRate > 1) throw new IllegalArgumentException("failureRate must be in [0, 1]");
+            this.latencyMillis = latencyMillis;
+            this.perItemMicros = perItemMicros;
+            this.failureRate = failureRate;
+            this.random = new SplittableRandom(seed);
+        }
+
+        @Override public List<Result> process(List<Request> batch) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(latencyMillis)
+                    + TimeUnit.MICROSECONDS.toNanos(perItemMicros * batch.size()));
+            List<Result> results = new ArrayList<>(batch.size());
+            synchronized (random) {
+                for (int i = 0; i < batch.size(); i++) {
+                    results.add(random.nextDouble() < failureRate ? Result.declined("simulated decline") : Result.approved());
+                }
+            }
+            return results;
+        }
+    }
+
+    private static final class Pending {
+        final Request request;
+        final CompletableFuture<DnuTutorConnect.Transaction> future = new CompletableFuture<>();
+        volatile long completedAt; // System.nanoTime(), 0 while in flight
+
+        Pending(Request request) { this.request = request; }
+    }
+
+    private final DnuTutorConnect.DnuService service;
+    private final Processor processor;
+    private final int maxBatch;
+    private final long lingerNanos, keyTtlNanos;
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Map<String, Pending> byKey = new ConcurrentHashMap<>();
+    private final Map<Long, Pending> chargeByBooking = new ConcurrentHashMap<>();
+    private final Map<Long, Pending> refundByBooking = new ConcurrentHashMap<>();
+    private final ExecutorService workers;
+    private final Thread dispatcher;
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder approved = new LongAdder();
+    private final LongAdder declined = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private volatile boolean closed;
+
+    public DnuPayments(DnuTutorConnect.DnuService service, Processor processor) {
+        this(service, processor, 64, 2, 4, 10_000, TimeUnit.HOURS.toMillis(24));
+    }
+
+    public DnuPayments(DnuTutorConnect.DnuService service, Processor processor, int maxBatch, long lingerMillis,
+                       int workers, int maxInFlight, long keyTtlMillis) {
+        if (maxBatch < 1) throw new IllegalArgumentException("maxBatch must be positive");
+        if (workers < 1) throw new IllegalArgumentException("workers must be positive");
+        if (maxInFlight < 1) throw new IllegalArgumentException("maxInFlight must be positive");
+        this.service = service;
+        this.processor = processor;
+        this.maxBatch = maxBatch;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        this.keyTtlNanos = TimeUnit.MILLISECONDS.toNanos(keyTtlMillis);
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        AtomicInteger n = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workers, r -> {
+            Thread t = new Thread(r, "dnu-payments-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        dispatcher = new Thread(this::dispatch, "dnu-payments-dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+        service.getMetrics().gauge("dnu_payments_in_flight", "Payment requests queued or being processed.", this::getInFlight);
+    }
+
+    /* =======================
+       Submitting
+       ======================= */
+
+    // Completes with the PAID transaction, or a FAILED one when the processor declines
+    public CompletableFuture<DnuTutorConnect.Transaction> charge(String key, DnuTutorConnect.Booking b,
+                                                                  double amount, String method) {
+        if (amount <= 0) throw new IllegalArgumentException("Amount must be positive");
+        return submit(new Request(key, Kind.CHARGE, b, amount, method));
+    }
+
+    // Completes with the REFUNDED transaction; fails if the booking is not paid or the refund is declined
+    public CompletableFuture<DnuTutorConnect.Transaction> refund(String key, DnuTutorConnect.Booking b, String method) {
+        return submit(new Request(key, Kind.REFUND, b, 0, method));
+    }
+
+    private CompletableFuture<DnuTutorConnect.Transaction> submit(Request r) {
+        if (r.key == null || r.key.isEmpty()) throw new IllegalArgumentException("Idempotency key required");
+        if (r.booking == null) throw new IllegalArgumentException("Booking required");
+        Pending p = new Pending(r);
+        Pending existing = byKey.putIfAbsent(r.key, p);
+        if (existing != null) return existing.future;
+        existing = byBooking(r.kind).putIfAbsent(r.booking.getId(), p);
+        if (existing != null) {
+            // another key is already charging (refunding) this booking: share its outcome
+            // (callers retrying with r.key may already hold p's future)
+            existing.future.whenComplete((tx, e) -> {
+                if (e instanceof OutcomeUnknownException) byKey.remove(r.key, p); // retryable, as the original
+                p.completedAt = System.nanoTime();
+                if (e != null) p.future.completeExceptionally(e); else p.future.complete(tx);
+            });
+            return p.future;
+        }
+        if (closed || !inFlight.tryAcquire()) {
+            rejected.increment();
+            forget(p);
+            p.future.completeExceptionally(new IllegalStateException(closed ? "payments closed" : "too many payments in flight"));
+            return p.future;
+        }
+        queue.add(p);
+        return p.future;
+    }
+
+    private Map<Long, Pending> byBooking(Kind kind) { return kind == Kind.CHARGE ? chargeByBooking : refundByBooking; }
+
+    // A request that never ran (or whose outcome is unknown) must not pin its key or booking
+    private void forget(Pending p) {
+        byKey.remove(p.request.key, p);
+        byBooking(p.request.kind).remove(p.request.booking.getId(), p);
+    }
+
+    /* =======================
+       Dispatching
+       ======================= */
+
+    private void dispatch() {
+        long nextSweep = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (true) {
+            Pending first;
+            try {
+                first = queue.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (System.nanoTime() - nextSweep >= 0) {
+                sweepKeys();
+                nextSweep = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+            }
+            if (first == null) {
+                if (closed) return;
+                continue;
+            }
+            List<Pending> batch = new ArrayList<>(maxBatch);
+            batch.add(first);
+            long deadline = System.nanoTime() + lingerNanos;
+            while (batch.size() < maxBatch) {
+                if (queue.drainTo(batch, maxBatch - batch.size()) > 0) continue;
+                long wait = deadline - System.nanoTime();
+                if (wait <= 0) break;
+                Pending next;
+                try {
+                    next = queue.poll(wait, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (next == null) break;
+                batch.add(next);
+            }
+            workers.execute(() -> process(batch));
+        }
+    }
+
+    private void process(List<Pending> batch) {
+        List<Pending> sent = new ArrayList<>(batch.size());
+        List<Request> requests = new ArrayList<>(batch.size());
+        for (Pending p : batch) {
+            DnuTutorConnect.Transaction current = p.request.booking.getTransaction();
+            boolean paid = current != null && current.getStatus() == DnuTutorConnect.TransactionStatus.PAID;
+            if (p.request.kind == Kind.CHARGE && paid) {
+                complete(p, current); // retried after success: nothing to charge
+            } else if (p.request.kind == Kind.REFUND && !paid) {
+                fail(p, new IllegalStateException("Booking has no payment to refund"));
+            } else {
+                sent.add(p);
+                requests.add(p.request);
+            }
+        }
+        if (sent.isEmpty()) return;
+
+        DnuMetrics metrics = service.getMetrics();
+        long started = metrics.start();
+        List<Result> results;
+        try {
+            results = processor.process(Collections.unmodifiableList(requests));
+            if (results == null || results.size() != requests.size()) {
+                throw new IllegalStateException("processor returned " + (results == null ? "null" : results.size() + " results")
+                        + " for " + requests.size() + " requests");
+            }
+        } catch (RuntimeException e) {
+            metrics.failed(DnuMetrics.Op.PROCESS_PAYMENTS);
+            // the provider's answer is unknown: record nothing and let the callers retry
+            for (Pending p : sent) {
+                forget(p);
+                fail(p, new OutcomeUnknownException("payment processor failed; retry with the same key", e));
+            }
+            return;
+        } finally {
+            metrics.record(DnuMetrics.Op.PROCESS_PAYMENTS, started);
+        }
+        batches.increment();
+
+        for (int i = 0; i < sent.size(); i++) {
+            Pending p = sent.get(i);
+            Result result = results.get(i);
+            try {
+                if (result.isApproved()) {
+                    approved.increment();
+                    complete(p, p.request.kind == Kind.CHARGE
+                            ? service.createTransaction(p.request.booking, p.request.amount, p.request.method)
+                            : service.refundTransaction(p.request.booking, p.request.method));
+                } else {
+                    declined.increment();
+                    if (p.request.kind == Kind.CHARGE) {
+                        complete(p, service.recordFailedPayment(p.request.booking, p.request.amount, p.request.method));
+                    } else {
+                        fail(p, new IllegalStateException("Refund declined: " + result.getReason()));
+                    }
+                }
+            } catch (RuntimeException e) {
+                fail(p, e);
+            }
+        }
+    }
+
+    private void complete(Pending p, DnuTutorConnect.Transaction tx) {
+        finish(p);
+        p.future.complete(tx);
+    }
+
+    private void fail(Pending p, Throwable t) {
+        finish(p);
+        p.future.completeExceptionally(t);
+    }
+
+    private void finish(Pending p) {
+        byBooking(p.request.kind).remove(p.request.booking.getId(), p);
+        p.completedAt = System.nanoTime();
+        inFlight.release();
+    }
+
+    // Drops idempotency keys completed more than keyTtl ago
+    private void sweepKeys() {
+        long now = System.nanoTime();
+        for (Iterator<Pending> it = byKey.values().iterator(); it.hasNext(); ) {
+            long done = it.next().completedAt;
+            if (done != 0 && now - done > keyTtlNanos) it.remove();
+        }
+    }
+
+    /* =======================
+       Stats / shutdown
+       ======================= */
+
+    public long getInFlight() { return maxInFlight - inFlight.availablePermits(); }
+    public long getBatches() { return batches.sum(); }
+    public long getApproved() { return approved.sum(); }
+    public long getDeclined() { return declined.sum(); }
+    public long getRejected() { return rejected.sum(); }
+
+    // Stops accepting payments and waits (up to 1 minute) for those in flight
+    @Override public void close() {
+        closed = true;
+        try {
+            dispatcher.join(TimeUnit.MINUTES.toMillis(1));
+            // enqueued while the dispatcher was stopping
+            for (Pending p; (p = queue.poll()) != null; ) fail(p, new IllegalStateException("payments closed"));
+            workers.shutdown();
+            workers.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
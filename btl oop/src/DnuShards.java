@@ -0,0 +1,605 @@
+import java.io.Closeable;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+/*
+ * Sharded deployment of DnuService: N shards, each a DnuService of its own, behind a router
+ * offering the same operations.
+ *
+ * A tutor lives on shardOf(tutorId) with everything hanging off it (subjects taught,
+ * availability, bookings, ratings, transactions); a student or admin lives on shardOf(userId)
+ * with its learning requests. A booking or rating joins a student to a tutor on the tutor's
+ * shard, so the first one there replicates the student from its home shard (a DnuCodec copy;
+ * user records never change, so a replica cannot go stale). The subject catalog is small and
+ * copied to every shard, with ids assigned by the shard owning the subject's folded name.
+ * Emails and phone numbers are reserved in a directory partitioned by the normalized value,
+ * which keeps them unique across shards.
+ *
+ * Searches and admin listings are scatter-gather: every shard is asked in parallel and the
+ * per-shard results are merged; top-K queries ask each shard for its best K only. Text search
+ * ranks with each shard's own BM25 statistics, so with very uneven shards its order is
+ * approximate.
+ *
+ * Shards are reached through a Transport and never call each other; the router drives every
+ * operation that spans shards. LoopbackTransport hosts the shards in this JVM, each with its
+ * own worker pool and an optional simulated network hop, and hands back the shards' own
+ * objects. A network transport would ship the calls as named operations with DnuCodec-encoded
+ * arguments.
+ *
+ * Not sharded: matchRequest (the request and the booking would change together on two shards)
+ * and journals, which are attached per shard (Transport implementations expose the shards).
+ */
+public class DnuShards implements Closeable {
+
+    // Runs on the shard's side of the transport
+    public interface ShardCall<R> {
+        R apply(Shard shard);
+    }
+
+    public interface Transport extends Closeable {
+        int shardCount();
+        <R> CompletableFuture<R> call(int shard, ShardCall<R> call);
+        @Override void close();
+    }
+
+    private static final Object MISSING = new Object();
+
+    private final Transport transport;
+    private final int shards;
+    // subjects known to be on every shard, by folded name
+    private final Map<String, DnuTutorConnect.Subject> subjects = new ConcurrentHashMap<>();
+
+    public DnuShards(Transport transport) {
+        this.transport = transport;
+        this.shards = transport.shardCount();
+    }
+
+    public static DnuShards loopback(int shards) { return new DnuShards(new LoopbackTransport(shards)); }
+
+    public int shardCount() { return shards; }
+    public Transport getTransport() { return transport; }
+
+    // Home shard of a user, and of a tutor's bookings, ratings and transactions
+    public int shardOf(long userId) { return shardOf(userId, shards); }
+
+    static int shardOf(long userId, int shards) {
+        return (int) (((userId * 0x9E3779B97F4A7C15L) >>> 33) % shards);
+    }
+
+    // Directory shard of an email, phone number or subject name
+    private int shardOfKey(String key) { return Math.floorMod(key.hashCode() * 0x9E3779B9, shards); }
+
+    /* =======================
+       Shards
+       ======================= */
+
+    // One shard: its service plus the slice of the email/phone directory it owns
+    public static final class Shard {
+        private final int index, of;
+        private final DnuTutorConnect.DnuService service;
+        private final ConcurrentHashMap<String, Long> emails = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, Long> phones = new ConcurrentHashMap<>();
+        private final DnuCodec.Resolver resolver;
+        private final ThreadLocal<DnuCodec.Reader> readers = ThreadLocal.withInitial(DnuCodec.Reader::new);
+
+        public Shard(int index, int of, DnuTutorConnect.DnuService service) {
+            this.index = index; this.of = of; this.service = service;
+            this.resolver = DnuCodec.resolver(service);
+        }
+        public int getIndex() { return index; }
+        public DnuTutorConnect.DnuService getService() { return service; }
+
+        boolean isHome(DnuTutorConnect.User u) { return shardOf(u.getId(), of) == index; }
+
+        // The shard's copy of a user, registered from record on first use
+        <U extends DnuTutorConnect.User> U adopt(long id, byte[] record, Class<U> type) {
+            DnuTutorConnect.User u = service.findUser(id).orElse(null);
+            if (u == null) {
+                synchronized (this) { // two first bookings of one student must not both register it
+                    u = service.findUser(id).orElse(null);
+                    if (u == null) u = service.register(readers.get().reset(record, 0, record.length).read(resolver, type));
+                }
+            }
+            return type.cast(u);
+        }
+
+        DnuTutorConnect.Subject restoreSubject(byte[] record) {
+            DnuTutorConnect.Subject s = readers.get().reset(record, 0, record.length).read(resolver, DnuTutorConnect.Subject.class);
+            service.restoreSubject(s);
+            return service.findSubject(s.getId())
+                    .orElseThrow(() -> new IllegalStateException("subject name taken by another id: " + s));
+        }
+
+        <U extends DnuTutorConnect.User> U user(long id, Class<U> type) {
+            DnuTutorConnect.User u = service.findUser(id).orElse(null);
+            if (!type.isInstance(u)) throw new IllegalArgumentException("unknown " + type.getSimpleName() + " " + id);
+            return type.cast(u);
+        }
+
+        DnuTutorConnect.Subject subject(long id) {
+            return service.findSubject(id).orElseThrow(() -> new IllegalArgumentException("unknown subject " + id));
+        }
+
+        DnuTutorConnect.Booking booking(long id) {
+            return service.findBooking(id).orElseThrow(() -> new IllegalArgumentException("unknown booking " + id));
+        }
+
+        // Users homed here, without replicas
+        List<DnuTutorConnect.User> homeUsers() {
+            List<DnuTutorConnect.User> home = new ArrayList<>();
+            for (DnuTutorConnect.User u : service.listAllUsers()) if (isHome(u)) home.add(u);
+            return home;
+        }
+    }
+
+    /*
+     * Every shard in this JVM. Calls run on the target shard's worker pool, so a scatter-gather
+     * query really runs on all shards at once; hopMicros delays both the call and its reply,
+     * like a network round trip, without holding a worker meanwhile.
+     */
+    public static final class LoopbackTransport implements Transport {
+        private final Shard[] shards;
+        private final ExecutorService[] workers;
+        private final long hopNanos;
+
+        public LoopbackTransport(int shards, int threadsPerShard, long hopMicros) {
+            if (shards < 1) throw new IllegalArgumentException("shards must be positive");
+            if (threadsPerShard < 1) throw new IllegalArgumentException("threadsPerShard must be positive");
+            if (hopMicros < 0) throw new IllegalArgumentException("hopMicros must not be negative");
+            this.shards = new Shard[shards];
+            this.workers = new ExecutorService[shards];
+            this.hopNanos = TimeUnit.MICROSECONDS.toNanos(hopMicros);
+            for (int i = 0; i < shards; i++) {
+                this.shards[i] = new Shard(i, shards, new DnuTutorConnect.DnuService());
+                int index = i;
+                AtomicInteger threads = new AtomicInteger();
+                workers[i] = Executors.newFixedThreadPool(threadsPerShard, task -> {
+                    Thread t = new Thread(task, "dnu-shard-" + index + "-" + threads.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+        }
+
+        public LoopbackTransport(int shards) {
+            this(shards, Math.max(2, Runtime.getRuntime().availableProcessors() / Math.max(1, shards)), 0);
+        }
+
+        public Shard shard(int index) { return shards[index]; }
+
+        @Override public int shardCount() { return shards.length; }
+
+        @Override public <R> CompletableFuture<R> call(int shard, ShardCall<R> call) {
+            Shard target = shards[shard];
+            if (hopNanos == 0) return CompletableFuture.supplyAsync(() -> call.apply(target), workers[shard]);
+            Executor there = CompletableFuture.delayedExecutor(hopNanos, TimeUnit.NANOSECONDS, workers[shard]);
+            return CompletableFuture.supplyAsync(() -> call.apply(target), there)
+                    .thenApplyAsync(r -> r, CompletableFuture.delayedExecutor(hopNanos, TimeUnit.NANOSECONDS));
+        }
+
+        @Override public void close() {
+            for (ExecutorService w : workers) w.shutdown();
+            try {
+                for (ExecutorService w : workers) w.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /* =======================
+       Calls
+       ======================= */
+
+    private <R> R call(int shard, ShardCall<R> call) { return join(transport.call(shard, call)); }
+
+    // Asks every shard at once; results in shard order
+    private <R> List<R> scatter(ShardCall<R> call) {
+        List<CompletableFuture<R>> pending = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) pending.add(transport.call(i, call));
+        List<R> results = new ArrayList<>(shards);
+        for (CompletableFuture<R> f : pending) results.add(join(f));
+        return results;
+    }
+
+    // Rethrows what the shard threw, so callers see the same exceptions as from one DnuService
+    private static <R> R join(CompletableFuture<R> f) {
+        try {
+            return f.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error) throw (Error) e.getCause();
+            throw e;
+        }
+    }
+
+    // Runs call on shard with its copy of the student, replicating it from the student's home shard first if needed
+    private <R> R withStudent(int shard, long studentId, BiFunction<Shard, DnuTutorConnect.Student, R> call) {
+        Object result = this.<Object>call(shard, sh -> {
+            DnuTutorConnect.Student s = sh.service.findUser(studentId)
+                    .filter(DnuTutorConnect.Student.class::isInstance).map(DnuTutorConnect.Student.class::cast).orElse(null);
+            return s == null ? MISSING : call.apply(sh, s);
+        });
+        if (result == MISSING) {
+            byte[] record = call(shardOf(studentId), sh -> record(sh.user(studentId, DnuTutorConnect.Student.class)));
+            result = call(shard, sh -> call.apply(sh, sh.adopt(studentId, record, DnuTutorConnect.Student.class)));
+        }
+        @SuppressWarnings("unchecked") R r = (R) result;
+        return r;
+    }
+
+    private <R> R onBooking(DnuTutorConnect.Booking b, BiFunction<Shard, DnuTutorConnect.Booking, R> call) {
+        long id = b.getId();
+        return call(shardOf(b.getTutor().getId()), sh -> call.apply(sh, sh.booking(id)));
+    }
+
+    private static byte[] record(DnuTutorConnect.User u) { return new DnuCodec.Writer().writeUser(u).toByteArray(); }
+
+    /* =======================
+       Users and subjects
+       ======================= */
+
+    public DnuTutorConnect.Student registerStudent(String name, String email, String phone) {
+        return register(new DnuTutorConnect.Student(name, email, phone), DnuTutorConnect.Student.class);
+    }
+    public DnuTutorConnect.Tutor registerTutor(String name, String email, String phone, double feePerHour, String profile) {
+        return register(new DnuTutorConnect.Tutor(name, email, phone, feePerHour, profile), DnuTutorConnect.Tutor.class);
+    }
+    public DnuTutorConnect.Admin registerAdmin(String name, String email, String phone) {
+        return register(new DnuTutorConnect.Admin(name, email, phone), DnuTutorConnect.Admin.class);
+    }
+
+    // Reserves email and phone in the directory, then registers on the home shard; any failure releases both
+    private <U extends DnuTutorConnect.User> U register(U u, Class<U> type) {
+        long id = u.getId();
+        String emailKey = DnuTutorConnect.normalizeEmail(u.getEmail());
+        String phoneKey = DnuTutorConnect.normalizePhone(u.getPhone());
+        int emailShard = shardOfKey(emailKey), phoneShard = phoneKey == null ? -1 : shardOfKey(phoneKey);
+        if (!call(emailShard, sh -> sh.emails.putIfAbsent(emailKey, id) == null))
+            throw new IllegalArgumentException("email already registered: " + u.getEmail());
+        boolean phoneReserved = false;
+        try {
+            if (phoneKey != null) {
+                if (!call(phoneShard, sh -> sh.phones.putIfAbsent(phoneKey, id) == null))
+                    throw new IllegalArgumentException("phone already registered: " + u.getPhone());
+                phoneReserved = true;
+            }
+            byte[] record = record(u);
+            return call(shardOf(id), sh -> sh.adopt(id, record, type));
+        } catch (RuntimeException e) {
+            call(emailShard, sh -> sh.emails.remove(emailKey, id));
+            if (phoneReserved) call(phoneShard, sh -> sh.phones.remove(phoneKey, id));
+            throw e;
+        }
+    }
+
+    // The shard owning the folded name creates the subject; it is then copied to every shard
+    public DnuTutorConnect.Subject createOrGetSubject(String name) {
+        String key = DnuTutorConnect.foldText(name);
+        DnuTutorConnect.Subject known = subjects.get(key);
+        if (known != null) return known;
+        int owner = shardOfKey(key);
+        byte[] record = call(owner, sh -> new DnuCodec.Writer().writeSubject(sh.service.createOrGetSubject(name)).toByteArray());
+        // idempotent, so concurrent first calls may both copy it; either way every shard has it on return
+        DnuTutorConnect.Subject s = scatter(sh -> sh.restoreSubject(record)).get(owner);
+        subjects.putIfAbsent(key, s);
+        return s;
+    }
+
+    public Optional<DnuTutorConnect.Subject> findSubject(String name) {
+        String key = DnuTutorConnect.foldText(name);
+        DnuTutorConnect.Subject known = subjects.get(key);
+        return known != null ? Optional.of(known) : call(shardOfKey(key), sh -> sh.service.findSubject(name));
+    }
+
+    public void addTutorSubject(DnuTutorConnect.Tutor t, DnuTutorConnect.Subject s) {
+        long tutorId = t.getId(), subjectId = s.getId();
+        call(shardOf(tutorId), sh -> {
+            sh.user(tutorId, DnuTutorConnect.Tutor.class).addSubject(sh.subject(subjectId));
+            return null;
+        });
+    }
+
+    public void addTutorAvailability(DnuTutorConnect.Tutor t, LocalDate date, DnuTutorConnect.TimeSlot slot) {
+        long tutorId = t.getId();
+        call(shardOf(tutorId), sh -> {
+            sh.user(tutorId, DnuTutorConnect.Tutor.class).addAvailability(date, slot);
+            return null;
+        });
+    }
+
+    public void setTutorFee(DnuTutorConnect.Tutor t, double feePerHour) {
+        long tutorId = t.getId();
+        call(shardOf(tutorId), sh -> {
+            sh.user(tutorId, DnuTutorConnect.Tutor.class).setFeePerHour(feePerHour);
+            return null;
+        });
+    }
+
+    /* =======================
+       Requests, bookings, ratings, payments
+       ======================= */
+
+    public DnuTutorConnect.LearningRequest postLearningRequest(DnuTutorConnect.Student student, DnuTutorConnect.Subject subject,
+                                                               String desc, Double maxFee, LocalDateTime preferredStart,
+                                                               int durationMinutes) {
+        long studentId = student.getId(), subjectId = subject.getId();
+        return call(shardOf(studentId), sh -> sh.service.postLearningRequest(sh.user(studentId, DnuTutorConnect.Student.class),
+                sh.subject(subjectId), desc, maxFee, preferredStart, durationMinutes));
+    }
+
+    public DnuTutorConnect.LearningRequest postLearningRequest(DnuTutorConnect.Student student, DnuTutorConnect.Subject subject,
+                                                               String desc) {
+        return postLearningRequest(student, subject, desc, null, null, 0);
+    }
+
+    public DnuTutorConnect.Booking createBooking(DnuTutorConnect.Student s, DnuTutorConnect.Tutor t, DnuTutorConnect.Subject subj,
+                                                 LocalDateTime time, int durationMinutes) {
+        long tutorId = t.getId(), subjectId = subj.getId();
+        return withStudent(shardOf(tutorId), s.getId(), (sh, student) -> sh.service.createBooking(student,
+                sh.user(tutorId, DnuTutorConnect.Tutor.class), sh.subject(subjectId), time, durationMinutes));
+    }
+
+    public boolean confirmBooking(DnuTutorConnect.Booking b) { return onBooking(b, (sh, x) -> sh.service.confirmBooking(x)); }
+
+    public boolean markBookingDone(DnuTutorConnect.Booking b) { return onBooking(b, (sh, x) -> sh.service.markBookingDone(x)); }
+
+    public boolean cancelBooking(DnuTutorConnect.Booking b) { return onBooking(b, (sh, x) -> sh.service.cancelBooking(x)); }
+
+    public boolean compareAndSetStatus(DnuTutorConnect.Booking b, DnuTutorConnect.BookingStatus expected,
+                                       DnuTutorConnect.BookingStatus next) {
+        return onBooking(b, (sh, x) -> sh.service.compareAndSetStatus(x, expected, next));
+    }
+
+    public DnuTutorConnect.Rating addRating(DnuTutorConnect.Student s, DnuTutorConnect.Tutor t, int score, String comment) {
+        long tutorId = t.getId();
+        return withStudent(shardOf(tutorId), s.getId(), (sh, student) ->
+                sh.service.addRating(student, sh.user(tutorId, DnuTutorConnect.Tutor.class), score, comment));
+    }
+
+    public DnuTutorConnect.Transaction createTransaction(DnuTutorConnect.Booking b, double amount, String method) {
+        return onBooking(b, (sh, x) -> sh.service.createTransaction(x, amount, method));
+    }
+
+    public DnuTutorConnect.Transaction recordFailedPayment(DnuTutorConnect.Booking b, double amount, String method) {
+        return onBooking(b, (sh, x) -> sh.service.recordFailedPayment(x, amount, method));
+    }
+
+    public DnuTutorConnect.Transaction refundTransaction(DnuTutorConnect.Booking b, String method) {
+        return onBooking(b, (sh, x) -> sh.service.refundTransaction(x, method));
+    }
+
+    /* =======================
+       Scatter-gather queries
+       ======================= */
+
+    // Best rated first, as DnuService.searchTutorsBySubject
+    public List<DnuTutorConnect.Tutor> searchTutorsBySubject(DnuTutorConnect.Subject subject, Double maxFee, Double minRating) {
+        long subjectId = subject.getId();
+        List<List<DnuTutorConnect.Tutor>> found = scatter(sh -> sh.service.findSubject(subjectId)
+                .map(s -> sh.service.searchTutorsBySubject(s, maxFee, minRating)).orElseGet(ArrayList::new));
+        return merge(found, Comparator.comparingDouble(DnuTutorConnect.Tutor::getAverageRating).reversed());
+    }
+
+    /*
+     * Top-K page: every shard returns its best limit tutors after cursor, and the best limit of
+     * those make the page. Cursors hold only the sort key, so they work across shards.
+     */
+    public DnuTutorConnect.TutorPage searchTutors(DnuTutorConnect.Subject subject, Double maxFee, Double minRating,
+                                                  DnuTutorConnect.TutorOrder order, int limit, String cursor) {
+        if (limit <= 0) throw new IllegalArgumentException("limit must be positive");
+        long subjectId = subject.getId();
+        List<DnuTutorConnect.TutorPage> pages = scatter(sh -> sh.service.findSubject(subjectId)
+                .map(s -> sh.service.searchTutors(s, maxFee, minRating, order, limit, cursor))
+                .orElseGet(() -> new DnuTutorConnect.TutorPage(new ArrayList<>(), null)));
+        List<DnuTutorConnect.TutorKey> keys = new ArrayList<>();
+        boolean more = false;
+        for (DnuTutorConnect.TutorPage page : pages) {
+            more |= page.hasNext();
+            for (DnuTutorConnect.Tutor t : page.getTutors()) keys.add(DnuTutorConnect.TutorKey.of(t));
+        }
+        keys.sort(DnuTutorConnect.TutorKey.comparator(order));
+        if (keys.size() > limit) {
+            more = true;
+            keys.subList(limit, keys.size()).clear();
+        }
+        List<DnuTutorConnect.Tutor> tutors = new ArrayList<>(keys.size());
+        for (DnuTutorConnect.TutorKey k : keys) tutors.add(k.tutor);
+        return new DnuTutorConnect.TutorPage(tutors, more ? keys.get(keys.size() - 1).toCursor(order) : null);
+    }
+
+    // Leaderboards: every shard gives its best n of the subject, and the best n of those win
+    public List<DnuLeaderboard.Entry> topTutors(DnuTutorConnect.Subject subject, int n) { return top(subject, n, false); }
+
+    public List<DnuLeaderboard.Entry> topTutorsByRecentRatings(DnuTutorConnect.Subject subject, int n) {
+        return top(subject, n, true);
+    }
+
+    public void enableRecentRatings(int halfLifeDays) {
+        scatter(sh -> { sh.service.enableRecentRatings(halfLifeDays); return null; });
+    }
+
+    private List<DnuLeaderboard.Entry> top(DnuTutorConnect.Subject subject, int n, boolean recent) {
+        if (n <= 0) throw new IllegalArgumentException("n must be positive");
+        long subjectId = subject.getId();
+        List<List<DnuLeaderboard.Entry>> tops = scatter(sh -> sh.service.findSubject(subjectId)
+                .map(s -> recent ? sh.service.topTutorsByRecentRatings(s, n) : sh.service.topTutors(s, n))
+                .orElseGet(ArrayList::new));
+        List<DnuLeaderboard.Entry> merged = merge(tops, DnuLeaderboard.ORDER);
+        return merged.size() > n ? new ArrayList<>(merged.subList(0, n)) : merged;
+    }
+
+    public List<DnuTutorConnect.Tutor> searchTutorsByText(String query, DnuTutorConnect.Subject subject, Double maxFee,
+                                                          Double minRating, int limit) {
+        Long subjectId = subject == null ? null : subject.getId();
+        List<List<DnuTextIndex.Hit<DnuTutorConnect.Tutor>>> hits = scatter(sh -> subjectId == null
+                ? sh.service.tutorTextHits(query, null, maxFee, minRating, limit)
+                : sh.service.findSubject(subjectId).map(s -> sh.service.tutorTextHits(query, s, maxFee, minRating, limit))
+                        .orElseGet(ArrayList::new));
+        return values(mergeHits(hits, limit));
+    }
+
+    public List<DnuTutorConnect.LearningRequest> searchRequestsByText(String query, DnuTutorConnect.Subject subject,
+                                                                      boolean openOnly, int limit) {
+        Long subjectId = subject == null ? null : subject.getId();
+        List<List<DnuTextIndex.Hit<DnuTutorConnect.LearningRequest>>> hits = scatter(sh -> subjectId == null
+                ? sh.service.requestTextHits(query, null, openOnly, limit)
+                : sh.service.findSubject(subjectId).map(s -> sh.service.requestTextHits(query, s, openOnly, limit))
+                        .orElseGet(ArrayList::new));
+        return values(mergeHits(hits, limit));
+    }
+
+    public List<DnuTutorConnect.TutorFreeSlots> findFreeSlots(DnuTutorConnect.Subject subject, LocalDateTime from,
+                                                              LocalDateTime to, int minMinutes, Double maxFee) {
+        long subjectId = subject.getId();
+        List<List<DnuTutorConnect.TutorFreeSlots>> found = scatter(sh -> sh.service.findSubject(subjectId)
+                .map(s -> sh.service.findFreeSlots(s, from, to, minMinutes, maxFee)).orElseGet(ArrayList::new));
+        return merge(found, Comparator.comparingDouble((DnuTutorConnect.TutorFreeSlots f) -> f.getTutor().getAverageRating())
+                .reversed().thenComparingLong(f -> f.getTutor().getId()));
+    }
+
+    // Admin listings
+    public List<DnuTutorConnect.User> listAllUsers() { return concat(scatter(Shard::homeUsers)); }
+
+    // In id (creation) order; each shard lists in commit order, which concurrent bookings may swap
+    public List<DnuTutorConnect.Booking> listAllBookings() {
+        List<DnuTutorConnect.Booking> all = concat(scatter(sh -> sh.service.listAllBookings()));
+        all.sort(Comparator.comparingLong(DnuTutorConnect.Booking::getId));
+        return all;
+    }
+
+    public List<DnuTutorConnect.Transaction> listAllTransactions() {
+        return merge(scatter(sh -> sh.service.listAllTransactions()), Comparator.comparingLong(DnuTutorConnect.Transaction::getId));
+    }
+
+    // Every shard has the catalog, but one still being copied may be missing from some
+    public List<DnuTutorConnect.Subject> listAllSubjects() {
+        Map<Long, DnuTutorConnect.Subject> all = new LinkedHashMap<>();
+        for (List<DnuTutorConnect.Subject> part : scatter(sh -> sh.service.listAllSubjects())) {
+            for (DnuTutorConnect.Subject s : part) all.putIfAbsent(s.getId(), s);
+        }
+        return new ArrayList<>(all.values());
+    }
+
+    public List<DnuTutorConnect.LearningRequest> listAllRequests() { return concat(scatter(sh -> sh.service.listAllRequests())); }
+
+    public List<DnuTutorConnect.LearningRequest> listOpenRequests() { return concat(scatter(sh -> sh.service.listOpenRequests())); }
+
+    // A student's bookings are spread over its tutors' shards
+    public List<DnuTutorConnect.Booking> bookingsOf(DnuTutorConnect.Student s) {
+        long id = s.getId();
+        return merge(scatter(sh -> sh.service.findUser(id).filter(DnuTutorConnect.Student.class::isInstance)
+                        .map(u -> sh.service.bookingsOf((DnuTutorConnect.Student) u)).orElseGet(ArrayList::new)),
+                Comparator.comparingLong(DnuTutorConnect.Booking::getId));
+    }
+
+    public List<DnuTutorConnect.Booking> bookingsOf(DnuTutorConnect.Tutor t) {
+        long id = t.getId();
+        return call(shardOf(id), sh -> sh.service.bookingsOf(sh.user(id, DnuTutorConnect.Tutor.class)));
+    }
+
+    public List<DnuTutorConnect.Rating> ratingsOf(DnuTutorConnect.Tutor t) {
+        long id = t.getId();
+        return call(shardOf(id), sh -> sh.service.ratingsOf(sh.user(id, DnuTutorConnect.Tutor.class)));
+    }
+
+    public Map<LocalDate, List<DnuTutorConnect.TimeSlot>> availabilityOf(DnuTutorConnect.Tutor t) {
+        long id = t.getId();
+        return call(shardOf(id), sh -> sh.service.availabilityOf(sh.user(id, DnuTutorConnect.Tutor.class)));
+    }
+
+    public double totalPaidBetween(LocalDateTime from, LocalDateTime to) {
+        double total = 0;
+        for (double part : scatter(sh -> sh.service.totalPaidBetween(from, to))) total += part;
+        return total;
+    }
+
+    public double tutorEarningsBetween(DnuTutorConnect.Tutor t, LocalDateTime from, LocalDateTime to) {
+        long id = t.getId();
+        return call(shardOf(id), sh -> sh.service.tutorEarningsBetween(sh.user(id, DnuTutorConnect.Tutor.class), from, to));
+    }
+
+    /* =======================
+       Lookups
+       ======================= */
+
+    public Optional<DnuTutorConnect.User> findUser(long id) { return call(shardOf(id), sh -> sh.service.findUser(id)); }
+
+    // Directory shard first, then the user's home shard
+    public Optional<DnuTutorConnect.User> findUserByEmail(String email) {
+        if (email == null || email.isBlank()) return Optional.empty();
+        String key = DnuTutorConnect.normalizeEmail(email);
+        Long id = call(shardOfKey(key), sh -> sh.emails.get(key));
+        return id == null ? Optional.empty() : findUser(id);
+    }
+
+    public Optional<DnuTutorConnect.User> findUserByPhone(String phone) {
+        String key = DnuTutorConnect.normalizePhone(phone);
+        if (key == null) return Optional.empty();
+        Long id = call(shardOfKey(key), sh -> sh.phones.get(key));
+        return id == null ? Optional.empty() : findUser(id);
+    }
+
+    // Booking and request ids do not name their shard, so these ask every shard
+    public Optional<DnuTutorConnect.Booking> findBooking(long id) {
+        for (Optional<DnuTutorConnect.Booking> b : scatter(sh -> sh.service.findBooking(id))) if (b.isPresent()) return b;
+        return Optional.empty();
+    }
+
+    public Optional<DnuTutorConnect.LearningRequest> findRequest(long id) {
+        for (Optional<DnuTutorConnect.LearningRequest> lr : scatter(sh -> sh.service.findRequest(id))) if (lr.isPresent()) return lr;
+        return Optional.empty();
+    }
+
+    @Override public void close() { transport.close(); }
+
+    /* =======================
+       Merging
+       ======================= */
+
+    // k-way merge of lists each sorted by cmp; equal elements keep shard order
+    static <T> List<T> merge(List<List<T>> sorted, Comparator<? super T> cmp) {
+        int total = 0;
+        for (List<T> part : sorted) total += part.size();
+        List<T> merged = new ArrayList<>(total);
+        int[] pos = new int[sorted.size()];
+        PriorityQueue<Integer> heads = new PriorityQueue<>(Math.max(1, sorted.size()), (a, b) -> {
+            int c = cmp.compare(sorted.get(a).get(pos[a]), sorted.get(b).get(pos[b]));
+            return c != 0 ? c : Integer.compare(a, b);
+        });
+        for (int i = 0; i < sorted.size(); i++) if (!sorted.get(i).isEmpty()) heads.add(i);
+        while (!heads.isEmpty()) {
+            int i = heads.poll();
+            merged.add(sorted.get(i).get(pos[i]++));
+            if (pos[i] < sorted.get(i).size()) heads.add(i);
+        }
+        return merged;
+    }
+
+    private static <T> List<DnuTextIndex.Hit<T>> mergeHits(List<List<DnuTextIndex.Hit<T>>> hits, int limit) {
+        List<DnuTextIndex.Hit<T>> merged = merge(hits, Comparator.comparingDouble((DnuTextIndex.Hit<T> h) -> h.getScore()).reversed());
+        return merged.size() > limit ? merged.subList(0, limit) : merged;
+    }
+
+    private static <T> List<T> values(List<DnuTextIndex.Hit<T>> hits) {
+        List<T> values = new ArrayList<>(hits.size());
+        for (DnuTextIndex.Hit<T> h : hits) values.add(h.getValue());
+        return values;
+    }
+
+    private static <T> List<T> concat(List<List<T>> parts) {
+        List<T> all = new ArrayList<>();
+        for (List<T> part : parts) all.addAll(part);
+        return all;
+    }
+}
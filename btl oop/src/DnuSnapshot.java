@@ -0,0 +1,269 @@
+import java.util.*;
+
+/*
+ * Point-in-time, read-only view of a DnuService: the users, subjects, learning requests and
+ * bookings that existed at one commit, each booking with the status it had then, and which
+ * tutors taught which subject.
+ *
+ * Every commit (registration, new subject, request, booking, status change, subject taught)
+ * derives a new snapshot from the previous one and publishes it with a compare-and-set, retrying
+ * from the newer snapshot when another commit won. The collections are persistent vectors
+ * (32-way tries with a tail, as in Clojure): a new version copies only the path to the changed
+ * element, a few 32-slot arrays, and shares all the rest with older versions. Readers never
+ * lock and never copy, and a snapshot stays valid for as long as it is held. Status changes
+ * and the other commits take no lock; only new bookings and new subjects, whose row or slot
+ * is their position in the snapshot, are committed one at a time under the service's commit
+ * lock.
+ *
+ * Bookings are rows of the service's DnuBookingStore, added in commit order, so a snapshot
+ * keeps only their statuses (by row) and hands out views of its first rows.
+ *
+ * Fields that entities change in place (tutor fees and ratings, request status, payments) are
+ * not versioned and read live.
+ */
+public final class DnuSnapshot {
+
+    private final long version;
+    private final Vector<DnuTutorConnect.User> users;
+    private final Vector<DnuTutorConnect.Subject> subjects;
+    private final Vector<Vector<DnuTutorConnect.Tutor>> teaching; // by subject slot
+    private final Vector<DnuTutorConnect.LearningRequest> requests;
+    private final Vector<DnuTutorConnect.BookingStatus> statuses; // by booking row
+    // shared by every version of one service: the booking rows, and subject key -> slot (only grows)
+    private final DnuBookingStore store;
+    private final Map<String, Integer> subjectSlots;
+
+    private DnuSnapshot(long version, Vector<DnuTutorConnect.User> users, Vector<DnuTutorConnect.Subject> subjects,
+                        Vector<Vector<DnuTutorConnect.Tutor>> teaching, Vector<DnuTutorConnect.LearningRequest> requests,
+                        Vector<DnuTutorConnect.BookingStatus> statuses, DnuBookingStore store, Map<String, Integer> subjectSlots) {
+        this.version = version; this.users = users; this.subjects = subjects; this.teaching = teaching;
+        this.requests = requests; this.statuses = statuses; this.store = store; this.subjectSlots = subjectSlots;
+    }
+
+    // First version of a new service
+    static DnuSnapshot empty(DnuBookingStore store) {
+        return new DnuSnapshot(0, Vector.empty(), Vector.empty(), Vector.empty(), Vector.empty(),
+                Vector.empty(), store, new HashMap<>());
+    }
+
+    /* =======================
+       Reading
+       ======================= */
+
+    // Commits included; a later snapshot of the same service has a higher version
+    public long getVersion() { return version; }
+
+    // In commit order; read-only, O(1) to obtain
+    public List<DnuTutorConnect.User> users() { return users.asList(); }
+    public List<DnuTutorConnect.Subject> subjects() { return subjects.asList(); }
+    public List<DnuTutorConnect.LearningRequest> requests() { return requests.asList(); }
+    public List<DnuTutorConnect.Booking> bookings() {
+        int size = statuses.size();
+        return new AbstractList<DnuTutorConnect.Booking>() {
+            @Override public DnuTutorConnect.Booking get(int i) { return store.view(Objects.checkIndex(i, size)); }
+            @Override public int size() { return size; }
+        };
+    }
+
+    public boolean contains(DnuTutorConnect.Booking b) {
+        int row = b.rowIn(store);
+        return row >= 0 && row < statuses.size();
+    }
+
+    // Status of b at this snapshot, or null if b did not exist yet
+    public DnuTutorConnect.BookingStatus statusOf(DnuTutorConnect.Booking b) {
+        return contains(b) ? statuses.get(b.rowIn(store)) : null;
+    }
+
+    public List<DnuTutorConnect.Booking> bookings(DnuTutorConnect.BookingStatus status) {
+        List<DnuTutorConnect.Booking> found = new ArrayList<>();
+        for (int i = 0; i < statuses.size(); i++) if (statuses.get(i) == status) found.add(store.view(i));
+        return found;
+    }
+
+    public List<DnuTutorConnect.Tutor> tutorsOf(DnuTutorConnect.Subject subject) {
+        Integer slot;
+        synchronized (subjectSlots) { slot = subjectSlots.get(subject.getKey()); }
+        return slot == null || slot >= teaching.size() ? Collections.emptyList() : teaching.get(slot).asList();
+    }
+
+    /*
+     * Tutors teaching subject at this snapshot, filtered and ordered by their current fee and
+     * rating (best rated first, then by id). Ratings are captured once before sorting, so
+     * concurrent ratings cannot upset the sort.
+     */
+    public List<DnuTutorConnect.Tutor> searchTutorsBySubject(DnuTutorConnect.Subject subject, Double maxFee, Double minRating) {
+        List<DnuTutorConnect.TutorKey> keys = new ArrayList<>();
+        for (DnuTutorConnect.Tutor t : tutorsOf(subject)) {
+            DnuTutorConnect.TutorKey k = DnuTutorConnect.TutorKey.of(t);
+            if ((maxFee == null || k.fee <= maxFee) && (minRating == null || k.rating >= minRating)) keys.add(k);
+        }
+        keys.sort(DnuTutorConnect.TutorKey.comparator(DnuTutorConnect.TutorOrder.RATING));
+        List<DnuTutorConnect.Tutor> found = new ArrayList<>(keys.size());
+        for (DnuTutorConnect.TutorKey k : keys) found.add(k.tutor);
+        return found;
+    }
+
+    @Override public String toString() {
+        return String.format("DnuSnapshot{version=%d, users=%d, subjects=%d, requests=%d, bookings=%d}",
+                version, users.size(), subjects.size(), requests.size(), statuses.size());
+    }
+
+    /* =======================
+       Commits (DnuService; a commit may be retried, so the only side effect here is
+       withSubject's slot reservation, which a retry reuses)
+       ======================= */
+
+    private DnuSnapshot with(Vector<DnuTutorConnect.User> users, Vector<DnuTutorConnect.Subject> subjects,
+                             Vector<Vector<DnuTutorConnect.Tutor>> teaching, Vector<DnuTutorConnect.LearningRequest> requests,
+                             Vector<DnuTutorConnect.BookingStatus> statuses) {
+        return new DnuSnapshot(version + 1, users, subjects, teaching, requests, statuses, store, subjectSlots);
+    }
+
+    // teaches: the subjects a newly registered tutor already has (empty for other users)
+    DnuSnapshot withUser(DnuTutorConnect.User u, Collection<DnuTutorConnect.Subject> teaches) {
+        Vector<Vector<DnuTutorConnect.Tutor>> t = teaching;
+        for (DnuTutorConnect.Subject s : teaches) t = teach(t, (DnuTutorConnect.Tutor) u, s);
+        return with(users.append(u), subjects, t, requests, statuses);
+    }
+
+    DnuSnapshot withSubject(DnuTutorConnect.Subject s) {
+        synchronized (subjectSlots) {
+            Integer slot = subjectSlots.putIfAbsent(s.getKey(), subjects.size());
+            if (slot != null && slot < subjects.size()) return this;
+        }
+        return with(users, subjects.append(s), teaching.append(Vector.empty()), requests, statuses);
+    }
+
+    DnuSnapshot withTutorSubject(DnuTutorConnect.Tutor t, DnuTutorConnect.Subject s) {
+        Vector<Vector<DnuTutorConnect.Tutor>> updated = teach(teaching, t, s);
+        return updated == teaching ? this : with(users, subjects, updated, requests, statuses);
+    }
+
+    // Replaces every subject's tutors, e.g. after a bulk import attached subjects unindexed
+    DnuSnapshot withTeaching(Collection<DnuTutorConnect.Tutor> tutors) {
+        Vector<Vector<DnuTutorConnect.Tutor>> t = Vector.empty();
+        for (int i = 0; i < subjects.size(); i++) t = t.append(Vector.empty());
+        for (DnuTutorConnect.Tutor tutor : tutors) {
+            for (DnuTutorConnect.Subject s : tutor.getSubjects()) t = teach(t, tutor, s);
+        }
+        return with(users, subjects, t, requests, statuses);
+    }
+
+    // Subjects this service never created (no slot) are left out, as from tutorsOf
+    private Vector<Vector<DnuTutorConnect.Tutor>> teach(Vector<Vector<DnuTutorConnect.Tutor>> t,
+                                                        DnuTutorConnect.Tutor tutor, DnuTutorConnect.Subject s) {
+        Integer slot;
+        synchronized (subjectSlots) { slot = subjectSlots.get(s.getKey()); }
+        if (slot == null || slot >= t.size()) return t;
+        return t.set(slot, t.get(slot).append(tutor));
+    }
+
+    DnuSnapshot withRequest(DnuTutorConnect.LearningRequest lr) {
+        return with(users, subjects, teaching, requests.append(lr), statuses);
+    }
+
+    // row: the store row just added, which must be the next one after this snapshot's
+    DnuSnapshot withBooking(int row, DnuTutorConnect.BookingStatus status) {
+        if (row != statuses.size()) throw new IllegalStateException("booking row " + row + " committed out of order");
+        return with(users, subjects, teaching, requests, statuses.append(status));
+    }
+
+    DnuSnapshot withBookingStatus(DnuTutorConnect.Booking b, DnuTutorConnect.BookingStatus status) {
+        if (!contains(b)) return this;
+        return with(users, subjects, teaching, requests, statuses.set(b.rowIn(store), status));
+    }
+
+    /* =======================
+       Persistent vector
+       ======================= */
+
+    // Immutable; append and set return a new vector sharing all untouched nodes with this one
+    static final class Vector<T> {
+        private static final int BITS = 5, WIDTH = 1 << BITS, MASK = WIDTH - 1;
+        private static final Vector<?> EMPTY = new Vector<>(0, BITS, new Object[WIDTH], new Object[0]);
+
+        private final int size, shift;
+        private final Object[] root, tail; // the last (up to 32) elements live in tail, outside the trie
+
+        private Vector(int size, int shift, Object[] root, Object[] tail) {
+            this.size = size; this.shift = shift; this.root = root; this.tail = tail;
+        }
+
+        @SuppressWarnings("unchecked")
+        static <T> Vector<T> empty() { return (Vector<T>) EMPTY; }
+
+        int size() { return size; }
+
+        private int tailOffset() { return size < WIDTH ? 0 : ((size - 1) >>> BITS) << BITS; }
+
+        @SuppressWarnings("unchecked")
+        T get(int i) {
+            Objects.checkIndex(i, size);
+            if (i >= tailOffset()) return (T) tail[i & MASK];
+            Object[] node = root;
+            for (int level = shift; level > 0; level -= BITS) node = (Object[]) node[(i >>> level) & MASK];
+            return (T) node[i & MASK];
+        }
+
+        Vector<T> append(T x) {
+            if (size - tailOffset() < WIDTH) {
+                Object[] t = Arrays.copyOf(tail, tail.length + 1);
+                t[tail.length] = x;
+                return new Vector<>(size + 1, shift, root, t);
+            }
+            // tail full: move it into the trie, growing a level when the root is full
+            Object[] newRoot;
+            int newShift = shift;
+            if ((size >>> BITS) > (1 << shift)) {
+                newRoot = new Object[WIDTH];
+                newRoot[0] = root;
+                newRoot[1] = newPath(shift, tail);
+                newShift += BITS;
+            } else {
+                newRoot = pushTail(shift, root, tail);
+            }
+            return new Vector<>(size + 1, newShift, newRoot, new Object[] { x });
+        }
+
+        private Object[] pushTail(int level, Object[] parent, Object[] leaf) {
+            int sub = ((size - 1) >>> level) & MASK;
+            Object[] copy = parent.clone();
+            Object child = parent[sub];
+            copy[sub] = level == BITS ? leaf
+                    : child != null ? pushTail(level - BITS, (Object[]) child, leaf) : newPath(level - BITS, leaf);
+            return copy;
+        }
+
+        private static Object[] newPath(int level, Object[] leaf) {
+            if (level == 0) return leaf;
+            Object[] node = new Object[WIDTH];
+            node[0] = newPath(level - BITS, leaf);
+            return node;
+        }
+
+        Vector<T> set(int i, T x) {
+            Objects.checkIndex(i, size);
+            if (i >= tailOffset()) {
+                Object[] t = tail.clone();
+                t[i & MASK] = x;
+                return new Vector<>(size, shift, root, t);
+            }
+            return new Vector<>(size, shift, set(shift, root, i, x), tail);
+        }
+
+        private static Object[] set(int level, Object[] node, int i, Object x) {
+            Object[] copy = node.clone();
+            if (level == 0) copy[i & MASK] = x;
+            else copy[(i >>> level) & MASK] = set(level - BITS, (Object[]) node[(i >>> level) & MASK], i, x);
+            return copy;
+        }
+
+        List<T> asList() {
+            return new AbstractList<T>() {
+                @Override public T get(int i) { return Vector.this.get(i); }
+                @Override public int size() { return size; }
+            };
+        }
+    }
+}
@@ -0,0 +1,227 @@
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Admin reporting aggregates of one DnuService, updated on every transaction and booking status
+ * change, so that no report scans history:
+ *
+ *   revenue (payments minus refunds, in minor units) in total, per day, per tutor, per subject
+ *   bookings per status, in total and per session day (so cancellation rates for any range)
+ *
+ * Per-day figures are Fenwick trees over epoch days 1970-01-01 .. 2328 (days outside are
+ * counted on the nearest end), so any date range costs two O(log n) prefix sums. An update
+ * adds its delta to the log n nodes covering its day, and every prefix sum covers a given day
+ * with exactly one node, so a single prefix sum sees an update entirely or not at all. Updates
+ * are lock-free (AtomicLongArray); a tree takes its 1 MB only once something is counted in it.
+ *
+ * A tree per tutor would not fit, so per-tutor and per-subject revenue is a sparse series per
+ * key: only the days it has transactions on, ascending, with running sums. Transactions arrive
+ * in date order, so an update appends or adds to the last day; a range is two binary searches.
+ * Each series has its own monitor, so only payments of the same tutor (or subject) contend.
+ */
+public class DnuStats {
+
+    private static final int DAY_BITS = 17, DAYS = 1 << DAY_BITS;
+
+    // Fenwick tree over epoch days
+    static final class DayTree {
+        private volatile AtomicLongArray tree; // 1-based; null until the first add
+
+        void add(long epochDay, long delta) {
+            AtomicLongArray t = tree;
+            if (t == null) t = allocate();
+            for (int i = indexOf(epochDay); i <= DAYS; i += i & -i) t.getAndAdd(i, delta);
+        }
+
+        private synchronized AtomicLongArray allocate() {
+            if (tree == null) tree = new AtomicLongArray(DAYS + 1);
+            return tree;
+        }
+
+        // Days [0, epochDay]
+        long upTo(long epochDay) {
+            AtomicLongArray t = tree;
+            if (t == null) return 0;
+            long sum = 0;
+            for (int i = indexOf(epochDay); i > 0; i -= i & -i) sum += t.get(i);
+            return sum;
+        }
+
+        // Days [from, to)
+        long between(LocalDate from, LocalDate to) {
+            if (!from.isBefore(to)) return 0;
+            long first = from.toEpochDay(), end = to.toEpochDay();
+            return upTo(end - 1) - (first <= 0 ? 0 : upTo(first - 1));
+        }
+
+        private static int indexOf(long epochDay) { return (int) Math.max(0, Math.min(DAYS - 1, epochDay)) + 1; }
+    }
+
+    // Per-day totals of one key, on the days that have any
+    static final class DaySeries {
+        private long[] days = new long[4]; // ascending
+        private long[] sums = new long[4]; // sums[i]: total of days[0..i]
+        private int size;
+
+        void add(long epochDay, long delta) {
+            int i = size > 0 && days[size - 1] < epochDay ? -(size + 1) : Arrays.binarySearch(days, 0, size, epochDay);
+            if (i < 0) {
+                i = -(i + 1);
+                if (size == days.length) {
+                    days = Arrays.copyOf(days, size * 2);
+                    sums = Arrays.copyOf(sums, size * 2);
+                }
+                System.arraycopy(days, i, days, i + 1, size - i);
+                System.arraycopy(sums, i, sums, i + 1, size - i);
+                days[i] = epochDay;
+                sums[i] = i == 0 ? 0 : sums[i - 1];
+                size++;
+            }
+            for (int j = i; j < size; j++) sums[j] += delta; // one entry unless the day is out of order
+        }
+
+        long total() { return size == 0 ? 0 : sums[size - 1]; }
+
+        // Days before epochDay
+        long before(long epochDay) {
+            int i = Arrays.binarySearch(days, 0, size, epochDay);
+            if (i < 0) i = -(i + 1);
+            return i == 0 ? 0 : sums[i - 1];
+        }
+    }
+
+    // long id -> DaySeries; each series is locked on its own, so different tutors never contend
+    static final class DayCounters {
+        private final ConcurrentHashMap<Long, DaySeries> series = new ConcurrentHashMap<>();
+
+        void add(long key, long epochDay, long delta) {
+            DaySeries s = series.computeIfAbsent(key, k -> new DaySeries());
+            synchronized (s) { s.add(epochDay, delta); }
+        }
+
+        long get(long key) {
+            DaySeries s = series.get(key);
+            if (s == null) return 0;
+            synchronized (s) { return s.total(); }
+        }
+
+        // Days [from, to)
+        long between(long key, LocalDate from, LocalDate to) {
+            DaySeries s = series.get(key);
+            if (s == null || !from.isBefore(to)) return 0;
+            synchronized (s) { return s.before(to.toEpochDay()) - s.before(from.toEpochDay()); }
+        }
+    }
+
+    private static final DnuTutorConnect.BookingStatus[] STATUSES = DnuTutorConnect.BookingStatus.values();
+
+    private final LongAdder revenue = new LongAdder();
+    private final DayTree revenueByDay = new DayTree();
+    private final DayCounters revenueByTutor = new DayCounters();
+    private final DayCounters revenueBySubject = new DayCounters();
+    private final LongAdder[] bookings = new LongAdder[STATUSES.length];
+    private final DayTree[] bookingsByDay = new DayTree[STATUSES.length];
+
+    public DnuStats() {
+        for (int i = 0; i < STATUSES.length; i++) {
+            bookings[i] = new LongAdder();
+            bookingsByDay[i] = new DayTree();
+        }
+    }
+
+    /* =======================
+       Updates (DnuService)
+       ======================= */
+
+    void transactionRecorded(DnuTutorConnect.Transaction tx) {
+        long amount = Math.round(tx.getAmount() * 100);
+        switch (tx.getStatus()) {
+            case PAID: break;
+            case REFUNDED: amount = -amount; break;
+            default: return;
+        }
+        DnuTutorConnect.Booking b = tx.getBooking();
+        long day = tx.getCreatedAt().toLocalDate().toEpochDay();
+        revenue.add(amount);
+        revenueByDay.add(day, amount);
+        revenueByTutor.add(b.getTutor().getId(), day, amount);
+        revenueBySubject.add(b.getSubject().getId(), day, amount);
+    }
+
+    void bookingAdded(DnuTutorConnect.Booking b, DnuTutorConnect.BookingStatus status) {
+        count(b, status, 1);
+    }
+
+    void bookingStatusChanged(DnuTutorConnect.Booking b, DnuTutorConnect.BookingStatus from, DnuTutorConnect.BookingStatus to) {
+        if (from == to) return;
+        count(b, to, 1); // before the decrement, so a concurrent total never dips
+        count(b, from, -1);
+    }
+
+    private void count(DnuTutorConnect.Booking b, DnuTutorConnect.BookingStatus status, long delta) {
+        bookings[status.ordinal()].add(delta);
+        bookingsByDay[status.ordinal()].add(Math.floorDiv(b.getStartMinute(), 1440), delta);
+    }
+
+    /* =======================
+       Reports
+       ======================= */
+
+    // Net revenue (payments minus refunds)
+    public double getRevenue() { return revenue.sum() / 100.0; }
+
+    // Net revenue of transactions made on days [from, to)
+    public double getRevenueBetween(LocalDate from, LocalDate to) { return revenueByDay.between(from, to) / 100.0; }
+
+    public double getRevenueOf(DnuTutorConnect.Tutor t) { return revenueByTutor.get(t.getId()) / 100.0; }
+
+    public double getRevenueOf(DnuTutorConnect.Subject s) { return revenueBySubject.get(s.getId()) / 100.0; }
+
+    // Net revenue of t's transactions made on days [from, to)
+    public double getRevenueBetween(DnuTutorConnect.Tutor t, LocalDate from, LocalDate to) {
+        return revenueByTutor.between(t.getId(), from, to) / 100.0;
+    }
+
+    public double getRevenueBetween(DnuTutorConnect.Subject s, LocalDate from, LocalDate to) {
+        return revenueBySubject.between(s.getId(), from, to) / 100.0;
+    }
+
+    public long getBookings(DnuTutorConnect.BookingStatus status) { return bookings[status.ordinal()].sum(); }
+
+    public long getBookings() {
+        long total = 0;
+        for (LongAdder n : bookings) total += n.sum();
+        return total;
+    }
+
+    // Bookings with sessions on days [from, to) that are now in status
+    public long getBookingsBetween(DnuTutorConnect.BookingStatus status, LocalDate from, LocalDate to) {
+        return bookingsByDay[status.ordinal()].between(from, to);
+    }
+
+    public long getBookingsBetween(LocalDate from, LocalDate to) {
+        long total = 0;
+        for (DayTree t : bookingsByDay) total += t.between(from, to);
+        return total;
+    }
+
+    // Share of bookings cancelled (0 when there are none)
+    public double getCancellationRate() {
+        long total = getBookings();
+        return total == 0 ? 0 : (double) getBookings(DnuTutorConnect.BookingStatus.CANCELLED) / total;
+    }
+
+    public double getCancellationRate(LocalDate from, LocalDate to) {
+        long total = getBookingsBetween(from, to);
+        return total == 0 ? 0 : (double) getBookingsBetween(DnuTutorConnect.BookingStatus.CANCELLED, from, to) / total;
+    }
+
+    @Override public String toString() {
+        StringBuilder s = new StringBuilder(String.format("revenue=%.2f bookings={", getRevenue()));
+        for (int i = 0; i < STATUSES.length; i++) s.append(i == 0 ? "" : ", ").append(STATUSES[i]).append('=').append(bookings[i].sum());
+        return s.append(String.format("} cancellationRate=%.3f", getCancellationRate())).toString();
+    }
+}
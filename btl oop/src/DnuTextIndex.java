@@ -0,0 +1,300 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/*
+ * In-memory inverted index over short Vietnamese/English texts (tutor profiles, learning
+ * request descriptions), ranked with BM25 (k1 = 1.2, b = 0.75).
+ *
+ * Text is folded with DnuTutorConnect.foldText ("Đồ án Java" -> "do an java") and split on
+ * anything that is not a letter or digit. Vietnamese writes words as space-separated
+ * syllables, so besides every syllable the index holds every pair of adjacent syllables
+ * ("do an", "an java"): a query for "do an" then ranks the compound above texts that merely
+ * contain "do" and "an" apart.
+ *
+ * Documents get dense ordinals in insertion order, so each posting list is an append-only,
+ * sorted int array. Queries run document-at-a-time with MaxScore pruning: once limit hits
+ * are held, terms whose combined best case cannot beat the weakest hit only score documents
+ * found through the other terms (skipping ahead by galloping search), and runs of 64
+ * postings whose best case cannot beat it either are skipped whole (block-max), so frequent
+ * syllables cost little. The filter runs only for documents that would enter the top `limit`.
+ *
+ * One writer at a time (add() is synchronized); queries are lock-free and see every
+ * document added before they started.
+ */
+public class DnuTextIndex<T> {
+
+    private static final double K1 = 1.2, B = 0.75;
+    private static final int CHUNK_BITS = 14, CHUNK = 1 << CHUNK_BITS;
+    private static final int BLOCK_BITS = 6; // postings per block-max entry: 64
+
+    public static final class Hit<T> {
+        private final T value;
+        private final double score;
+        private final int doc;
+
+        Hit(T value, double score, int doc) { this.value = value; this.score = score; this.doc = doc; }
+        public T getValue() { return value; }
+        public double getScore() { return score; }
+        @Override public String toString() { return String.format("%s (%.3f)", value, score); }
+    }
+
+    /*
+     * Posting arrays are replaced when they grow; size is written after them, so a reader that
+     * reads size first always finds at least that many postings. Every block of 64 postings
+     * also keeps its highest term frequency and shortest document, which bound the score of
+     * any posting in the block.
+     */
+    private static final class Postings {
+        volatile int[] docs = new int[4];
+        volatile byte[] freqs = new byte[4]; // capped at 127
+        volatile byte[] blockMaxFreq = new byte[1];
+        volatile int[] blockMinLength = new int[1];
+        volatile int size;
+
+        void append(int doc, int freq, int length) {
+            int n = size, block = n >>> BLOCK_BITS;
+            int[] d = docs;
+            byte[] f = freqs;
+            byte[] bf = blockMaxFreq;
+            int[] bl = blockMinLength;
+            if (n == d.length) {
+                d = Arrays.copyOf(d, n * 2);
+                f = Arrays.copyOf(f, n * 2);
+            }
+            if (block == bf.length) {
+                bf = Arrays.copyOf(bf, block * 2);
+                bl = Arrays.copyOf(bl, block * 2);
+            }
+            d[n] = doc;
+            f[n] = (byte) Math.min(freq, 127);
+            if ((n & ((1 << BLOCK_BITS) - 1)) == 0) { bf[block] = 0; bl[block] = Integer.MAX_VALUE; }
+            bf[block] = (byte) Math.max(bf[block], f[n]);
+            bl[block] = Math.min(bl[block], length);
+            docs = d;
+            freqs = f;
+            blockMaxFreq = bf;
+            blockMinLength = bl;
+            size = n + 1;
+        }
+    }
+
+    private final Map<String, Postings> terms = new ConcurrentHashMap<>();
+    // per document, in chunks of CHUNK so growing never copies them
+    private volatile Object[][] values = new Object[16][];
+    private volatile int[][] lengths = new int[16][];
+    private volatile int docCount;
+    private volatile long totalLength;
+
+    /* =======================
+       Tokenizing
+       ======================= */
+
+    // Syllables of the folded text, in order
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null) return tokens;
+        String folded = DnuTutorConnect.foldText(text);
+        int start = -1;
+        for (int i = 0; i <= folded.length(); i++) {
+            boolean word = i < folded.length() && Character.isLetterOrDigit(folded.charAt(i));
+            if (word && start < 0) start = i;
+            else if (!word && start >= 0) { tokens.add(folded.substring(start, i)); start = -1; }
+        }
+        return tokens;
+    }
+
+    // Syllables and adjacent pairs with their counts, in first-seen order
+    private static Map<String, Integer> terms(String text) {
+        List<String> tokens = tokenize(text);
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        for (int i = 0; i < tokens.size(); i++) {
+            counts.merge(tokens.get(i), 1, Integer::sum);
+            if (i > 0) counts.merge(tokens.get(i - 1) + ' ' + tokens.get(i), 1, Integer::sum);
+        }
+        return counts;
+    }
+
+    /* =======================
+       Indexing
+       ======================= */
+
+    public synchronized void add(T value, String text) {
+        Map<String, Integer> counts = terms(text);
+        int doc = docCount, length = 0;
+        for (int c : counts.values()) length += c;
+        int chunk = doc >>> CHUNK_BITS;
+        if (chunk == values.length) {
+            values = Arrays.copyOf(values, chunk * 2);
+            lengths = Arrays.copyOf(lengths, chunk * 2);
+        }
+        if (values[chunk] == null) {
+            values[chunk] = new Object[CHUNK];
+            lengths[chunk] = new int[CHUNK];
+        }
+        values[chunk][doc & (CHUNK - 1)] = value;
+        lengths[chunk][doc & (CHUNK - 1)] = length;
+        for (Map.Entry<String, Integer> e : counts.entrySet()) {
+            terms.computeIfAbsent(e.getKey(), k -> new Postings()).append(doc, e.getValue(), length);
+        }
+        totalLength += length;
+        docCount = doc + 1; // publishes the document
+    }
+
+    public int size() { return docCount; }
+
+    @SuppressWarnings("unchecked")
+    private T value(int doc) { return (T) values[doc >>> CHUNK_BITS][doc & (CHUNK - 1)]; }
+
+    private int length(int doc) { return lengths[doc >>> CHUNK_BITS][doc & (CHUNK - 1)]; }
+
+    /* =======================
+       Querying
+       ======================= */
+
+    // One query term's posting list, walked forwards
+    private static final class Cursor {
+        final int[] docs;
+        final byte[] freqs, blockMaxFreq;
+        final int[] blockMinLength;
+        final int size;
+        final double idf, maxScore;
+        int pos;
+        private int boundBlock = -1;
+        private double bound;
+
+        Cursor(Postings p, int docCount) {
+            size = p.size; // before the arrays, see Postings
+            docs = p.docs;
+            freqs = p.freqs;
+            blockMaxFreq = p.blockMaxFreq;
+            blockMinLength = p.blockMinLength;
+            idf = Math.log(1 + (docCount - size + 0.5) / (size + 0.5));
+            maxScore = idf * (K1 + 1);
+        }
+
+        int doc() { return pos < size ? docs[pos] : Integer.MAX_VALUE; }
+
+        // Highest score any posting of the current block can get (0 when exhausted)
+        double blockBound(double avgLength) {
+            if (pos >= size) return 0;
+            int block = pos >>> BLOCK_BITS;
+            if (block != boundBlock) {
+                int tf = blockMaxFreq[block];
+                bound = idf * tf * (K1 + 1) / (tf + K1 * (1 - B + B * blockMinLength[block] / avgLength));
+                boundBlock = block;
+            }
+            return bound;
+        }
+
+        // Last document of the current block
+        int blockLastDoc() {
+            return docs[Math.min(size, ((pos >>> BLOCK_BITS) + 1) << BLOCK_BITS) - 1];
+        }
+
+        // Moves to the first posting >= target: gallop, then binary search
+        void advance(int target) {
+            if (pos >= size || docs[pos] >= target) return;
+            int step = 1, lo = pos, hi = pos + 1;
+            while (hi < size && docs[hi] < target) { lo = hi; step <<= 1; hi = pos + step; }
+            hi = Math.min(hi, size);
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (docs[mid] < target) lo = mid + 1; else hi = mid;
+            }
+            pos = lo;
+        }
+    }
+
+    /*
+     * The best `limit` documents for query that pass filter (null for none), best first. A
+     * document matches if it contains any query term; ties go to the older document.
+     */
+    public List<Hit<T>> search(String query, Predicate<? super T> filter, int limit) {
+        if (limit <= 0) throw new IllegalArgumentException("limit must be positive");
+        int n = docCount;
+        long total = totalLength;
+        if (n == 0) return new ArrayList<>();
+        double avgLength = Math.max(1, (double) total / n);
+
+        List<Cursor> found = new ArrayList<>();
+        for (String term : terms(query).keySet()) {
+            Postings p = terms.get(term);
+            if (p != null && p.size > 0) found.add(new Cursor(p, n));
+        }
+        if (found.isEmpty()) return new ArrayList<>();
+        // ascending best case; prefix[i] = best case of terms 0..i together
+        found.sort((a, b) -> Double.compare(a.maxScore, b.maxScore));
+        Cursor[] cursors = found.toArray(new Cursor[0]);
+        double[] prefix = new double[cursors.length];
+        for (int i = 0; i < cursors.length; i++) prefix[i] = (i == 0 ? 0 : prefix[i - 1]) + cursors[i].maxScore;
+
+        // weakest hit on top; of equal scores the newer document goes first
+        PriorityQueue<Hit<T>> heap = new PriorityQueue<>(limit + 1, (a, b) -> a.score != b.score
+                ? Double.compare(a.score, b.score) : Integer.compare(b.doc, a.doc));
+        double threshold = 0;
+        int essential = 0; // terms below this index cannot make a hit on their own
+        while (true) {
+            int doc = Integer.MAX_VALUE;
+            for (int i = essential; i < cursors.length; i++) doc = Math.min(doc, cursors[i].doc());
+            if (doc >= n) break; // exhausted, or only documents added after the query started
+
+            if (heap.size() == limit) {
+                // block-max skip: if no document up to the end of the nearest block can beat
+                // the weakest hit, move every essential cursor past it
+                double bound = essential == 0 ? 0 : prefix[essential - 1];
+                int blockEnd = Integer.MAX_VALUE;
+                for (int i = essential; i < cursors.length; i++) {
+                    Cursor c = cursors[i];
+                    if (c.pos >= c.size) continue;
+                    bound += c.blockBound(avgLength);
+                    blockEnd = Math.min(blockEnd, c.blockLastDoc());
+                }
+                if (bound <= threshold) {
+                    if (blockEnd == Integer.MAX_VALUE) break;
+                    for (int i = essential; i < cursors.length; i++) cursors[i].advance(blockEnd + 1);
+                    continue;
+                }
+            }
+            double norm = K1 * (1 - B + B * length(doc) / avgLength);
+            double score = 0;
+            for (int i = essential; i < cursors.length; i++) {
+                Cursor c = cursors[i];
+                if (c.doc() == doc) {
+                    score += termScore(c, norm);
+                    c.pos++;
+                }
+            }
+            for (int i = essential - 1; i >= 0 && score + prefix[i] > threshold; i--) {
+                Cursor c = cursors[i];
+                c.advance(doc);
+                if (c.doc() == doc) score += termScore(c, norm);
+            }
+            if (heap.size() < limit || score > threshold) {
+                T value = value(doc);
+                if (filter == null || filter.test(value)) {
+                    heap.add(new Hit<>(value, score, doc));
+                    if (heap.size() > limit) heap.poll();
+                    if (heap.size() == limit) {
+                        threshold = heap.peek().score;
+                        while (essential < cursors.length && prefix[essential] <= threshold) essential++;
+                        if (essential == cursors.length) break; // nothing left can beat the hits held
+                    }
+                }
+            }
+        }
+        List<Hit<T>> hits = new ArrayList<>(heap);
+        hits.sort((a, b) -> a.score != b.score ? Double.compare(b.score, a.score) : Integer.compare(a.doc, b.doc));
+        return hits;
+    }
+
+    private static double termScore(Cursor c, double norm) {
+        int tf = c.freqs[c.pos];
+        return c.idf * tf * (K1 + 1) / (tf + norm);
+    }
+}
@@ -1,32 +1,171 @@
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.text.Normalizer;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.UnaryOperator;
+import java.util.regex.Pattern;
 
 public class DnuTutorConnect {
 
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    /* =======================
+       Entity ids
+       ======================= */
+
+    public interface IdGenerator { long nextId(); }
+
+    /*
+     * Default generator: k-sortable 64-bit ids, milliseconds since 2024-01-01 UTC in the high
+     * 42 bits and a counter in the low 22 bits (4M ids per millisecond). A single CAS keeps ids
+     * strictly increasing across threads, even if the clock steps back.
+     */
+    public static final class MonotonicIdGenerator implements IdGenerator {
+        private static final long EPOCH_MILLIS = 1704067200000L;
+        private static final int COUNTER_BITS = 22;
+        private final AtomicLong last = new AtomicLong();
+
+        @Override public long nextId() {
+            long floor = (System.currentTimeMillis() - EPOCH_MILLIS) << COUNTER_BITS;
+            while (true) {
+                long prev = last.get();
+                long next = Math.max(prev + 1, floor);
+                if (last.compareAndSet(prev, next)) return next;
+            }
+        }
+
+        public static long timestampMillis(long id) { return (id >>> COUNTER_BITS) + EPOCH_MILLIS; }
+    }
+
+    private static volatile IdGenerator idGenerator = new MonotonicIdGenerator();
+
+    public static void setIdGenerator(IdGenerator generator) { idGenerator = Objects.requireNonNull(generator); }
+
+    static long nextId() { return idGenerator.nextId(); }
+
+    /*
+     * Open-addressing set of long ids, for bookkeeping that would otherwise box
+     * millions of keys (e.g. journal replay). Not thread-safe.
+     */
+    static final class LongHashSet {
+        private static final long FREE = 0; // ids are never 0; 0 itself is tracked separately
+        private long[] slots = new long[16];
+        private int size;
+        private boolean hasZero;
+
+        boolean add(long key) {
+            if (key == FREE) { boolean added = !hasZero; hasZero = true; return added; }
+            if ((size + 1) * 2 > slots.length) rehash(slots.length * 2);
+            int i = slot(key, slots.length);
+            while (slots[i] != FREE) {
+                if (slots[i] == key) return false;
+                i = (i + 1) & (slots.length - 1);
+            }
+            slots[i] = key;
+            size++;
+            return true;
+        }
+
+        boolean contains(long key) {
+            if (key == FREE) return hasZero;
+            for (int i = slot(key, slots.length); slots[i] != FREE; i = (i + 1) & (slots.length - 1)) {
+                if (slots[i] == key) return true;
+            }
+            return false;
+        }
+
+        int size() { return size + (hasZero ? 1 : 0); }
+
+        private static int slot(long key, int capacity) {
+            return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & (capacity - 1);
+        }
+
+        private void rehash(int capacity) {
+            long[] old = slots;
+            slots = new long[capacity];
+            for (long key : old) {
+                if (key == FREE) continue;
+                int i = slot(key, capacity);
+                while (slots[i] != FREE) i = (i + 1) & (capacity - 1);
+                slots[i] = key;
+            }
+        }
+    }
+
+    static String normalizeEmail(String email) {
+        if (email == null || email.isBlank()) throw new IllegalArgumentException("email required");
+        return email.trim().toLowerCase(Locale.ROOT);
+    }
+
+    // Digits only, +84/84 country prefix mapped to the local 0 prefix; null when there is no phone
+    static String normalizePhone(String phone) {
+        if (phone == null) return null;
+        StringBuilder digits = new StringBuilder(phone.length());
+        for (int i = 0; i < phone.length(); i++) {
+            char c = phone.charAt(i);
+            if (c >= '0' && c <= '9') digits.append(c);
+        }
+        if (digits.length() == 0) return null;
+        if (digits.length() > 9 && digits.charAt(0) == '8' && digits.charAt(1) == '4') digits.replace(0, 2, "0");
+        return digits.toString();
+    }
+
+    // Minutes since 1970-01-01T00:00 local time, the unit of the booking interval indexes
+    static long epochMinute(LocalDateTime time) {
+        return Math.floorDiv(time.toEpochSecond(ZoneOffset.UTC), 60);
+    }
+
+    // Lowercase, fold Vietnamese diacritics and collapse spaces: "Lập  trình" -> "lap trinh"
+    static String foldText(String text) {
+        String folded = Normalizer.normalize(text, Normalizer.Form.NFD);
+        folded = COMBINING_MARKS.matcher(folded).replaceAll("")
+                .replace('đ', 'd').replace('Đ', 'D')
+                .toLowerCase(Locale.ROOT);
+        return WHITESPACE.matcher(folded).replaceAll(" ").trim();
+    }
 
     public static abstract class User {
-        protected final UUID id;
+        protected final long id;
         protected String name;
         protected String email;
         protected String phone;
+        DnuService owner; // set on registration; holds the user's bookings and keeps indexes in sync
 
         public User(String name, String email, String phone) {
-            this.id = UUID.randomUUID();
+            this(nextId(), name, email, phone);
+        }
+
+        // Restores a user with a known id (journal replay)
+        User(long id, String name, String email, String phone) {
+            this.id = id;
             this.name = name;
             this.email = email;
             this.phone = phone;
         }
 
-        public UUID getId() { return id; }
+        public long getId() { return id; }
+        public String getName() { return name; }
+        public String getEmail() { return email; }
+        public String getPhone() { return phone; }
 
         public abstract Role getRole();
 
         @Override
         public String toString() {
             return String.format("%s{id=%s,name=%s,email=%s,phone=%s}",
-                    getRole(), id.toString(), name, email, phone);
+                    getRole(), id, name, email, phone);
         }
     }
 
@@ -34,63 +173,184 @@ public class DnuTutorConnect {
 
     public static class Student extends User {
         private final List<LearningRequest> requests = new ArrayList<>();
-        private final List<Booking> bookings = new ArrayList<>();
         public Student(String name, String email, String phone) { super(name,email,phone); }
+        Student(long id, String name, String email, String phone) { super(id,name,email,phone); }
         @Override public Role getRole() { return Role.STUDENT; }
-        public List<LearningRequest> getRequests() { return requests; }
-        public List<Booking> getBookings() { return bookings; }
+        public List<LearningRequest> getRequests() { return Collections.unmodifiableList(requests); }
+        // Copy of the bookings made through the service the student registered with
+        public List<Booking> getBookings() { return owner != null ? owner.bookingsOf(this) : Collections.emptyList(); }
     }
 
+    // Collections below are written by DnuService under the user's lock stripe; the getters are
+    // read-only views, use DnuService.ratingsOf/availabilityOf for a copy while other threads write.
+    // Bookings are kept by the service's DnuBookingStore, and getBookings returns a copy.
     public static class Tutor extends User {
-        private final Set<Subject> subjects = new HashSet<>();
-        private final List<Booking> bookings = new ArrayList<>();
+        private final Set<Subject> subjects = ConcurrentHashMap.newKeySet();
         private final List<Rating> ratingsReceived = new ArrayList<>();
-        private final Map<LocalDate, List<TimeSlot>> availability = new HashMap<>();
-        private double feePerHour;
+        private final Map<LocalDate, List<TimeSlot>> availability = new ConcurrentHashMap<>();
+        // Interval index of the merged availability windows, start -> end in epoch minutes
+        private final NavigableMap<Long, Long> availableWindows = new TreeMap<>();
+        private volatile double feePerHour;
         private String profileDescription;
+        // running rating aggregates, maintained by DnuService.addRating;
+        // sum (high 32 bits) and count (low 32 bits) are packed so readers see a consistent pair
+        private volatile long ratingTotals;
+        private final int[] ratingHistogram = new int[6]; // index = score (1-5)
 
         public Tutor(String name, String email, String phone, double feePerHour, String profileDescription) {
-            super(name,email,phone);
+            this(nextId(), name, email, phone, feePerHour, profileDescription);
+        }
+        Tutor(long id, String name, String email, String phone, double feePerHour, String profileDescription) {
+            super(id,name,email,phone);
             this.feePerHour = feePerHour;
             this.profileDescription = profileDescription;
         }
 
         @Override public Role getRole() { return Role.TUTOR; }
 
-        public void addSubject(Subject s) { subjects.add(s); }
-        public Set<Subject> getSubjects() { return subjects; }
+        public void addSubject(Subject s) {
+            if (owner != null) owner.addTutorSubject(this, s);
+            else subjects.add(s);
+        }
+        public Set<Subject> getSubjects() { return Collections.unmodifiableSet(subjects); }
         public void addAvailability(LocalDate date, TimeSlot slot) {
+            if (owner != null) owner.addTutorAvailability(this, date, slot);
+            else putAvailability(date, slot);
+        }
+        void putAvailability(LocalDate date, TimeSlot slot) {
             availability.computeIfAbsent(date, k->new ArrayList<>()).add(slot);
+            mergeWindow(epochMinute(slot.getStart()), epochMinute(slot.getEnd()));
+        }
+
+        private void mergeWindow(long start, long end) {
+            Map.Entry<Long, Long> prev = availableWindows.floorEntry(start);
+            if (prev != null && prev.getValue() >= start) {
+                start = prev.getKey();
+                end = Math.max(end, prev.getValue());
+            }
+            for (Map.Entry<Long, Long> next = availableWindows.ceilingEntry(start);
+                 next != null && next.getKey() <= end; next = availableWindows.ceilingEntry(start)) {
+                end = Math.max(end, next.getValue());
+                availableWindows.remove(next.getKey());
+            }
+            availableWindows.put(start, end);
+        }
+
+        // Rebuilds the merged windows from the availability lists in one sorted pass
+        void rebuildAvailableWindows() {
+            List<TimeSlot> slots = new ArrayList<>();
+            for (List<TimeSlot> day : availability.values()) slots.addAll(day);
+            slots.sort(Comparator.comparing(TimeSlot::getStart));
+            availableWindows.clear();
+            long start = 0, end = Long.MIN_VALUE;
+            for (TimeSlot slot : slots) {
+                long s = epochMinute(slot.getStart()), e = epochMinute(slot.getEnd());
+                if (s > end) {
+                    if (end != Long.MIN_VALUE) availableWindows.put(start, end);
+                    start = s;
+                    end = e;
+                } else {
+                    end = Math.max(end, e);
+                }
+            }
+            if (end != Long.MIN_VALUE) availableWindows.put(start, end);
+        }
+
+        // [start, end) in epoch minutes lies inside one availability window
+        boolean isAvailable(long start, long end) {
+            Map.Entry<Long, Long> window = availableWindows.floorEntry(start);
+            return window != null && window.getValue() >= end;
+        }
+
+        // Availability within [from, to) minus the booked calendar, as pieces of at least minMinutes
+        List<TimeSlot> freeSlots(DnuBookingStore.UserBookings booked, long from, long to, int minMinutes) {
+            List<TimeSlot> free = new ArrayList<>();
+            Map.Entry<Long, Long> first = availableWindows.floorEntry(from);
+            Long startKey = first != null && first.getValue() > from ? first.getKey() : Long.valueOf(from);
+            for (Map.Entry<Long, Long> w : availableWindows.subMap(startKey, true, to, false).entrySet()) {
+                long cursor = Math.max(w.getKey(), from), end = Math.min(w.getValue(), to);
+                if (cursor >= end) continue;
+                // bookings never overlap, so only the one starting before the window can reach into it
+                int i = booked.lower(cursor);
+                if (i >= 0) cursor = Math.max(cursor, booked.endAt(i));
+                if (cursor >= end) continue;
+                for (i++; i < booked.scheduled() && booked.startAt(i) < end; i++) {
+                    if (booked.startAt(i) - cursor >= minMinutes) free.add(slotOf(cursor, booked.startAt(i)));
+                    cursor = Math.max(cursor, booked.endAt(i));
+                }
+                if (end - cursor >= minMinutes) free.add(slotOf(cursor, end));
+            }
+            return free;
+        }
+
+        private static TimeSlot slotOf(long startMinute, long endMinute) {
+            return new TimeSlot(LocalDateTime.ofEpochSecond(startMinute * 60, 0, ZoneOffset.UTC),
+                    LocalDateTime.ofEpochSecond(endMinute * 60, 0, ZoneOffset.UTC));
         }
-        public Map<LocalDate, List<TimeSlot>> getAvailability() { return availability; }
+        public Map<LocalDate, List<TimeSlot>> getAvailability() { return Collections.unmodifiableMap(availability); }
 
         public double getFeePerHour() { return feePerHour; }
+        public void setFeePerHour(double feePerHour) {
+            if (owner != null) owner.reindexTutorFee(this, feePerHour);
+            else this.feePerHour = feePerHour;
+        }
         public String getProfileDescription() { return profileDescription; }
-        public List<Rating> getRatingsReceived() { return ratingsReceived; }
-        public List<Booking> getBookings() { return bookings; }
+        public List<Rating> getRatingsReceived() { return Collections.unmodifiableList(ratingsReceived); }
+        // Copy of the tutor's bookings, as Student.getBookings
+        public List<Booking> getBookings() { return owner != null ? owner.bookingsOf(this) : Collections.emptyList(); }
 
         public double getAverageRating() {
-            if (ratingsReceived.isEmpty()) return 0;
-            return ratingsReceived.stream().mapToInt(Rating::getScore).average().orElse(0.0);
+            long totals = ratingTotals;
+            int count = (int) totals;
+            return count == 0 ? 0 : (double) (totals >>> 32) / count;
+        }
+        public int getRatingCount() { return (int) ratingTotals; }
+        public int getRatingCount(int score) {
+            if (score < 1 || score > 5) throw new IllegalArgumentException("score range 1-5");
+            return ratingHistogram[score];
+        }
+
+        void recordRating(int score) {
+            ratingTotals += ((long) score << 32) + 1;
+            ratingHistogram[score]++;
+        }
+
+        // Rebuild aggregates from ratingsReceived (e.g. after an import)
+        void recomputeRatingAggregates() {
+            ratingTotals = 0;
+            Arrays.fill(ratingHistogram, 0);
+            for (Rating r : ratingsReceived) recordRating(r.getScore());
         }
     }
 
     public static class Admin extends User {
         public Admin(String name, String email, String phone) { super(name,email,phone); }
+        Admin(long id, String name, String email, String phone) { super(id,name,email,phone); }
         @Override public Role getRole() { return Role.ADMIN; }
     }
 
     public static class Subject {
-        private final UUID id = UUID.randomUUID();
+        private final long id;
         private final String name;
-        public Subject(String name) { this.name = name; }
-        public UUID getId() { return id; }
+        private final String key; // folded name, see foldText
+        private final int hash;
+        public Subject(String name) { this(nextId(), name); }
+        Subject(long id, String name) {
+            this.id = id;
+            this.name = name;
+            this.key = foldText(name);
+            this.hash = key.hashCode();
+        }
+        public long getId() { return id; }
         public String getName() { return name; }
+        public String getKey() { return key; }
         @Override public boolean equals(Object o) {
+            if (this == o) return true;
             if (!(o instanceof Subject)) return false;
-            return this.name.equalsIgnoreCase(((Subject)o).name);
+            Subject other = (Subject) o;
+            return hash == other.hash && key.equals(other.key);
         }
-        @Override public int hashCode() { return name.toLowerCase().hashCode(); }
+        @Override public int hashCode() { return hash; }
         @Override public String toString() { return name; }
     }
 
@@ -111,63 +371,216 @@ public class DnuTutorConnect {
     public enum RequestStatus { OPEN, MATCHED, CLOSED }
 
     public static class LearningRequest {
-        private final UUID id = UUID.randomUUID();
+        private final long id;
         private final Student student;
         private final Subject subject;
         private final String description;
-        private final LocalDateTime createdAt = LocalDateTime.now();
-        private RequestStatus status = RequestStatus.OPEN;
+        private final LocalDateTime createdAt;
+        // optional terms used by matching: fee ceiling, and a session to book when matched
+        private final Double maxFee;
+        private final LocalDateTime preferredStart;
+        private final int durationMinutes;
+        private volatile RequestStatus status = RequestStatus.OPEN;
+        private volatile Tutor matchedTutor;
+        private volatile Booking booking;
         public LearningRequest(Student student, Subject subject, String description) {
-            this.student = student; this.subject = subject; this.description = description;
+            this(student, subject, description, null, null, 0);
+        }
+        public LearningRequest(Student student, Subject subject, String description,
+                               Double maxFee, LocalDateTime preferredStart, int durationMinutes) {
+            this(nextId(), student, subject, description, LocalDateTime.now(), maxFee, preferredStart, durationMinutes);
+        }
+        LearningRequest(long id, Student student, Subject subject, String description, LocalDateTime createdAt,
+                        Double maxFee, LocalDateTime preferredStart, int durationMinutes) {
+            if (maxFee != null && maxFee < 0) throw new IllegalArgumentException("maxFee must not be negative");
+            if (preferredStart != null && durationMinutes <= 0) throw new IllegalArgumentException("durationMinutes must be positive");
+            this.id = id; this.student = student; this.subject = subject;
+            this.description = description; this.createdAt = createdAt;
+            this.maxFee = maxFee; this.preferredStart = preferredStart; this.durationMinutes = durationMinutes;
         }
-        public UUID getId() { return id; }
+        public long getId() { return id; }
         public Subject getSubject() { return subject; }
         public Student getStudent() { return student; }
+        public String getDescription() { return description; }
+        public LocalDateTime getCreatedAt() { return createdAt; }
+        public Double getMaxFee() { return maxFee; }
+        public LocalDateTime getPreferredStart() { return preferredStart; }
+        public int getDurationMinutes() { return durationMinutes; }
         public RequestStatus getStatus() { return status; }
         public void setStatus(RequestStatus s) { this.status = s; }
+        public Tutor getMatchedTutor() { return matchedTutor; }
+        public Booking getBooking() { return booking; }
+        // Restore only (journal replay, DnuCodec)
+        void restoreMatch(Tutor t, Booking b) {
+            matchedTutor = t;
+            booking = b;
+            status = RequestStatus.MATCHED;
+        }
         @Override public String toString() {
             return String.format("LR{id=%s, student=%s, subject=%s, status=%s}", id, student.name, subject.name, status);
         }
     }
 
-    public enum BookingStatus { PENDING, CONFIRMED, DONE, CANCELLED }
+    // PENDING -> CONFIRMED | CANCELLED, CONFIRMED -> DONE | CANCELLED; DONE and CANCELLED are final
+    public enum BookingStatus {
+        PENDING, CONFIRMED, DONE, CANCELLED;
+
+        public boolean canMoveTo(BookingStatus next) {
+            switch (this) {
+                case PENDING: return next == CONFIRMED || next == CANCELLED;
+                case CONFIRMED: return next == DONE || next == CANCELLED;
+                default: return false;
+            }
+        }
+    }
+
+    private static final BookingStatus[] BOOKING_STATUSES = BookingStatus.values();
 
+    /*
+     * A booking's fields live in its service's DnuBookingStore, as one row of primitive
+     * columns; a Booking is a view of that row, and several views of one row are equal. One
+     * made with a constructor is a draft holding its own fields until a service adds it, and
+     * then turns into a view of the new row.
+     */
     public static class Booking {
-        private final UUID id = UUID.randomUUID();
-        private final Student student;
-        private final Tutor tutor;
-        private final Subject subject;
-        private final LocalDateTime scheduleTime;
-        private final int durationMinutes;
-        private BookingStatus status = BookingStatus.PENDING;
-        private Transaction transaction; // optional
+        // (transitions so far << 4) | status ordinal; a booking moves at most twice, so it fits a byte
+        private static final int STATUS_BITS = 4, STATUS_MASK = (1 << STATUS_BITS) - 1;
+
+        private final long id;
+        private final Draft draft; // null for views
+        private int row;
+        private volatile DnuBookingStore store; // set once, after row; null while a draft
+
+        private static final class Draft {
+            final Student student;
+            final Tutor tutor;
+            final Subject subject;
+            final LocalDateTime scheduleTime;
+            final int durationMinutes;
+            volatile int state = BookingStatus.PENDING.ordinal(); // changed only by CAS
+            volatile int transitionsApplied; // transitions whose journal/event side effects are done
+            volatile Transaction transaction; // optional
+
+            Draft(Student student, Tutor tutor, Subject subject, LocalDateTime scheduleTime, int durationMinutes) {
+                this.student = student; this.tutor = tutor; this.subject = subject;
+                this.scheduleTime = scheduleTime; this.durationMinutes = durationMinutes;
+            }
+        }
+        private static final AtomicIntegerFieldUpdater<Draft> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Draft.class, "state");
+
         public Booking(Student student, Tutor tutor, Subject subject, LocalDateTime scheduleTime, int durationMinutes) {
-            this.student = student; this.tutor = tutor; this.subject = subject;
-            this.scheduleTime = scheduleTime; this.durationMinutes = durationMinutes;
-        }
-        public UUID getId() { return id; }
-        public void setStatus(BookingStatus s) { this.status = s; }
-        public BookingStatus getStatus(){ return status; }
-        public void setTransaction(Transaction t) { this.transaction = t; }
-        public Transaction getTransaction(){ return transaction; }
+            this(nextId(), student, tutor, subject, scheduleTime, durationMinutes);
+        }
+        Booking(long id, Student student, Tutor tutor, Subject subject, LocalDateTime scheduleTime, int durationMinutes) {
+            this.id = id;
+            this.draft = new Draft(student, tutor, subject, scheduleTime, durationMinutes);
+        }
+        // View of a stored row (DnuBookingStore only)
+        Booking(DnuBookingStore store, int row, long id) {
+            this.id = id;
+            this.draft = null;
+            this.row = row;
+            this.store = store;
+        }
+
+        // Turns this draft into a view of row (DnuBookingStore only)
+        void attach(DnuBookingStore s, int row) {
+            this.row = row;
+            this.store = s;
+        }
+        boolean isAttached() { return store != null; }
+        // This booking's row in s, or -1
+        int rowIn(DnuBookingStore s) { return store == s ? row : -1; }
+
+        public long getId() { return id; }
+        public Student getStudent() { DnuBookingStore s = store; return s != null ? s.student(row) : draft.student; }
+        public Tutor getTutor() { DnuBookingStore s = store; return s != null ? s.tutor(row) : draft.tutor; }
+        public Subject getSubject() { DnuBookingStore s = store; return s != null ? s.subject(row) : draft.subject; }
+        public LocalDateTime getScheduleTime() {
+            DnuBookingStore s = store;
+            return s != null ? s.scheduleTime(row) : draft.scheduleTime;
+        }
+        public int getDurationMinutes() { DnuBookingStore s = store; return s != null ? s.duration(row) : draft.durationMinutes; }
+        long getStartMinute() { DnuBookingStore s = store; return s != null ? s.startMinute(row) : epochMinute(draft.scheduleTime); }
+        long getEndMinute() { return getStartMinute() + getDurationMinutes(); }
+        public BookingStatus getStatus(){ return BOOKING_STATUSES[state() & STATUS_MASK]; }
+
+        int state() { DnuBookingStore s = store; return s != null ? s.state(row) : draft.state; }
+        private boolean compareAndSetState(int expected, int next) {
+            DnuBookingStore s = store;
+            return s != null ? s.compareAndSetState(row, expected, next) : STATE.compareAndSet(draft, expected, next);
+        }
+
+        // Restore only: sets the status without the state machine
+        void setStatus(BookingStatus s) {
+            int cur;
+            do { cur = state(); } while (!compareAndSetState(cur, (cur & ~STATUS_MASK) | s.ordinal()));
+        }
+
+        /*
+         * Moves to next if the current status is expected (any status allowed to move to next
+         * when expected is null). Returns the transition's 1-based number, or 0 if it did not
+         * happen. Of two racing transitions, exactly one wins.
+         */
+        int tryTransition(BookingStatus expected, BookingStatus next) {
+            while (true) {
+                int cur = state();
+                BookingStatus from = BOOKING_STATUSES[cur & STATUS_MASK];
+                if ((expected != null && from != expected) || !from.canMoveTo(next)) return 0;
+                int ticket = (cur >>> STATUS_BITS) + 1;
+                if (compareAndSetState(cur, ticket << STATUS_BITS | next.ordinal())) return ticket;
+            }
+        }
+
+        int transitionsApplied() { DnuBookingStore s = store; return s != null ? s.turn(row) : draft.transitionsApplied; }
+
+        // Side effects of transition `ticket` run after those of the transition before it
+        void awaitTurn(int ticket) {
+            while (transitionsApplied() < ticket - 1) Thread.onSpinWait();
+        }
+        void finishTurn(int ticket) {
+            DnuBookingStore s = store;
+            if (s != null) s.setTurn(row, ticket); else draft.transitionsApplied = ticket;
+        }
+        // A stored booking's first transition also waits for its creation to be journaled and
+        // published; the service calls this once it has done both
+        void finishCreation() { finishTurn(transitionsApplied() + 1); }
+        public void setTransaction(Transaction t) {
+            DnuBookingStore s = store;
+            if (s != null) s.setTransaction(row, t); else draft.transaction = t;
+        }
+        public Transaction getTransaction(){ DnuBookingStore s = store; return s != null ? s.transaction(row) : draft.transaction; }
+
+        @Override public boolean equals(Object o) { return o instanceof Booking && ((Booking) o).id == id; }
+        @Override public int hashCode() { return Long.hashCode(id); }
         @Override public String toString() {
             return String.format("Booking{id=%s, student=%s, tutor=%s, subject=%s, time=%s, duration=%dmin, status=%s}",
-                    id, student.name, tutor.name, subject.name, scheduleTime, durationMinutes, status);
+                    id, getStudent().name, getTutor().name, getSubject().name, getScheduleTime(), getDurationMinutes(), getStatus());
         }
     }
 
     public static class Rating {
-        private final UUID id = UUID.randomUUID();
+        private final long id;
         private final Student student;
         private final Tutor tutor;
         private final int score; // 1-5
         private final String comment;
-        private final LocalDate date = LocalDate.now();
+        private final LocalDate date;
         public Rating(Student student, Tutor tutor, int score, String comment) {
+            this(nextId(), student, tutor, score, comment, LocalDate.now());
+        }
+        Rating(long id, Student student, Tutor tutor, int score, String comment, LocalDate date) {
             if (score < 1 || score > 5) throw new IllegalArgumentException("score range 1-5");
-            this.student = student; this.tutor = tutor; this.score = score; this.comment = comment;
+            this.id = id; this.student = student; this.tutor = tutor;
+            this.score = score; this.comment = comment; this.date = date;
         }
+        public long getId() { return id; }
+        public Student getStudent() { return student; }
+        public Tutor getTutor() { return tutor; }
         public int getScore() { return score; }
+        public String getComment() { return comment; }
+        public LocalDate getDate() { return date; }
         @Override public String toString() {
             return String.format("Rating{id=%s, student=%s, tutor=%s, score=%d, comment=%s, date=%s}",
                     id, student.name, tutor.name, score, comment, date);
@@ -177,115 +590,1255 @@ public class DnuTutorConnect {
     public enum TransactionStatus { PAID, REFUNDED, FAILED }
 
     public static class Transaction {
-        private final UUID id = UUID.randomUUID();
+        private final long id;
         private final Booking booking;
         private final double amount;
         private final String method;
-        private TransactionStatus status;
-        private final LocalDateTime createdAt = LocalDateTime.now();
+        private volatile TransactionStatus status;
+        private final LocalDateTime createdAt;
 
         public Transaction(Booking booking, double amount, String method, TransactionStatus status) {
-            this.booking = booking; this.amount = amount; this.method = method; this.status = status;
+            this(nextId(), booking, amount, method, status, LocalDateTime.now());
         }
+        Transaction(long id, Booking booking, double amount, String method, TransactionStatus status, LocalDateTime createdAt) {
+            this.id = id; this.booking = booking; this.amount = amount;
+            this.method = method; this.status = status; this.createdAt = createdAt;
+        }
+        public long getId() { return id; }
+        public Booking getBooking() { return booking; }
+        public double getAmount() { return amount; }
+        public String getMethod() { return method; }
+        public TransactionStatus getStatus() { return status; }
+        public LocalDateTime getCreatedAt() { return createdAt; }
         @Override public String toString() {
             return String.format("Transaction{id=%s, booking=%s, amount=%.2f, method=%s, status=%s, time=%s}",
                     id, booking.getId(), amount, method, status, createdAt);
         }
     }
 
+    public enum TutorOrder { RATING, FEE, RATING_THEN_FEE }
+
+    // A tutor with its free time inside a searched window
+    public static class TutorFreeSlots {
+        private final Tutor tutor;
+        private final List<TimeSlot> slots;
+        public TutorFreeSlots(Tutor tutor, List<TimeSlot> slots) { this.tutor = tutor; this.slots = slots; }
+        public Tutor getTutor() { return tutor; }
+        public List<TimeSlot> getSlots() { return slots; }
+        @Override public String toString() { return tutor.name + " " + slots; }
+    }
+
+    // One page of a tutor search; nextCursor is null on the last page
+    public static class TutorPage {
+        private final List<Tutor> tutors;
+        private final String nextCursor;
+        public TutorPage(List<Tutor> tutors, String nextCursor) { this.tutors = tutors; this.nextCursor = nextCursor; }
+        public List<Tutor> getTutors() { return tutors; }
+        public String getNextCursor() { return nextCursor; }
+        public boolean hasNext() { return nextCursor != null; }
+    }
+
+    // Sort position of a tutor, captured once so a concurrent rating change cannot reorder a page
+    static final class TutorKey {
+        final Tutor tutor;
+        final double rating;
+        final double fee;
+        final long id;
+        TutorKey(Tutor tutor, double rating, double fee, long id) {
+            this.tutor = tutor; this.rating = rating; this.fee = fee; this.id = id;
+        }
+        static TutorKey of(Tutor t) { return new TutorKey(t, t.getAverageRating(), t.getFeePerHour(), t.getId()); }
+
+        static Comparator<TutorKey> comparator(TutorOrder order) {
+            Comparator<TutorKey> byRating = (a, b) -> Double.compare(b.rating, a.rating);
+            Comparator<TutorKey> byFee = (a, b) -> Double.compare(a.fee, b.fee);
+            Comparator<TutorKey> primary;
+            switch (order) {
+                case FEE: primary = byFee; break;
+                case RATING_THEN_FEE: primary = byRating.thenComparing(byFee); break;
+                default: primary = byRating;
+            }
+            return primary.thenComparingLong(k -> k.id);
+        }
+
+        // Opaque cursor: "order|rating|fee|id", base64url encoded
+        String toCursor(TutorOrder order) {
+            String raw = order + "|" + rating + "|" + fee + "|" + id;
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+        }
+
+        static TutorKey fromCursor(String cursor, TutorOrder order) {
+            try {
+                String[] parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split("\\|");
+                if (parts.length != 4 || !parts[0].equals(order.name())) throw new IllegalArgumentException();
+                return new TutorKey(null, Double.parseDouble(parts[1]), Double.parseDouble(parts[2]), Long.parseLong(parts[3]));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("invalid cursor for order " + order);
+            }
+        }
+    }
+
+    /*
+     * Receives every committed DnuService mutation. Calls for one tutor or student are made
+     * under that user's lock, so they arrive in the order they were applied (see DnuJournal).
+     */
+    public interface Journal {
+        void userRegistered(User u);
+        void subjectCreated(Subject s);
+        void tutorSubjectAdded(Tutor t, Subject s);
+        void availabilityAdded(Tutor t, LocalDate date, TimeSlot slot);
+        void tutorFeeChanged(Tutor t, double feePerHour);
+        void requestPosted(LearningRequest lr);
+        void bookingCreated(Booking b);
+        void bookingStatusChanged(Booking b, BookingStatus status);
+        void ratingAdded(Rating r);
+        void transactionCreated(Transaction tx);
+        void requestMatched(LearningRequest lr);
+
+        // Called before a mutation is applied; throws if the record that follows it could not be logged
+        default void checkWritable() {}
+    }
+
     public static class DnuService {
-        private final Map<UUID, User> users = new HashMap<>();
-        private final Map<UUID, Subject> subjects = new HashMap<>();
-        private final Map<UUID, LearningRequest> requests = new HashMap<>();
-        private final Map<UUID, Booking> bookings = new HashMap<>();
-        private final List<Transaction> transactions = new ArrayList<>();
+        private final Map<Long, User> users = new ConcurrentHashMap<>();
+        private final Map<Long, Subject> subjects = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, Subject> subjectsByKey = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, User> usersByEmail = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, User> usersByPhone = new ConcurrentHashMap<>();
+        private final Map<Long, LearningRequest> requests = new ConcurrentHashMap<>();
+        // every booking as a row of primitive columns; Booking objects are views of the rows
+        private final DnuBookingStore bookingStore = new DnuBookingStore();
+        // in-memory until a ledger is attached; afterwards every transaction goes to the ledger only
+        private final Queue<Transaction> transactions = new ConcurrentLinkedQueue<>();
+        private volatile DnuLedger ledger;
+        // subject -> feePerHour -> tutors, so search only touches tutors teaching the subject
+        private volatile Map<Subject, NavigableMap<Double, Set<Tutor>>> tutorsBySubject = new ConcurrentHashMap<>();
+        private volatile AvailabilityIndex availabilityIndex = new AvailabilityIndex();
+        // profiles and request descriptions, indexed as they arrive (both are immutable)
+        private final DnuTextIndex<Tutor> tutorText = new DnuTextIndex<>();
+        private final DnuTextIndex<LearningRequest> requestText = new DnuTextIndex<>();
+        // top tutors per subject, updated on every rating and subject taught
+        private final DnuLeaderboard leaderboard = new DnuLeaderboard();
+        private volatile DnuLeaderboard recentLeaderboard; // time-decayed; null until enabled
+        // Striped per-user locks guarding the per-student/per-tutor collections and aggregates
+        private final ReentrantLock[] stripes;
+        private volatile Journal journal; // null when not persisted
+        private final DnuMetrics metrics = new DnuMetrics();
+        private final DnuStats stats = new DnuStats(); // revenue and booking counts for admin reports
+        private volatile DnuEventBus events; // null when nobody listens
+        // point-in-time view for lock-free reads, replaced at every commit (see DnuSnapshot)
+        private volatile DnuSnapshot snapshot = DnuSnapshot.empty(bookingStore);
+        private static final AtomicReferenceFieldUpdater<DnuService, DnuSnapshot> SNAPSHOT =
+                AtomicReferenceFieldUpdater.newUpdater(DnuService.class, DnuSnapshot.class, "snapshot");
+        // orders the commits that append booking rows and subject slots; taken last, never held while waiting
+        private final Object commitLock = new Object();
+
+        public DnuService() { this(Runtime.getRuntime().availableProcessors() * 64); }
+
+        public DnuService(int lockStripes) {
+            if (lockStripes < 1) throw new IllegalArgumentException("lockStripes must be positive");
+            int n = 1;
+            while (n < lockStripes) n <<= 1;
+            stripes = new ReentrantLock[n];
+            for (int i = 0; i < stripes.length; i++) stripes[i] = new ReentrantLock();
+            metrics.gauge("dnu_users", "Registered users.", users::size);
+            metrics.gauge("dnu_bookings", "Bookings in every status.", bookingStore::size);
+            // scans on export only; requests are never removed, so this stays cheap enough
+            metrics.gauge("dnu_open_requests", "Learning requests still OPEN.",
+                    () -> requests.values().stream().filter(r -> r.getStatus() == RequestStatus.OPEN).count());
+            metrics.gauge("dnu_transactions", "Recorded transactions.", () -> {
+                DnuLedger l = ledger;
+                return l != null ? l.size() : transactions.size();
+            });
+            metrics.gauge("dnu_events_dropped", "Domain events dropped because the event buffer was full.", () -> {
+                DnuEventBus bus = events;
+                return bus == null ? 0 : bus.getDropped();
+            });
+            metrics.gauge("dnu_events_lag", "Domain events not yet handled by the slowest subscriber lane.", () -> {
+                DnuEventBus bus = events;
+                return bus == null ? 0 : bus.getLag();
+            });
+        }
+
+        public DnuMetrics getMetrics() { return metrics; }
+
+        public DnuStats getStats() { return stats; }
+
+        // The latest committed state; reading it takes no lock, and it never changes afterwards
+        public DnuSnapshot snapshot() { return snapshot; }
+
+        /*
+         * Swaps in change applied to the latest snapshot, retrying on a racing commit, so status
+         * changes and other commits take no lock. change must be free of side effects, since it
+         * may run more than once. Readers keep whichever snapshot they already hold.
+         */
+        private void commit(UnaryOperator<DnuSnapshot> change) {
+            DnuSnapshot current;
+            do { current = snapshot; } while (!SNAPSHOT.compareAndSet(this, current, change.apply(current)));
+        }
+
+        // Adds b's row and commits it; rows must be committed in row order, so creations are serialized
+        private void commitBooking(Booking b, BookingStatus status) {
+            synchronized (commitLock) {
+                int row = bookingStore.add(b, status != BookingStatus.CANCELLED);
+                commit(v -> v.withBooking(row, status));
+            }
+        }
+
+        // A subject's slot is the size of the subject list, so new subjects are serialized too
+        private void commitSubject(Subject s) {
+            synchronized (commitLock) { commit(v -> v.withSubject(s)); }
+        }
+
+        private int stripeIndex(User u) {
+            // ids are sequential, so mix the bits before masking
+            return (int) ((u.getId() * 0x9E3779B97F4A7C15L) >>> 40) & (stripes.length - 1);
+        }
+        private ReentrantLock lockOf(User u) {
+            ReentrantLock lock = stripes[stripeIndex(u)];
+            lock.lock();
+            return lock;
+        }
+        // Lock two users' stripes in index order so concurrent callers cannot deadlock
+        private void lockBoth(User a, User b) {
+            int i = stripeIndex(a), j = stripeIndex(b);
+            stripes[Math.min(i, j)].lock();
+            if (i != j) stripes[Math.max(i, j)].lock();
+        }
+        private void unlockBoth(User a, User b) {
+            int i = stripeIndex(a), j = stripeIndex(b);
+            if (i != j) stripes[Math.max(i, j)].unlock();
+            stripes[Math.min(i, j)].unlock();
+        }
 
         // Register users
         public Student registerStudent(String name, String email, String phone) {
-            Student s = new Student(name,email,phone);
-            users.put(s.getId(), s);
-            return s;
+            return register(new Student(name,email,phone));
         }
         public Tutor registerTutor(String name, String email, String phone, double feePerHour, String profile) {
-            Tutor t = new Tutor(name,email,phone,feePerHour,profile);
-            users.put(t.getId(), t);
-            return t;
+            return register(new Tutor(name,email,phone,feePerHour,profile));
         }
         public Admin registerAdmin(String name, String email, String phone) {
-            Admin a = new Admin(name,email,phone);
-            users.put(a.getId(), a);
-            return a;
+            return register(new Admin(name,email,phone));
+        }
+
+        /*
+         * Mutations are applied first and journaled last, inside the same lock stripe, so a
+         * journaled event is always visible to a snapshot taken after it, and an event that
+         * depends on an entity (e.g. a booking of a new tutor) is never logged before it. A
+         * closed or failed journal is detected before the mutation (checkJournal), so the call
+         * is rejected instead of failing after its change was applied.
+         */
+        public void setJournal(Journal journal) { this.journal = journal; }
+
+        private void checkJournal() {
+            Journal j = journal;
+            if (j != null) j.checkWritable();
+        }
+
+        // Entities of another service (or unsaved drafts) would be journaled without the records
+        // they depend on, and replay would then reject the whole log
+        private void checkOwned(User u) {
+            if (u.owner != this) throw new IllegalArgumentException(u.name + " is not registered with this service");
+        }
+        private void checkOwned(Booking b) {
+            if (b.rowIn(bookingStore) < 0) throw new IllegalArgumentException("booking " + b.getId() + " is not stored in this service");
+        }
+
+        // Events are published right after the journal call, under the same locks (booking
+        // status changes: in the booking's transition order), so one tutor's events reach
+        // subscribers in the order they were applied
+        public void setEventBus(DnuEventBus bus) { this.events = bus; }
+
+        private void publish(DnuEventBus.Type type, Tutor t, Object payload) {
+            DnuEventBus bus = events;
+            if (bus != null) bus.publish(type, t.getId(), payload);
+        }
+
+        // Reserve email and phone atomically; a duplicate rolls back and rejects the registration.
+        // DnuShards also registers its replicas (copies of users homed on another shard) here.
+        <U extends User> U register(U u) {
+            long started = metrics.start();
+            try {
+                String emailKey = normalizeEmail(u.email);
+                String phoneKey = normalizePhone(u.phone);
+                ReentrantLock lock = lockOf(u);
+                try {
+                    checkJournal();
+                    if (usersByEmail.putIfAbsent(emailKey, u) != null)
+                        throw new IllegalArgumentException("email already registered: " + u.email);
+                    if (phoneKey != null && usersByPhone.putIfAbsent(phoneKey, u) != null) {
+                        usersByEmail.remove(emailKey, u);
+                        throw new IllegalArgumentException("phone already registered: " + u.phone);
+                    }
+                    users.put(u.getId(), u);
+                    u.owner = this;
+                    if (u instanceof Tutor) {
+                        Tutor t = (Tutor) u;
+                        for (Subject s : t.subjects) {
+                            indexTutorSubject(t, s);
+                            rankTutorSubject(t, s);
+                        }
+                        t.availableWindows.forEach((start, end) -> availabilityIndex.add(t, start, end));
+                        tutorText.add(t, t.profileDescription);
+                    }
+                    Collection<Subject> teaches = u instanceof Tutor ? ((Tutor) u).subjects : Collections.emptySet();
+                    commit(v -> v.withUser(u, teaches));
+                    if (journal != null) journal.userRegistered(u);
+                } finally { lock.unlock(); }
+                return u;
+            } catch (RuntimeException e) {
+                metrics.failed(DnuMetrics.Op.REGISTER_USER);
+                throw e;
+            } finally {
+                metrics.record(DnuMetrics.Op.REGISTER_USER, started);
+            }
         }
 
         // Subjects
         public Subject createOrGetSubject(String name) {
-            Optional<Subject> existed = subjects.values().stream()
-                    .filter(s -> s.getName().equalsIgnoreCase(name)).findFirst();
-            if (existed.isPresent()) return existed.get();
-            Subject s = new Subject(name); subjects.put(s.getId(), s); return s;
+            long started = metrics.start();
+            try {
+                String key = foldText(name);
+                Subject existed = subjectsByKey.get(key);
+                if (existed != null) return existed;
+                // computeIfAbsent publishes the subject only after it has been journaled
+                return subjectsByKey.computeIfAbsent(key, k -> {
+                    checkJournal();
+                    Subject s = new Subject(name);
+                    subjects.put(s.getId(), s);
+                    commitSubject(s);
+                    if (journal != null) journal.subjectCreated(s);
+                    return s;
+                });
+            } catch (RuntimeException e) {
+                metrics.failed(DnuMetrics.Op.CREATE_SUBJECT);
+                throw e;
+            } finally {
+                metrics.record(DnuMetrics.Op.CREATE_SUBJECT, started);
+            }
+        }
+
+        public Optional<Subject> findSubject(String name) {
+            return Optional.ofNullable(subjectsByKey.get(foldText(name)));
         }
 
         // Post request
         public LearningRequest postLearningRequest(Student student, Subject subject, String desc) {
-            LearningRequest lr = new LearningRequest(student, subject, desc);
-            requests.put(lr.getId(), lr);
-            student.getRequests().add(lr);
-            return lr;
+            return postLearningRequest(student, subject, desc, null, null, 0);
+        }
+
+        // Request with matching terms; preferredStart may be null when any time is fine
+        public LearningRequest postLearningRequest(Student student, Subject subject, String desc,
+                                                   Double maxFee, LocalDateTime preferredStart, int durationMinutes) {
+            long started = metrics.start();
+            try {
+                LearningRequest lr = new LearningRequest(student, subject, desc, maxFee, preferredStart, durationMinutes);
+                ReentrantLock lock = lockOf(student);
+                try {
+                    checkJournal();
+                    student.requests.add(lr);
+                    requests.put(lr.getId(), lr);
+                    requestText.add(lr, lr.description);
+                    commit(v -> v.withRequest(lr));
+                    if (journal != null) journal.requestPosted(lr);
+                } finally { lock.unlock(); }
+                return lr;
+            } catch (RuntimeException e) {
+                metrics.failed(DnuMetrics.Op.POST_REQUEST);
+                throw e;
+            } finally {
+                metrics.record(DnuMetrics.Op.POST_REQUEST, started);
+            }
         }
 
-        // Search tutors by subject
+        // Search tutors by subject; ratings are read once per tutor, so concurrent ratings cannot upset the sort
         public List<Tutor> searchTutorsBySubject(Subject subject, Double maxFee, Double minRating) {
-            return users.values().stream()
-                    .filter(u -> u instanceof Tutor)
-                    .map(u -> (Tutor)u)
-                    .filter(t -> t.getSubjects().contains(subject))
-                    .filter(t -> maxFee == null || t.getFeePerHour() <= maxFee)
-                    .filter(t -> minRating == null || t.getAverageRating() >= minRating)
-                    .sorted(Comparator.comparingDouble(Tutor::getAverageRating).reversed())
-                    .collect(Collectors.toList());
+            long started = metrics.start();
+            try {
+                NavigableMap<Double, Set<Tutor>> byFee = tutorsBySubject.get(subject);
+                if (byFee == null) return new ArrayList<>();
+                if (maxFee != null) byFee = byFee.headMap(maxFee, true);
+                List<TutorKey> keys = new ArrayList<>();
+                for (Set<Tutor> bucket : byFee.values()) {
+                    for (Tutor t : bucket) {
+                        TutorKey k = TutorKey.of(t);
+                        if (minRating == null || k.rating >= minRating) keys.add(k);
+                    }
+                }
+                keys.sort((a, b) -> Double.compare(b.rating, a.rating));
+                List<Tutor> found = new ArrayList<>(keys.size());
+                for (TutorKey k : keys) found.add(k.tutor);
+                return found;
+            } catch (RuntimeException e) {
+                metrics.failed(DnuMetrics.Op.SEARCH_TUTORS);
+                throw e;
+            } finally {
+                metrics.record(DnuMetrics.Op.SEARCH_TUTORS, started);
+            }
+        }
+
+        /*
+         * Top-K search: returns at most limit tutors strictly after cursor (null for the first page).
+         * FEE order walks the fee index and stops after limit hits; rating orders keep a bounded
+         * heap of the best limit candidates instead of sorting every match.
+         */
+        public TutorPage searchTutors(Subject subject, Double maxFee, Double minRating,
+                                      TutorOrder order, int limit, String cursor) {
+            long started = metrics.start();
+            try {
+                if (limit <= 0) throw new IllegalArgumentException("limit must be positive");
+                Comparator<TutorKey> cmp = TutorKey.comparator(order);
+                TutorKey after = cursor == null ? null : TutorKey.fromCursor(cursor, order);
+                NavigableMap<Double, Set<Tutor>> byFee = tutorsBySubject.get(subject);
+                if (byFee == null) return new TutorPage(new ArrayList<>(), null);
+                if (maxFee != null) byFee = byFee.headMap(maxFee, true);
+
+                List<TutorKey> page = new ArrayList<>(limit + 1);
+                if (order == TutorOrder.FEE) {
+                    if (after != null) byFee = byFee.tailMap(after.fee, true);
+                    for (Set<Tutor> bucket : byFee.values()) {
+                        List<TutorKey> keys = new ArrayList<>(bucket.size());
+                        for (Tutor t : bucket) {
+                            TutorKey k = TutorKey.of(t);
+                            if (minRating != null && k.rating < minRating) continue;
+                            if (after != null && cmp.compare(k, after) <= 0) continue;
+                            keys.add(k);
+                        }
+                        keys.sort(cmp);
+                        for (TutorKey k : keys) {
+                            if (page.size() > limit) break;
+                            page.add(k);
+                        }
+                        if (page.size() > limit) break;
+                    }
+                } else {
+                    PriorityQueue<TutorKey> heap = new PriorityQueue<>(limit + 2, cmp.reversed());
+                    for (Set<Tutor> bucket : byFee.values()) {
+                        for (Tutor t : bucket) {
+                            TutorKey k = TutorKey.of(t);
+                            if (minRating != null && k.rating < minRating) continue;
+                            if (after != null && cmp.compare(k, after) <= 0) continue;
+                            if (heap.size() <= limit) heap.add(k);
+                            else if (cmp.compare(k, heap.peek()) < 0) { heap.poll(); heap.add(k); }
+                        }
+                    }
+                    page.addAll(heap);
+                    page.sort(cmp);
+                }
+                // one extra element was kept to know whether another page exists
+                boolean more = page.size() > limit;
+                if (more) page.remove(limit);
+                List<Tutor> tutors = new ArrayList<>(page.size());
+                for (TutorKey k : page) tutors.add(k.tutor);
+                String next = more ? page.get(page.size() - 1).toCursor(order) : null;
+                return new TutorPage(tutors, next);
+            } catch (RuntimeException e) {
+                metrics.failed(DnuMetrics.Op.SEARCH_TUTORS);
+                throw e;
+            } finally {
+                metrics.record(DnuMetrics.Op.SEARCH_TUTORS, started);
+            }
+        }
+
+        /*
+         * Full-text search over tutor profiles ("toeic", "lap trinh java"; diacritics optional),
+         * best BM25 match first. subject, maxFee and minRating filter as in searchTutorsBySubject
+         * and may be null.
+         */
+        public List<Tutor> searchTutorsByText(String query, Subject subject, Double maxFee, Double minRating, int limit) {
+            List<Tutor> found = new ArrayList<>();
+            for (DnuTextIndex.Hit<Tutor> hit : tutorTextHits(query, subject, maxFee, minRating, limit)) found.add(hit.getValue());
+            return found;
+        }
+
+        // With scores, for merging the hits of several shards (DnuShards)
+        List<DnuTextIndex.Hit<Tutor>> tutorTextHits(String query, Subject subject, Double maxFee, Double minRating, int limit) {
+            long started = metrics.start();
+            try {
+                return tutorText.search(query, t ->
+                        (subject == null || t.subjects.contains(subject))
+                                && (maxFee == null || t.feePerHour <= maxFee)
+                                && (minRating == null || t.getAverageRating() >= minRating), limit);
+            } catch (RuntimeException e) {
+                metrics.failed(DnuMetrics.Op.TEXT_SEARCH);
+                throw e;
+            } finally {
+                metrics.record(DnuMetrics.Op.TEXT_SEARCH, started);
+            }
+        }
+
+        // Full-text search over learning request descriptions; subject may be null
+        public List<LearningRequest> searchRequestsByText(String query, Subject subject, boolean openOnly, int limit) {
+            List<LearningRequest> found = new ArrayList<>();
+            for (DnuTextIndex.Hit<LearningRequest> hit : requestTextHits(query, subject, openOnly, limit)) found.add(hit.getValue());
+            return found;
+        }
+
+        List<DnuTextIndex.Hit<LearningRequest>> requestTextHits(String query, Subject subject, boolean openOnly, int limit) {
+            long started = metrics.start();
+            try {
+                return requestText.search(query, lr ->
+                        (subject == null || lr.subject.equals(subject))
+                                && (!openOnly || lr.status == RequestStatus.OPEN), limit);
+            } catch (RuntimeException e) {
+                metrics.failed(DnuMetrics.Op.TEXT_SEARCH);
+                throw e;
+            } finally {
+                metrics.record(DnuMetrics.Op.TEXT_SEARCH, started);
+            }
         }
 
-        // Create booking
+        /*
+         * Tutors teaching subject (and charging at most maxFee, if given) with their free time in
+         * [from, to): availability minus pending, confirmed and done bookings, in pieces of at
+         * least minMinutes. Best rated first. Only tutors with availability on the window's days
+         * are examined, so the cost follows the window, not the history.
+         */
+        public List<TutorFreeSlots> findFreeSlots(Subject subject, LocalDateTime from, LocalDateTime to,
+                                                  int minMinutes, Double maxFee) {
+            long started = metrics.start();
+            try {
+                if (minMinutes <= 0) throw new IllegalArgumentException("minMinutes must be positive");
+                if (!from.isBefore(to)) throw new IllegalArgumentException("from must be before to");
+                long start = epochMinute(from), end = epochMinute(to);
+                List<TutorKey> keys = new ArrayList<>();
+                Map<Tutor, List<TimeSlot>> freeOf = new HashMap<>();
+                for (Tutor t : availabilityIndex.candidates(start, end)) {
+                    if (!t.subjects.contains(subject) || (maxFee != null && t.feePerHour > maxFee)) continue;
+                    List<TimeSlot> free;
+                    ReentrantLock lock = lockOf(t);
+                    try { free = t.freeSlots(bookingStore.calendarOf(t), start, end, minMinutes); } finally { lock.unlock(); }
+                    if (free.isEmpty()) continue;
+                    keys.add(TutorKey.of(t)); // rating read once, as in searchTutorsBySubject
+                    freeOf.put(t, free);
+                }
+                keys.sort(TutorKey.comparator(TutorOrder.RATING));
+                List<TutorFreeSlots> found = new ArrayList<>(keys.size());
+                for (TutorKey k : keys) found.add(new TutorFreeSlots(k.tutor, freeOf.get(k.tutor)));
+                return found;
+            } catch (RuntimeException e) {
+                metrics.failed(DnuMetrics.Op.FIND_FREE_SLOTS);
+                throw e;
+            } finally {
+                metrics.record(DnuMetrics.Op.FIND_FREE_SLOTS, started);
+            }
+        }
+
+        /*
+         * Tutors by the days their availability covers (epoch day -> tutors). Windows longer than
+         * LONG_WINDOW_DAYS are kept in one set that every query checks, so an open-ended window
+         * does not create thousands of day entries. Only grows; a tutor whose availability is gone
+         * is filtered out by the free-slot computation.
+         */
+        private static final class AvailabilityIndex {
+            private static final int LONG_WINDOW_DAYS = 31;
+            private final ConcurrentSkipListMap<Long, Set<Tutor>> byDay = new ConcurrentSkipListMap<>();
+            private final Set<Tutor> longWindows = ConcurrentHashMap.newKeySet();
+
+            void add(Tutor t, TimeSlot slot) { add(t, epochMinute(slot.getStart()), epochMinute(slot.getEnd())); }
+
+            void add(Tutor t, long startMinute, long endMinute) {
+                if (endMinute <= startMinute) return;
+                long first = Math.floorDiv(startMinute, 1440), last = Math.floorDiv(endMinute - 1, 1440);
+                if (last - first >= LONG_WINDOW_DAYS) { longWindows.add(t); return; }
+                for (long day = first; day <= last; day++) {
+                    byDay.computeIfAbsent(day, k -> ConcurrentHashMap.newKeySet()).add(t);
+                }
+            }
+
+            Set<Tutor> candidates(long startMinute, long endMinute) {
+                Set<Tutor> found = new HashSet<>(longWindows);
+                long first = Math.floorDiv(startMinute, 1440), last = Math.floorDiv(endMinute - 1, 1440);
+                for (Set<Tutor> day : byDay.subMap(first, true, last, true).values()) found.addAll(day);
+                return found;
+            }
+        }
+
+        // Tutor profile changes (called from Tutor); the subject index is updated under the tutor's lock
+        void addTutorSubject(Tutor t, Subject s) {
+            long started = metrics.start();
+            try {
+                ReentrantLock lock = lockOf(t);
+                try {
+                    checkJournal();
+                    if (!t.subjects.add(s)) return;
+                    indexTutorSubject(t, s);
+                    rankTutorSubject(t, s);
+                    commit(v -> v.withTutorSubject(t, s));
+                    if (journal != null) journal.tutorSubjectAdded(t, s);
+                } finally { lock.unlock(); }
+            } catch (RuntimeException e) {
+                metrics.failed(DnuMetrics.Op.UPDATE_TUTOR);
+                throw e;
+            } finally {
+                metrics.record(DnuMetrics.Op.UPDATE_TUTOR, started);
+            }
+        }
+
+        void addTutorAvailability(Tutor t, LocalDate date, TimeSlot slot) {
+            long started = metrics.start();
+            try {
+                ReentrantLock lock = lockOf(t);
+                try {
+                    checkJournal();
+                    t.putAvailability(date, slot);
+                    availabilityIndex.add(t, slot);
+                    if (journal != null) journal.availabilityAdded(t, date, slot);
+                } finally { lock.unlock(); }
+            } catch (RuntimeException e) {
+                metrics.failed(DnuMetrics.Op.UPDATE_TUTOR);
+                throw e;
+            } finally {
+                metrics.record(DnuMetrics.Op.UPDATE_TUTOR, started);
+            }
+        }
+
+        void reindexTutorFee(Tutor t, double newFee) {
+            long started = metrics.start();
+            try {
+                ReentrantLock lock = lockOf(t);
+                try {
+                    double oldFee = t.feePerHour;
+                    if (Double.compare(oldFee, newFee) == 0) return;
+                    checkJournal();
+                    // empty fee buckets are kept: removing them would race with concurrent inserts
+                    for (Subject s : t.subjects) {
+                        NavigableMap<Double, Set<Tutor>> byFee = tutorsBySubject.get(s);
+                        Set<Tutor> bucket = byFee == null ? null : byFee.get(oldFee);
+                        if (bucket != null) bucket.remove(t);
+                    }
+                    t.feePerHour = newFee;
+                    for (Subject s : t.subjects) indexTutorSubject(t, s);
+                    if (journal != null) journal.tutorFeeChanged(t, newFee);
+                } finally { lock.unlock(); }
+            } catch (RuntimeException e) {
+                metrics.failed(DnuMetrics.Op.UPDATE_TUTOR);
+                throw e;
+            } finally {
+                metrics.record(DnuMetrics.Op.UPDATE_TUTOR, started);
+            }
+        }
+
+        /*
+         * Bulk-load support (DnuImporter): imported tutor subjects and availability are stored
+         * and journaled without touching the subject index or the availability windows;
+         * rebuildIndexes() then builds both once for every tutor.
+         */
+        void attachImportedSubjects(Tutor t, Collection<Subject> imported) {
+            ReentrantLock lock = lockOf(t);
+            try {
+                checkJournal();
+                for (Subject s : imported) {
+                    if (t.subjects.add(s) && journal != null) journal.tutorSubjectAdded(t, s);
+                }
+            } finally { lock.unlock(); }
+        }
+
+        void attachImportedAvailability(Tutor t, LocalDate date, TimeSlot slot) {
+            ReentrantLock lock = lockOf(t);
+            try {
+                checkJournal();
+                t.availability.computeIfAbsent(date, k -> new ArrayList<>()).add(slot);
+                if (journal != null) journal.availabilityAdded(t, date, slot);
+            } finally { lock.unlock(); }
+        }
+
+        // Rebuilds the subject/fee index and every tutor's availability windows; writers are held off meanwhile
+        public void rebuildIndexes() {
+            for (ReentrantLock lock : stripes) lock.lock();
+            try {
+                Map<Subject, NavigableMap<Double, Set<Tutor>>> index = new ConcurrentHashMap<>();
+                AvailabilityIndex byDay = new AvailabilityIndex();
+                for (User u : users.values()) {
+                    if (!(u instanceof Tutor)) continue;
+                    Tutor t = (Tutor) u;
+                    t.rebuildAvailableWindows();
+                    for (Subject s : t.subjects) {
+                        index.computeIfAbsent(s, k -> new ConcurrentSkipListMap<>())
+                                .computeIfAbsent(t.feePerHour, k -> ConcurrentHashMap.newKeySet()).add(t);
+                    }
+                    t.availableWindows.forEach((start, end) -> byDay.add(t, start, end));
+                }
+                tutorsBySubject = index;
+                availabilityIndex = byDay;
+                List<Tutor> tutors = tutors();
+                leaderboard.rebuild(tutors);
+                DnuLeaderboard recent = recentLeaderboard;
+                if (recent != null) recent.rebuild(tutors);
+                commit(v -> v.withTeaching(tutors));
+            } finally {
+                for (int i = stripes.length - 1; i >= 0; i--) stripes[i].unlock();
+            }
+        }
+
+        public DnuImporter.Report bulkImport(Path file) throws IOException {
+            long started = metrics.start();
+            try {
+                return new DnuImporter(this).load(file);
+            } catch (IOException | RuntimeException e) {
+                metrics.failed(DnuMetrics.Op.BULK_IMPORT);
+                throw e;
+            } finally {
+                metrics.record(DnuMetrics.Op.BULK_IMPORT, started);
+            }
+        }
+
+        private List<Tutor> tutors() {
+            List<Tutor> tutors = new ArrayList<>();
+            for (User u : snapshot.users()) if (u instanceof Tutor) tutors.add((Tutor) u);
+            return tutors;
+        }
+
+        // Caller holds the tutor's lock, as for every leaderboard update
+        private void rankTutorSubject(Tutor t, Subject s) {
+            leaderboard.taught(t, s);
+            DnuLeaderboard recent = recentLeaderboard;
+            if (recent != null) recent.taught(t, s);
+        }
+
+        private void rankRating(Rating r) {
+            leaderboard.rated(r);
+            DnuLeaderboard recent = recentLeaderboard;
+            if (recent != null) recent.rated(r);
+        }
+
+        private void indexTutorSubject(Tutor t, Subject s) {
+            tutorsBySubject.computeIfAbsent(s, k -> new ConcurrentSkipListMap<>())
+                    .computeIfAbsent(t.feePerHour, k -> ConcurrentHashMap.newKeySet()).add(t);
+        }
+
+        // Create booking; must fit in the tutor's availability and not overlap a non-cancelled booking
         public Booking createBooking(Student s, Tutor t, Subject subj, LocalDateTime time, int durationMinutes) {
-            Booking b = new Booking(s,t,subj,time,durationMinutes);
-            bookings.put(b.getId(), b);
-            s.getBookings().add(b);
-            t.getBookings().add(b);
-            return b;
+            long started = metrics.start();
+            try {
+                if (durationMinutes <= 0) throw new IllegalArgumentException("durationMinutes must be positive");
+                checkOwned(s);
+                checkOwned(t);
+                Booking b = new Booking(s,t,subj,time,durationMinutes);
+                long start = b.getStartMinute(), end = b.getEndMinute();
+                lockBoth(s, t);
+                try {
+                    if (!t.isAvailable(start, end))
+                        throw new IllegalArgumentException("tutor " + t.name + " is not available at " + time);
+                    int clash = bookingStore.overlapping(t, start, end);
+                    if (clash >= 0)
+                        throw new IllegalStateException("overlaps booking " + bookingStore.id(clash));
+                    addBookingLocked(b);
+                } finally { unlockBoth(s, t); }
+                return b;
+            } catch (RuntimeException e) {
+                metrics.failed(DnuMetrics.Op.CREATE_BOOKING);
+                throw e;
+            } finally {
+                metrics.record(DnuMetrics.Op.CREATE_BOOKING, started);
+            }
+        }
+
+        // Caller holds both users' locks and has checked availability and overlaps
+        private void addBookingLocked(Booking b) {
+            checkJournal();
+            // The booking can be seen (and confirmed) as soon as it is committed; its transitions
+            // wait for finishCreation, so their journal records and events follow the creation's
+            commitBooking(b, BookingStatus.PENDING);
+            try {
+                stats.bookingAdded(b, BookingStatus.PENDING);
+                bookingStore.publish(b);
+                if (journal != null) journal.bookingCreated(b);
+                publish(DnuEventBus.Type.BOOKING_CREATED, b.getTutor(), b);
+            } finally {
+                b.finishCreation();
+            }
+        }
+
+        /*
+         * Matches an OPEN request to t, booking the preferred session when the request has one.
+         * Returns false instead of throwing when the request is no longer open or t cannot take
+         * it (fee, availability, overlap), so a matcher can simply try the next candidate.
+         */
+        public boolean matchRequest(LearningRequest lr, Tutor t) {
+            if (lr.maxFee != null && t.feePerHour > lr.maxFee) return false;
+            if (!t.subjects.contains(lr.subject)) return false;
+            Booking b = lr.preferredStart == null ? null
+                    : new Booking(lr.student, t, lr.subject, lr.preferredStart, lr.durationMinutes);
+            lockBoth(lr.student, t);
+            try {
+                if (lr.status != RequestStatus.OPEN) return false;
+                checkJournal();
+                if (b != null) {
+                    if (!t.isAvailable(b.getStartMinute(), b.getEndMinute())) return false;
+                    if (bookingStore.overlapping(t, b.getStartMinute(), b.getEndMinute()) >= 0) return false;
+                    addBookingLocked(b);
+                }
+                lr.matchedTutor = t;
+                lr.booking = b;
+                lr.status = RequestStatus.MATCHED;
+                if (journal != null) journal.requestMatched(lr);
+                publish(DnuEventBus.Type.REQUEST_MATCHED, t, lr);
+                return true;
+            } finally { unlockBoth(lr.student, t); }
+        }
+
+        /*
+         * Status changes go through the booking's compare-and-set state machine and return
+         * whether they happened: confirming a cancelled booking, or a cancel racing a confirm
+         * that already won, returns false. The CAS takes no lock; only a cancel takes the tutor's
+         * lock stripe, to free the slot in the tutor's booking index. Journal records and events
+         * of one booking are emitted in transition order.
+         */
+        public boolean confirmBooking(Booking b) { return changeStatus(b, null, BookingStatus.CONFIRMED); }
+
+        public boolean markBookingDone(Booking b) { return changeStatus(b, null, BookingStatus.DONE); }
+
+        public boolean cancelBooking(Booking b) { return changeStatus(b, null, BookingStatus.CANCELLED); }
+
+        // Moves b from expected to next only, e.g. cancel a booking only while it is still PENDING
+        public boolean compareAndSetStatus(Booking b, BookingStatus expected, BookingStatus next) {
+            return changeStatus(b, Objects.requireNonNull(expected), next);
+        }
+
+        private boolean changeStatus(Booking b, BookingStatus expected, BookingStatus next) {
+            long started = metrics.start();
+            try {
+                checkOwned(b);
+                checkJournal();
+                int ticket = b.tryTransition(expected, next);
+                if (ticket == 0) return false;
+                applyTransition(b, ticket, next);
+                return true;
+            } catch (RuntimeException e) {
+                metrics.failed(DnuMetrics.Op.UPDATE_BOOKING_STATUS);
+                throw e;
+            } finally {
+                metrics.record(DnuMetrics.Op.UPDATE_BOOKING_STATUS, started);
+            }
         }
 
-        // Confirm booking (tutor or admin)
-        public void confirmBooking(Booking b) { b.setStatus(BookingStatus.CONFIRMED); }
+        /*
+         * Batch form: applies next to every booking it is valid for and returns, per booking,
+         * whether it moved. All CASes run first; cancellations then free their slots with one
+         * lock acquisition per tutor stripe rather than one per booking.
+         */
+        public boolean[] changeStatuses(List<Booking> batch, BookingStatus next) {
+            long started = metrics.start();
+            try {
+                for (Booking b : batch) checkOwned(b);
+                checkJournal();
+                boolean[] moved = new boolean[batch.size()];
+                int[] tickets = new int[batch.size()];
+                for (int i = 0; i < tickets.length; i++) {
+                    tickets[i] = batch.get(i).tryTransition(null, next);
+                    moved[i] = tickets[i] != 0;
+                }
+                if (next == BookingStatus.CANCELLED) {
+                    Integer[] order = new Integer[tickets.length];
+                    for (int i = 0; i < order.length; i++) order[i] = i;
+                    Arrays.sort(order, Comparator.comparingInt(i -> stripeIndex(batch.get(i).getTutor())));
+                    int i = 0;
+                    while (i < order.length) {
+                        int stripe = stripeIndex(batch.get(order[i]).getTutor());
+                        stripes[stripe].lock();
+                        try {
+                            for (; i < order.length && stripeIndex(batch.get(order[i]).getTutor()) == stripe; i++) {
+                                if (tickets[order[i]] != 0) emitTransition(batch.get(order[i]), tickets[order[i]], next);
+                            }
+                        } finally { stripes[stripe].unlock(); }
+                    }
+                } else {
+                    for (int i = 0; i < tickets.length; i++) {
+                        if (tickets[i] != 0) emitTransition(batch.get(i), tickets[i], next);
+                    }
+                }
+                return moved;
+            } catch (RuntimeException e) {
+                metrics.failed(DnuMetrics.Op.UPDATE_BOOKING_STATUS);
+                throw e;
+            } finally {
+                metrics.record(DnuMetrics.Op.UPDATE_BOOKING_STATUS, started);
+            }
+        }
 
-        // Mark done
-        public void markBookingDone(Booking b) { b.setStatus(BookingStatus.DONE); }
+        private void applyTransition(Booking b, int ticket, BookingStatus next) {
+            if (next != BookingStatus.CANCELLED) {
+                emitTransition(b, ticket, next);
+                return;
+            }
+            ReentrantLock lock = lockOf(b.getTutor());
+            try { emitTransition(b, ticket, next); } finally { lock.unlock(); }
+        }
 
-        // Cancel
-        public void cancelBooking(Booking b) { b.setStatus(BookingStatus.CANCELLED); }
+        // Caller holds the tutor's lock for a cancellation. A cancel is always a booking's last
+        // transition, so waiting for the previous one (a confirm, which takes no lock) cannot
+        // deadlock, and a creation still being emitted holds that same lock, so it is done.
+        private void emitTransition(Booking b, int ticket, BookingStatus next) {
+            b.awaitTurn(ticket);
+            try {
+                if (next == BookingStatus.CANCELLED) bookingStore.unschedule(b);
+                // b's earlier transitions are committed and later ones wait for this one
+                BookingStatus previous = snapshot.statusOf(b);
+                commit(v -> v.withBookingStatus(b, next));
+                if (previous != null) stats.bookingStatusChanged(b, previous, next);
+                if (journal != null) journal.bookingStatusChanged(b, next);
+                publish(next == BookingStatus.CONFIRMED ? DnuEventBus.Type.BOOKING_CONFIRMED
+                        : next == BookingStatus.DONE ? DnuEventBus.Type.BOOKING_DONE
+                        : DnuEventBus.Type.BOOKING_CANCELLED, b.getTutor(), b);
+            } finally {
+                b.finishTurn(ticket);
+            }
+        }
 
         // Add rating
         public Rating addRating(Student s, Tutor t, int score, String comment) {
-            Rating r = new Rating(s,t,score,comment);
-            t.getRatingsReceived().add(r);
-            return r;
+            long started = metrics.start();
+            try {
+                checkOwned(s);
+                checkOwned(t);
+                Rating r = new Rating(s,t,score,comment);
+                lockBoth(s, t);
+                try {
+                    checkJournal();
+                    t.ratingsReceived.add(r);
+                    t.recordRating(score);
+                    rankRating(r);
+                    if (journal != null) journal.ratingAdded(r);
+                    publish(DnuEventBus.Type.RATING_ADDED, t, r);
+                } finally { unlockBoth(s, t); }
+                return r;
+            } catch (RuntimeException e) {
+                metrics.failed(DnuMetrics.Op.ADD_RATING);
+                throw e;
+            } finally {
+                metrics.record(DnuMetrics.Op.ADD_RATING, started);
+            }
+        }
+
+        /*
+         * Home page "top tutors": the best n tutors teaching subject by average rating (then by
+         * number of ratings), read from a leaderboard kept up to date by every rating, so the
+         * cost is O(n) rather than a search and sort of the whole subject.
+         */
+        public List<DnuLeaderboard.Entry> topTutors(Subject subject, int n) {
+            long started = metrics.start();
+            try {
+                return leaderboard.top(subject, n);
+            } catch (RuntimeException e) {
+                metrics.failed(DnuMetrics.Op.TOP_TUTORS);
+                throw e;
+            } finally {
+                metrics.record(DnuMetrics.Op.TOP_TUTORS, started);
+            }
+        }
+
+        // As topTutors, but a rating's weight halves every halfLifeDays; see enableRecentRatings
+        public List<DnuLeaderboard.Entry> topTutorsByRecentRatings(Subject subject, int n) {
+            long started = metrics.start();
+            try {
+                DnuLeaderboard recent = recentLeaderboard;
+                if (recent == null) throw new IllegalStateException("recent ratings leaderboard not enabled");
+                return recent.top(subject, n);
+            } catch (RuntimeException e) {
+                metrics.failed(DnuMetrics.Op.TOP_TUTORS);
+                throw e;
+            } finally {
+                metrics.record(DnuMetrics.Op.TOP_TUTORS, started);
+            }
+        }
+
+        // Builds the time-decayed leaderboard from the ratings so far; writers are held off meanwhile
+        public void enableRecentRatings(int halfLifeDays) {
+            DnuLeaderboard recent = new DnuLeaderboard(halfLifeDays);
+            for (ReentrantLock lock : stripes) lock.lock();
+            try {
+                recent.rebuild(tutors());
+                recentLeaderboard = recent;
+            } finally {
+                for (int i = stripes.length - 1; i >= 0; i--) stripes[i].unlock();
+            }
+        }
+
+        // Bulk recompute of rating aggregates for every tutor (e.g. after an import)
+        public void recomputeRatingAggregates() {
+            for (User u : users.values()) {
+                if (!(u instanceof Tutor)) continue;
+                ReentrantLock lock = lockOf(u);
+                try { ((Tutor) u).recomputeRatingAggregates(); } finally { lock.unlock(); }
+            }
         }
 
-        // Create transaction (simulate immediate success)
+        // Create transaction (simulate immediate success); a booking already paid returns its payment
         public Transaction createTransaction(Booking b, double amount, String method) {
-            Transaction tx = new Transaction(b, amount, method, TransactionStatus.PAID);
-            transactions.add(tx);
-            b.setTransaction(tx);
-            return tx;
+            return addTransaction(b, amount, method, TransactionStatus.PAID);
+        }
+
+        // A declined payment, kept for history; does not affect a payment the booking already has
+        public Transaction recordFailedPayment(Booking b, double amount, String method) {
+            return addTransaction(b, amount, method, TransactionStatus.FAILED);
+        }
+
+        // Reverses the booking's payment in full
+        public Transaction refundTransaction(Booking b, String method) {
+            return addTransaction(b, 0, method, TransactionStatus.REFUNDED);
+        }
+
+        private Transaction addTransaction(Booking b, double amount, String method, TransactionStatus status) {
+            long started = metrics.start();
+            try {
+                checkOwned(b);
+                ReentrantLock lock = lockOf(b.getTutor());
+                try {
+                    Transaction current = b.getTransaction();
+                    boolean paid = current != null && current.getStatus() == TransactionStatus.PAID;
+                    if (status == TransactionStatus.PAID && paid) return current;
+                    if (status == TransactionStatus.REFUNDED) {
+                        if (!paid) throw new IllegalStateException("Booking has no payment to refund");
+                        amount = current.getAmount();
+                    }
+                    checkJournal();
+                    Transaction tx = new Transaction(b, amount, method, status);
+                    attachTransaction(b, tx);
+                    DnuLedger l = ledger;
+                    if (l != null) l.append(tx); else transactions.add(tx);
+                    stats.transactionRecorded(tx);
+                    if (journal != null) journal.transactionCreated(tx);
+                    publish(DnuEventBus.Type.TRANSACTION_CREATED, b.getTutor(), tx);
+                    return tx;
+                } finally { lock.unlock(); }
+            } catch (RuntimeException e) {
+                metrics.failed(DnuMetrics.Op.CREATE_TRANSACTION);
+                throw e;
+            } finally {
+                metrics.record(DnuMetrics.Op.CREATE_TRANSACTION, started);
+            }
+        }
+
+        // The booking keeps its latest transaction, except that a failed attempt never hides a payment
+        private static void attachTransaction(Booking b, Transaction tx) {
+            Transaction current = b.getTransaction();
+            if (tx.getStatus() != TransactionStatus.FAILED || current == null
+                    || current.getStatus() != TransactionStatus.PAID) {
+                b.setTransaction(tx);
+            }
         }
 
-        // Admin operations
-        public List<User> listAllUsers() { return new ArrayList<>(users.values()); }
-        public List<Booking> listAllBookings() { return new ArrayList<>(bookings.values()); }
-        public List<Transaction> listAllTransactions() { return new ArrayList<>(transactions); }
+        /*
+         * Admin operations. Users, subjects, requests and bookings come from the current
+         * snapshot: read-only, in commit order, O(1) to obtain and consistent with each other
+         * (every booking's users and subject are in the lists too).
+         */
+        public List<User> listAllUsers() { return snapshot.users(); }
+        public List<Booking> listAllBookings() { return snapshot.bookings(); }
+        public List<Transaction> listAllTransactions() {
+            DnuLedger l = ledger;
+            if (l == null) return new ArrayList<>(transactions);
+            List<Transaction> all = new ArrayList<>(l.size());
+            l.forEach((id, bookingId, tutorId, postedAt, amount, status, method) -> {
+                Booking b = bookingStore.find(bookingId);
+                if (b == null) throw new IllegalStateException("ledger transaction " + id + " refers to unknown booking " + bookingId);
+                Transaction current = b.getTransaction();
+                all.add(current != null && current.getId() == id ? current
+                        : new Transaction(id, b, Math.abs(amount), method, status, DnuLedger.fromMillis(postedAt)));
+            });
+            return all;
+        }
+        public List<Subject> listAllSubjects() { return snapshot.subjects(); }
+        public List<LearningRequest> listAllRequests() { return snapshot.requests(); }
+        public List<LearningRequest> listOpenRequests() {
+            List<LearningRequest> open = new ArrayList<>();
+            for (LearningRequest lr : snapshot.requests()) if (lr.status == RequestStatus.OPEN) open.add(lr);
+            return open;
+        }
 
-        /* Utility for demo */
+        // Consistent copies of per-user collections, safe while other threads keep writing
+        public List<Booking> bookingsOf(Student s) { return bookingsOf((User) s); }
+        public List<Booking> bookingsOf(Tutor t) { return bookingsOf((User) t); }
+        private List<Booking> bookingsOf(User u) {
+            ReentrantLock lock = lockOf(u);
+            try { return bookingStore.bookingsOf(u); } finally { lock.unlock(); }
+        }
+        public List<Rating> ratingsOf(Tutor t) {
+            ReentrantLock lock = lockOf(t);
+            try { return new ArrayList<>(t.ratingsReceived); } finally { lock.unlock(); }
+        }
+        public Map<LocalDate, List<TimeSlot>> availabilityOf(Tutor t) {
+            ReentrantLock lock = lockOf(t);
+            try {
+                Map<LocalDate, List<TimeSlot>> copy = new TreeMap<>();
+                t.availability.forEach((d, slots) -> copy.put(d, new ArrayList<>(slots)));
+                return copy;
+            } finally { lock.unlock(); }
+        }
+
+        /*
+         * Restore path used by journal replay: entities arrive with their original ids and are
+         * applied without re-journaling or availability checks. Each call is idempotent, because
+         * the log tail may repeat events already captured by the snapshot.
+         */
+        boolean restoreUser(User u) {
+            if (users.containsKey(u.getId())) return false;
+            register(u);
+            return true;
+        }
+
+        boolean restoreSubject(Subject s) {
+            if (subjects.containsKey(s.getId())) return false;
+            Subject winner = subjectsByKey.putIfAbsent(s.getKey(), s);
+            if (winner != null) return false;
+            subjects.put(s.getId(), s);
+            commitSubject(s);
+            return true;
+        }
+
+        boolean restoreAvailability(Tutor t, LocalDate date, TimeSlot slot) {
+            ReentrantLock lock = lockOf(t);
+            try {
+                for (TimeSlot existing : t.availability.getOrDefault(date, Collections.emptyList())) {
+                    if (existing.getStart().equals(slot.getStart()) && existing.getEnd().equals(slot.getEnd())) return false;
+                }
+                t.putAvailability(date, slot);
+                availabilityIndex.add(t, slot);
+                return true;
+            } finally { lock.unlock(); }
+        }
+
+        boolean restoreRequest(LearningRequest lr) {
+            if (requests.putIfAbsent(lr.getId(), lr) != null) return false;
+            ReentrantLock lock = lockOf(lr.getStudent());
+            try {
+                lr.getStudent().requests.add(lr);
+                requestText.add(lr, lr.description);
+                commit(v -> v.withRequest(lr));
+            } finally { lock.unlock(); }
+            return true;
+        }
+
+        void restoreRequestMatch(LearningRequest lr, Tutor t, Booking b) {
+            ReentrantLock lock = lockOf(lr.student);
+            try { lr.restoreMatch(t, b); } finally { lock.unlock(); }
+        }
+
+        boolean restoreBooking(Booking b, BookingStatus status) {
+            if (bookingStore.find(b.getId()) != null) return false;
+            b.setStatus(status);
+            Student s = b.getStudent();
+            Tutor t = b.getTutor();
+            lockBoth(s, t);
+            try {
+                commitBooking(b, status);
+                stats.bookingAdded(b, status);
+                bookingStore.publish(b);
+                b.finishCreation();
+            } finally { unlockBoth(s, t); }
+            return true;
+        }
+
+        void restoreBookingStatus(Booking b, BookingStatus status) {
+            ReentrantLock lock = lockOf(b.getTutor());
+            try {
+                BookingStatus previous = b.getStatus();
+                b.setStatus(status);
+                if (status == BookingStatus.CANCELLED) bookingStore.unschedule(b);
+                commit(v -> v.withBookingStatus(b, status));
+                stats.bookingStatusChanged(b, previous, status);
+            } finally { lock.unlock(); }
+        }
+
+        void restoreRating(Rating r) {
+            ReentrantLock lock = lockOf(r.getTutor());
+            try {
+                r.getTutor().ratingsReceived.add(r);
+                r.getTutor().recordRating(r.getScore());
+                rankRating(r);
+            } finally { lock.unlock(); }
+        }
+
+        void restoreTransaction(Transaction tx) {
+            ReentrantLock lock = lockOf(tx.getBooking().getTutor());
+            try {
+                attachTransaction(tx.getBooking(), tx);
+                DnuLedger l = ledger;
+                if (l != null) l.append(tx); else transactions.add(tx);
+                stats.transactionRecorded(tx);
+            } finally { lock.unlock(); }
+        }
+
+        /*
+         * Moves transaction history into an off-heap ledger. Transactions already held in memory
+         * (e.g. recovered from the journal) are appended unless the ledger has them; writers are
+         * held off meanwhile. Journal checkpoints then record only the ledger's length, so a
+         * journaled service must get its ledger back before DnuJournal.open().
+         */
+        public void attachLedger(DnuLedger l) {
+            for (ReentrantLock lock : stripes) lock.lock();
+            try {
+                for (Transaction tx : transactions) l.append(tx);
+                transactions.clear();
+                ledger = l;
+            } finally {
+                for (int i = stripes.length - 1; i >= 0; i--) stripes[i].unlock();
+            }
+        }
+
+        DnuLedger getLedger() { return ledger; }
+
+        // Net amount paid in [from, to); O(log n) with a ledger attached
+        public double totalPaidBetween(LocalDateTime from, LocalDateTime to) {
+            DnuLedger l = ledger;
+            if (l != null) return l.totalBetween(from, to);
+            double total = 0;
+            for (Transaction tx : transactions) {
+                if (!tx.getCreatedAt().isBefore(from) && tx.getCreatedAt().isBefore(to)) total += netAmount(tx);
+            }
+            return total;
+        }
+
+        public double tutorEarningsBetween(Tutor t, LocalDateTime from, LocalDateTime to) {
+            DnuLedger l = ledger;
+            if (l != null) return l.tutorTotalBetween(t.getId(), from, to);
+            double total = 0;
+            for (Transaction tx : transactions) {
+                if (tx.getBooking().getTutor() == t && !tx.getCreatedAt().isBefore(from) && tx.getCreatedAt().isBefore(to)) {
+                    total += netAmount(tx);
+                }
+            }
+            return total;
+        }
+
+        private static double netAmount(Transaction tx) {
+            switch (tx.getStatus()) {
+                case PAID: return tx.getAmount();
+                case REFUNDED: return -tx.getAmount();
+                default: return 0;
+            }
+        }
+
+        // Lookups
+        public Optional<User> findUser(long id) { return Optional.ofNullable(users.get(id)); }
+        public Optional<Subject> findSubject(long id) { return Optional.ofNullable(subjects.get(id)); }
+        public Optional<Booking> findBooking(long id) { return Optional.ofNullable(bookingStore.find(id)); }
+        public Optional<LearningRequest> findRequest(long id) { return Optional.ofNullable(requests.get(id)); }
         public Optional<User> findUserByEmail(String email) {
-            return users.values().stream().filter(u->u.email.equalsIgnoreCase(email)).findFirst();
+            long started = metrics.start();
+            try {
+                if (email == null || email.isBlank()) return Optional.empty();
+                return Optional.ofNullable(usersByEmail.get(normalizeEmail(email)));
+            } catch (RuntimeException e) {
+                metrics.failed(DnuMetrics.Op.FIND_USER);
+                throw e;
+            } finally {
+                metrics.record(DnuMetrics.Op.FIND_USER, started);
+            }
+        }
+        public Optional<User> findUserByPhone(String phone) {
+            long started = metrics.start();
+            try {
+                String key = normalizePhone(phone);
+                return key == null ? Optional.empty() : Optional.ofNullable(usersByPhone.get(key));
+            } catch (RuntimeException e) {
+                metrics.failed(DnuMetrics.Op.FIND_USER);
+                throw e;
+            } finally {
+                metrics.record(DnuMetrics.Op.FIND_USER, started);
+            }
         }
     }
 
@@ -323,13 +1876,17 @@ public class DnuTutorConnect {
         System.out.println("\n--- Tutors found for " + java.getName() + " ---");
         found.forEach(t -> System.out.println(t.name + " | Fee: " + t.getFeePerHour() + " | AvgRating: " + t.getAverageRating()));
 
+        // Full-text search, with or without diacritics
+        System.out.println("\n--- Tutors matching \"ky thuat phan mem\" (typed with diacritics) ---");
+        service.searchTutorsByText("Kỹ thuật phần mềm", null, null, null, 5).forEach(t -> System.out.println(t.name));
+
         // Create a booking: alice với bob
         LocalDateTime lessonTime = LocalDateTime.now().plusDays(1).withHour(18).withMinute(30);
         Booking booking = service.createBooking(alice, bob, java, lessonTime, 90);
         System.out.println("\nCreated booking: " + booking);
 
         // Student pays (simulate)
-        double amount = bob.getFeePerHour() * (booking.durationMinutes / 60.0);
+        double amount = bob.getFeePerHour() * (booking.getDurationMinutes() / 60.0);
         Transaction tx = service.createTransaction(booking, amount, "Thanh toan qua vi noi bo");
         System.out.println("Transaction created: " + tx);
 
@@ -345,11 +1902,15 @@ public class DnuTutorConnect {
         Rating rating = service.addRating(alice, bob, 5, "Rat nhiet tinh, giai thich ro rang!");
         System.out.println("New rating: " + rating);
         System.out.println("Tutor average rating now: " + bob.getAverageRating());
+        System.out.println("Top tutors for " + java.getName() + ": " + service.topTutors(java, 3));
 
         // Admin lists transactions
         System.out.println("\n--- Admin View: Transactions ---");
         service.listAllTransactions().forEach(System.out::println);
 
+        // Admin report from the running aggregates, no scan
+        System.out.println("Stats: " + service.getStats());
+
         // Show all users
         System.out.println("\n--- List of all users ---");
         service.listAllUsers().forEach(System.out::println);